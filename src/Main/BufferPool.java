@@ -0,0 +1,47 @@
+package Main;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Direct buffers shared by every connection for sending frames. A connection
+ * takes one only while it has frames queued and gives it back once they are
+ * written, so idle connections hold none and the direct memory in use follows
+ * the connections actually sending rather than every one open. Up to MAXKEPT
+ * free buffers are kept for reuse; past that they are left to the collector.
+ *
+ * @author Cole Christie
+ *
+ */
+public class BufferPool {
+	// Size of every buffer handed out
+	static final int BUFFERSIZE = 64 * 1024;
+
+	// Most free buffers kept (16 MB of direct memory)
+	private static int MAXKEPT = 256;
+
+	private static final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(MAXKEPT);
+
+	/**
+	 * Returns an empty buffer, reusing a free one if there is one
+	 *
+	 * @return
+	 */
+	public static ByteBuffer Take() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(BUFFERSIZE);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer back once nothing refers to it any more
+	 *
+	 * @param buffer
+	 */
+	public static void Give(ByteBuffer buffer) {
+		free.offer(buffer);
+	}
+}
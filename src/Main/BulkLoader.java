@@ -0,0 +1,302 @@
+package Main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams a job file (one "OS SecLev job" per line) into the job queue. The
+ * file is read through a channel in large blocks, each block of whole lines is
+ * tokenized and validated on a worker thread, and the resulting jobs are
+ * published to the queue one block at a time in file order. Clients can pull
+ * jobs as soon as the first block is published, and progress is reported as
+ * counters rather than by echoing every line.
+ *
+ * @author Cole Christie
+ *
+ */
+public class BulkLoader {
+	private JobManagement JobQueue;
+	private AtomicLong LinesRead;
+	private AtomicLong LinesRejected;
+	private long JobsLoaded;
+
+	// Size of each block handed to a worker
+	private static int BLOCKSIZE = 1024 * 1024;
+	// How many rejected lines are shown before only counting them
+	private static int MAXSHOWNREJECTS = 20;
+	// How often (in lines) progress is reported
+	private static long PROGRESSEVERY = 1000000;
+	private static Charset ENCODING = StandardCharsets.UTF_8;
+
+	/**
+	 * CONSTRUCTOR
+	 */
+	public BulkLoader(JobManagement passedJobQueue) {
+		JobQueue = passedJobQueue;
+		LinesRead = new AtomicLong(0);
+		LinesRejected = new AtomicLong(0);
+		JobsLoaded = 0;
+	}
+
+	/**
+	 * Loads every valid job in the file and returns how many were loaded
+	 *
+	 * @param filepath
+	 * @return
+	 * @throws IOException
+	 */
+	public int Load(String filepath) throws IOException {
+		int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		ArrayDeque<Future<ArrayList<Jobs>>> pending = new ArrayDeque<Future<ArrayList<Jobs>>>();
+		long NextReport = PROGRESSEVERY;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BLOCKSIZE);
+			while (channel.read(buffer) >= 0) {
+				// Hand off every complete line, keep the partial one
+				int end = LastNewline(buffer);
+				if (end < 0) {
+					if (!buffer.hasRemaining()) {
+						// A single line larger than the block, grow to fit it
+						ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+						buffer.flip();
+						bigger.put(buffer);
+						buffer = bigger;
+					}
+					continue;
+				}
+				pending.add(pool.submit(new BlockParser(Copy(buffer, end))));
+				Compact(buffer, end);
+
+				// Publish in file order, keeping a bounded number of blocks
+				// in flight
+				while (pending.size() > (workers * 2)) {
+					Publish(pending.poll());
+				}
+				if (LinesRead.get() >= NextReport) {
+					Progress();
+					NextReport += PROGRESSEVERY;
+				}
+			}
+
+			// Whatever is left is the last line (no trailing newline)
+			if (buffer.position() > 0) {
+				pending.add(pool.submit(new BlockParser(Copy(buffer, buffer.position()))));
+			}
+			while (!pending.isEmpty()) {
+				Publish(pending.poll());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		Progress();
+		return (int) JobsLoaded;
+	}
+
+	/**
+	 * Waits for a parsed block and adds its jobs to the queue
+	 *
+	 * @param parsed
+	 * @throws IOException
+	 */
+	private void Publish(Future<ArrayList<Jobs>> parsed) throws IOException {
+		ArrayList<Jobs> batch;
+		try {
+			batch = parsed.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while loading jobs", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to parse jobs", e.getCause());
+		}
+		JobQueue.AddBatch(batch);
+		JobsLoaded += batch.size();
+	}
+
+	/**
+	 * Reports the load counters
+	 */
+	private void Progress() {
+		System.out.println("\tProgress: [" + LinesRead.get() + "] lines read, [" + JobsLoaded + "] jobs queued, ["
+				+ LinesRejected.get() + "] lines rejected");
+	}
+
+	/**
+	 * Returns the index just past the last newline written into the buffer,
+	 * or -1 if there is none
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	private static int LastNewline(ByteBuffer buffer) {
+		byte[] raw = buffer.array();
+		for (int scan = buffer.position() - 1; scan >= 0; scan--) {
+			if (raw[scan] == '\n') {
+				return scan + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies the first length bytes of the buffer
+	 *
+	 * @param buffer
+	 * @param length
+	 * @return
+	 */
+	private static byte[] Copy(ByteBuffer buffer, int length) {
+		byte[] block = new byte[length];
+		System.arraycopy(buffer.array(), 0, block, 0, length);
+		return block;
+	}
+
+	/**
+	 * Drops the first length bytes of the buffer, moving the rest to the front
+	 *
+	 * @param buffer
+	 * @param length
+	 */
+	private static void Compact(ByteBuffer buffer, int length) {
+		buffer.flip();
+		buffer.position(length);
+		buffer.compact();
+	}
+
+	/**
+	 * Tokenizes and validates one block of whole lines
+	 */
+	private class BlockParser implements Callable<ArrayList<Jobs>> {
+		private byte[] block;
+
+		BlockParser(byte[] passedBlock) {
+			block = passedBlock;
+		}
+
+		public ArrayList<Jobs> call() {
+			ArrayList<Jobs> parsed = new ArrayList<Jobs>();
+			int start = 0;
+			int lines = 0;
+			while (start < block.length) {
+				int end = start;
+				while ((end < block.length) && (block[end] != '\n')) {
+					end++;
+				}
+				lines++;
+				Jobs jobUnit = ParseLine(start, end);
+				if (jobUnit != null) {
+					parsed.add(jobUnit);
+				}
+				start = end + 1;
+			}
+			LinesRead.addAndGet(lines);
+			return parsed;
+		}
+
+		/**
+		 * Parses "OS SecLev job" between start and end, returns null for blank
+		 * or invalid lines
+		 */
+		private Jobs ParseLine(int start, int end) {
+			// Trim a windows line ending
+			if ((end > start) && (block[end - 1] == '\r')) {
+				end--;
+			}
+			if (end == start) {
+				return null;
+			}
+
+			// Validate OS
+			int osEnd = IndexOf(' ', start, end);
+			String parsedOS = null;
+			if (Matches("any", start, osEnd)) {
+				parsedOS = "any";
+			} else if (Matches("windows", start, osEnd)) {
+				parsedOS = "windows";
+			} else if (Matches("linux", start, osEnd)) {
+				parsedOS = "linux";
+			}
+			if (parsedOS == null) {
+				Reject("OS improperly defined (needs to be \"any\", \"windows\" or \"linux\"", start, end);
+				return null;
+			}
+
+			// Validate SecLev
+			int levStart = osEnd + 1;
+			int levEnd = IndexOf(' ', levStart, end);
+			int parsedSecLev = -1;
+			if ((levEnd > levStart) && ((levEnd - levStart) <= 9)) {
+				parsedSecLev = 0;
+				for (int scan = levStart; scan < levEnd; scan++) {
+					int digit = block[scan] - '0';
+					if ((digit < 0) || (digit > 9)) {
+						parsedSecLev = -1;
+						break;
+					}
+					parsedSecLev = (parsedSecLev * 10) + digit;
+				}
+			}
+			if (parsedSecLev < 0) {
+				Reject("Security level improperly formated", start, end);
+				return null;
+			}
+
+			// Validate the job
+			int jobStart = levEnd + 1;
+			if (jobStart >= end) {
+				Reject("No job was provided", start, end);
+				return null;
+			}
+			return new Jobs(new String(block, jobStart, end - jobStart, ENCODING), parsedOS, parsedSecLev);
+		}
+
+		/**
+		 * Returns the index of the first match of c at or after from (or end)
+		 */
+		private int IndexOf(char c, int from, int end) {
+			int scan = from;
+			while ((scan < end) && (block[scan] != c)) {
+				scan++;
+			}
+			return scan;
+		}
+
+		/**
+		 * Case insensitive compare of an ASCII word against the block
+		 */
+		private boolean Matches(String word, int start, int end) {
+			if ((end - start) != word.length()) {
+				return false;
+			}
+			for (int scan = 0; scan < word.length(); scan++) {
+				if (Character.toLowerCase((char) block[start + scan]) != word.charAt(scan)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Counts a rejected line, and shows the first few
+		 */
+		private void Reject(String reason, int start, int end) {
+			if (LinesRejected.incrementAndGet() <= MAXSHOWNREJECTS) {
+				System.out.println("\t" + reason + " (" + new String(block, start, end - start, ENCODING) + ")");
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package Main;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per connection AES-GCM engine behind Crypto. It keeps one initialised
+ * Cipher for each direction and seals and opens straight between the callers
+ * ByteBuffers, so a message costs no allocation beyond its parameters.
+ *
+ * A sealed message is its 12 byte nonce, the cipher text and the 16 byte tag.
+ * Under a key made by a rekey (fresh to this connection) the nonce is the
+ * direction it travels in (four bytes) and a count of the messages sealed
+ * under that key (eight bytes), so the two ends can never pick the same one.
+ * Under the PSK key, which every connection shares, the nonce is random. The
+ * receiver reads the nonce off the message either way.
+ *
+ * Under a fresh key a message is only opened if its nonce is the next one due
+ * from the other end: the direction must be the peers and the count must be
+ * one on from the last message opened. A message replayed, held back and sent
+ * out of order, or reflected back at its sender is refused, so the sender has
+ * to seal and send each message in one step (see Networking.SendSealed).
+ *
+ * @author Cole Christie
+ *
+ */
+public class CipherEngine {
+	private Logging mylog;
+	private Cipher sealer;
+	private Cipher opener;
+	private SecretKeySpec key;
+	private boolean counting; // The key is fresh, so nonces are counted
+	private long counter;
+	private long expected; // Count of the next message due from the peer
+	private int direction;
+	private SecureRandom random;
+	private byte[] nonce; // Reused for every message sealed
+	private byte[] received; // Reused for every message opened
+
+	// Directions a message travels in (the first four bytes of a counted
+	// nonce)
+	static final int FROMCLIENT = 1;
+	static final int FROMSERVER = 2;
+
+	// Bytes a sealed message adds to its plain text
+	static final int NONCESIZE = 12;
+	static final int TAGSIZE = 16;
+	static final int OVERHEAD = NONCESIZE + TAGSIZE;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedLog
+	 * @param passedDirection
+	 *            (FROMCLIENT or FROMSERVER, the direction this end sends in)
+	 */
+	public CipherEngine(Logging passedLog, int passedDirection) {
+		mylog = passedLog;
+		direction = passedDirection;
+		random = new SecureRandom();
+		nonce = new byte[NONCESIZE];
+		received = new byte[NONCESIZE];
+		try {
+			sealer = Cipher.getInstance("AES/GCM/NoPadding");
+			opener = Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			mylog.out("FATAL", "AES-GCM is MISSING");
+		}
+	}
+
+	/**
+	 * Switches to a new key. Fresh keys (made for this connection by a
+	 * rekey) count their nonces from zero, others use random ones.
+	 *
+	 * @param KeyBytes
+	 * @param fresh
+	 */
+	public void SetKey(byte[] KeyBytes, boolean fresh) {
+		synchronized (sealer) {
+			synchronized (opener) {
+				key = new SecretKeySpec(KeyBytes, "AES");
+				counting = fresh;
+				counter = 0;
+				expected = 0;
+			}
+		}
+	}
+
+	/**
+	 * Seals the remaining bytes of plain into sealed (which needs room for
+	 * OVERHEAD more bytes than that), returns the bytes written or -1 if it
+	 * could not be sealed
+	 *
+	 * @param plain
+	 * @param sealed
+	 * @return
+	 */
+	public int Seal(ByteBuffer plain, ByteBuffer sealed) {
+		synchronized (sealer) {
+			if (sealed.remaining() < plain.remaining() + OVERHEAD) {
+				mylog.out("ERROR", "No room to seal a message of [" + plain.remaining() + "] bytes");
+				return -1;
+			}
+			if (counting) {
+				long count = counter++;
+				nonce[0] = (byte) (direction >>> 24);
+				nonce[1] = (byte) (direction >>> 16);
+				nonce[2] = (byte) (direction >>> 8);
+				nonce[3] = (byte) direction;
+				for (int scan = 0; scan < 8; scan++) {
+					nonce[NONCESIZE - 1 - scan] = (byte) (count >>> (8 * scan));
+				}
+			} else {
+				random.nextBytes(nonce);
+			}
+			try {
+				sealer.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAGSIZE * 8, nonce));
+				sealed.put(nonce);
+				return NONCESIZE + sealer.doFinal(plain, sealed);
+			} catch (GeneralSecurityException e) {
+				mylog.out("ERROR", "Failed to seal a message [" + e + "]");
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Opens the remaining bytes of sealed into plain (which needs room for
+	 * OVERHEAD fewer bytes than that), returns the bytes written or -1 if the
+	 * message is not genuine (wrong key, tampered or truncated) or, under a
+	 * fresh key, not the next one due from the peer
+	 *
+	 * @param sealed
+	 * @param plain
+	 * @return
+	 */
+	public int Open(ByteBuffer sealed, ByteBuffer plain) {
+		synchronized (opener) {
+			if ((sealed.remaining() < OVERHEAD) || (plain.remaining() < sealed.remaining() - OVERHEAD)) {
+				return -1;
+			}
+			sealed.get(received);
+			if (counting && (!IsDue())) {
+				return -1;
+			}
+			try {
+				opener.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAGSIZE * 8, received));
+				int opened = opener.doFinal(sealed, plain);
+				if (counting) {
+					expected++;
+				}
+				return opened;
+			} catch (AEADBadTagException e) {
+				return -1;
+			} catch (GeneralSecurityException e) {
+				mylog.out("ERROR", "Failed to open a message [" + e + "]");
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the nonce just received comes from the peers direction
+	 * and carries the count due next, called holding opener
+	 *
+	 * @return
+	 */
+	private boolean IsDue() {
+		int from = ((received[0] & 0xff) << 24) | ((received[1] & 0xff) << 16) | ((received[2] & 0xff) << 8)
+				| (received[3] & 0xff);
+		long count = 0;
+		for (int scan = 4; scan < NONCESIZE; scan++) {
+			count = (count << 8) | (received[scan] & 0xff);
+		}
+		int peer = (direction == FROMCLIENT) ? FROMSERVER : FROMCLIENT;
+		if ((from != peer) || (count != expected)) {
+			mylog.out("WARN", "Refused message [" + count + "] from direction [" + from + "] when [" + expected
+					+ "] was due");
+			return false;
+		}
+		return true;
+	}
+}
@@ -1,11 +1,17 @@
 package Main;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.shiro.session.Session;
 
@@ -25,6 +31,17 @@ public class Client {
 	private Crypto cryptDO;
 	private Session clientSession;
 	private boolean ClientUI;
+	private boolean StreamUpload; // Until the Drop Off turns out not to support it
+	private boolean BulkUpload; // Likewise
+	private int credit; // Chunks the Drop Off will take before granting more
+	private ReentrantLock crediting; // Held while a chunk waits for credit
+	private Multiplexer ServerRequests; // Null if the server only takes text
+	private int NextJobs; // Job request sent ahead of its turn (0 if none)
+	private ArrayList<String[]> FetchedJobs; // Its answer, if collected early
+	private Rekeyer rekeyer;
+
+	// Size a bulk upload chunk is filled to before it is sent
+	private static int BULKCHUNK = 64 * 1024;
 
 	/**
 	 * s CONSTRUCTOR
@@ -34,6 +51,15 @@ public class Client {
 		subject = passedSubject;
 		clientSession = passedSession;
 		ClientUI = ClientMode;
+		StreamUpload = true;
+		BulkUpload = true;
+		credit = 0;
+		crediting = new ReentrantLock();
+		ServerRequests = null;
+		NextJobs = 0;
+		FetchedJobs = null;
+		rekeyer = new Rekeyer(mylog, new DHParameters(mylog, (String) clientSession.getAttribute("DHParams")),
+				(String) clientSession.getAttribute("KeyAgreement"));
 	}
 
 	/**
@@ -84,6 +110,38 @@ public class Client {
 		String OS = (String) clientSession.getAttribute("OS");
 		String SecLev = (String) clientSession.getAttribute("SecurityLevel");
 		String ClientID = (String) clientSession.getAttribute("ID");
+		int HeartbeatSeconds = 0;
+		try {
+			HeartbeatSeconds = Integer.parseInt((String) clientSession.getAttribute("HeartbeatSeconds"));
+		} catch (NumberFormatException e) {
+			mylog.out("WARN", "Heartbeat interval is not a number, heartbeats are disabled");
+		}
+		int BatchSize = 1;
+		try {
+			BatchSize = Integer.parseInt((String) clientSession.getAttribute("BatchSize"));
+		} catch (NumberFormatException e) {
+			mylog.out("WARN", "Batch size is not a number, requesting one job at a time");
+		}
+		int LongPollSeconds = 0;
+		try {
+			LongPollSeconds = Integer.parseInt((String) clientSession.getAttribute("LongPollSeconds"));
+		} catch (NumberFormatException e) {
+			mylog.out("WARN", "Long poll time is not a number, idle clients poll for jobs");
+		}
+		if (ClientUI) {
+			// Never leave the user waiting on the server
+			LongPollSeconds = 0;
+		}
+		if (LongPollSeconds > 0) {
+			// Allow the server to hold a job request that long
+			ServerNetwork.SetIdleLimit((LongPollSeconds + 10) * 1000);
+		}
+		int CompressLevel = 0;
+		try {
+			CompressLevel = Integer.parseInt((String) clientSession.getAttribute("Compress"));
+		} catch (NumberFormatException e) {
+			mylog.out("WARN", "Compression level is not a number, messages are not compressed");
+		}
 
 		// Display the UI boilerplate
 		if (ClientUI) {
@@ -135,9 +193,21 @@ public class Client {
 			System.exit(0);
 		}
 
+		// Compress large messages (job batches and results) if both ends can
+		if (CompressLevel > 0) {
+			Compression(ServerNetwork, cryptSVR, CompressLevel, "Server");
+			Compression(DropOffNetwork, cryptDO, CompressLevel, "Drop Off");
+		}
+
+		// Send binary requests to the server if it takes them, so several
+		// can be in flight at once
+		if (AskBinary(ServerNetwork, cryptSVR)) {
+			ServerRequests = new Multiplexer(mylog, ServerNetwork, cryptSVR);
+		}
+
 		// Use DH to change encryption key
-		DHrekey(ServerNetwork, cryptSVR, "Server");
-		DHrekey(DropOffNetwork, cryptDO, "Drop Off");
+		rekeyer.Rekey(ServerNetwork, cryptSVR, "Server");
+		rekeyer.Rekey(DropOffNetwork, cryptDO, "Drop Off");
 
 		// Begin UI loop
 		int MaxBeforeREKEY = 100;
@@ -146,6 +216,8 @@ public class Client {
 		boolean flagJob = false;
 		boolean noSend = false;
 		boolean NewServerResponse = false;
+		long AskedAt = 0;
+		ArrayList<String[]> Batch = null;
 		while ((UserInput.compareToIgnoreCase("quit") != 0) && (ServerSock.isConnected())
 				&& (DropOffSock.isConnected())) {
 			// Do not send empty strings
@@ -160,9 +232,30 @@ public class Client {
 				noSend = false;
 			} else {
 				// Communicate with the server
-				ServerNetwork.Send(cryptSVR.encrypt(UserInput));
-				fetched = ServerNetwork.ReceiveByte();
-				ServerResponse = cryptSVR.decrypt(fetched);
+				AskedAt = System.currentTimeMillis();
+				if (flagJob && (ServerRequests != null)) {
+					if (FetchedJobs != null) {
+						Batch = FetchedJobs;
+					} else if (NextJobs != 0) {
+						// Asked for along with the last sign off
+						Batch = CollectJobs(NextJobs);
+					} else {
+						Batch = CollectJobs(AskForJobs(ClientID, OS, SecLev, LongPollSeconds, BatchSize));
+					}
+					FetchedJobs = null;
+					NextJobs = 0;
+					ServerResponse = (Batch == null) ? null : "";
+				} else {
+					ServerNetwork.Send(cryptSVR.encrypt(UserInput));
+					fetched = ServerNetwork.ReceiveByte();
+					ServerResponse = cryptSVR.decrypt(fetched);
+					if (flagJob && (ServerResponse != null)) {
+						Batch = new ArrayList<String[]>();
+						if (ServerResponse.length() > 0) {
+							Batch = SplitBatch(ServerResponse, BatchSize);
+						}
+					}
+				}
 				if (ServerResponse == null) {
 					mylog.out("WARN", "Server disconected");
 					serverUp = false;
@@ -173,189 +266,59 @@ public class Client {
 
 			// If this is the client receiving a job from the server
 			if (flagJob) {
-				if (ServerResponse.length() > 0) {
-					// Print out the job the server has passed us (the client)
-					System.out.println("JobIn:[" + ServerResponse + "]");
-
-					// Adjust the job so it can properly run (Windows clients
-					// require some padding at the front)
-					if (OS.contains("Windows")) {
-						// Pad the job with the required Windows shell
-						ServerResponse = "cmd /C " + ServerResponse;
-					}
-
-					try {
-						/*
-						 * Some of the code in this section is from the
-						 * following URL http://www.javaworld
-						 * .com/jw-12-2000/jw-1229-traps.html?page=4
-						 * 
-						 * It provides a simple way of calling external code
-						 * while still capturing all of the output (STD and
-						 * STDERR)
-						 * 
-						 * @author Michael C. Daconta
-						 */
-
-						// Setup and Connect
-						ArrayList<String> ErrorData = new ArrayList<String>();
-						ArrayList<String> OutputData = new ArrayList<String>();
-						Runtime rt = Runtime.getRuntime();
-						Process proc = rt.exec(ServerResponse);
-
-						// Capture all STDERR
-						StreamGobbler errorGobbler = new StreamGobbler(proc.getErrorStream(), "ERROR");
-						errorGobbler.start();
-
-						// Capture all STDOUT
-						StreamGobbler outputGobbler = new StreamGobbler(proc.getInputStream(), "OUTPUT");
-						outputGobbler.start();
-
-						// Wait for the work to complete
-						int CheckExit = 0;
-						try {
-							CheckExit = proc.waitFor();
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
+				if (!Batch.isEmpty()) {
+					// Run the job (or each job in the batch) and report it done
+					boolean DropOffUp = true;
+					for (int scan = 0; scan < Batch.size(); scan++) {
+						String[] job = Batch.get(scan);
+						// Print out the job the server has passed us (the client)
+						System.out.println("JobIn:[" + job[1] + "]");
 
-						// Send the results to the Drop Off point
-						DropOffNetwork.Send(cryptDO.encrypt("workdone"));
-						// Make sure the drop off point is ready
-						dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-						if (!dec.equals("NEXT")) {
-							mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec
-									+ ")");
+						int ran = RunJob(job[1], OS, HeartbeatSeconds);
+						if (ran < 0) {
+							DropOffUp = false;
 							break;
+						} else if (ran == 0) {
+							// Not signed off, so the lease runs out and the
+							// server hands the job out again
+							mylog.out("WARN", "Drop Off did not keep the results, leaving the job to be requeued");
+							continue;
 						}
 
-						// Send the job that was done to the server
-						DropOffNetwork.Send(cryptDO.encrypt(ServerResponse));
-
-						if (CheckExit != 0) {
-							System.out.println("Program did not exit normally. Exit value: " + CheckExit);
-							// Aggregate data
-							ErrorData = errorGobbler.ReturnData();
-
-							// Make sure the drop off point is ready
-							dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-							if (!dec.equals("NEXT")) {
-								mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec
-										+ ")");
-								break;
-							}
-
-							// If there are any error lines to record
-							int ErrorLineCount = errorGobbler.GetSize();
-							DropOffNetwork.Send(cryptDO.encrypt(Integer.toString(ErrorLineCount)));
-							if (ErrorLineCount > 0) {
-								for (String line : ErrorData) {
-									// Make sure the drop off point is ready
-									dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-									if (!dec.equals("NEXT")) {
-										mylog.out("INFO",
-												"Drop Off did NOT acknowledge readiness for the next segment (" + dec
-														+ ")");
-										break;
-									}
-									DropOffNetwork.Send(cryptDO.encrypt(line));
-								}
-							}
-
-							// Make sure the drop off point is ready
-							dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-							if (!dec.equals("NEXT")) {
-								mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec
-										+ ")");
-								break;
-							}
-
-							// No output lines
-							DropOffNetwork.Send(cryptDO.encrypt("0"));
+						// Inform the Server that the work has been completed.
+						// An automatic client asks for its next work right
+						// behind the last sign off (in the same write) rather
+						// than after its answer. The server takes them in
+						// order, so the signed off job no longer counts
+						// against the batch.
+						if ((ServerRequests != null) && (!ClientUI) && (scan == Batch.size() - 1)) {
+							int done = ServerRequests.Queue(SignOffRequest(job[0]));
+							NextJobs = AskForJobs(ClientID, OS, SecLev, LongPollSeconds, BatchSize);
+							Message reply = ServerRequests.Await(done);
+							ServerResponse = (reply == null) ? null : reply.NextText();
 						} else {
-							// Aggregate data
-							ErrorData = errorGobbler.ReturnData();
-							OutputData = outputGobbler.ReturnData();
-
-							// Make sure the drop off point is ready
-							dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-							if (!dec.equals("NEXT")) {
-								mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec
-										+ ")");
-								break;
-							}
-
-							// If there are any error lines to record
-							int ErrorLineCount = errorGobbler.GetSize();
-							DropOffNetwork.Send(cryptDO.encrypt(Integer.toString(ErrorLineCount)));
-							if (ErrorLineCount > 0) {
-								for (String line : ErrorData) {
-									// Make sure the drop off point is ready
-									dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-									if (!dec.equals("NEXT")) {
-										mylog.out("INFO",
-												"Drop Off did NOT acknowledge readiness for the next segment (" + dec
-														+ ")");
-										break;
-									}
-									DropOffNetwork.Send(cryptDO.encrypt(line));
-								}
-							}
-
-							// Make sure the drop off point is ready
-							dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-							if (!dec.equals("NEXT")) {
-								mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec
-										+ ")");
-								break;
-							}
-
-							// If there are any output lines to record
-							int OutputLineCount = outputGobbler.GetSize();
-							DropOffNetwork.Send(cryptDO.encrypt(Integer.toString(OutputLineCount)));
-							if (OutputLineCount > 0) {
-								for (String line : OutputData) {
-									// Make sure the drop off point is ready
-									dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-									if (!dec.equals("NEXT")) {
-										mylog.out("INFO",
-												"Drop Off did NOT acknowledge readiness for the next segment (" + dec
-														+ ")");
-										break;
-									}
-									DropOffNetwork.Send(cryptDO.encrypt(line));
-								}
-							}
+							ServerResponse = SignOff(job[0]);
 						}
-
-						// Make sure the drop off point acknowledges readiness
-						dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
-						if (dec.equals("Acknowledged")) {
-							mylog.out("INFO", "Drop Off acknowledges job recipt");
-						} else {
-							mylog.out("INFO", "Drop Off did NOT acknowledge job recipt (" + dec + ")");
+						if (ServerResponse == null) {
+							mylog.out("WARN", "Server disconected");
+							serverUp = false;
+							break;
 						}
-					} catch (IOException e) {
-						e.printStackTrace();
+						System.out.println(ServerResponse);
 					}
-
-					// Inform the Server that the work has been completed
-					UserInput = "workdone";
-					ServerNetwork.Send(cryptSVR.encrypt(UserInput));
-					fetched = ServerNetwork.ReceiveByte();
-					ServerResponse = cryptSVR.decrypt(fetched);
-					if (ServerResponse == null) {
-						mylog.out("WARN", "Server disconected");
-						serverUp = false;
+					if (!DropOffUp || !serverUp) {
 						break;
 					}
-					System.out.println(ServerResponse);
 				} else {
 					System.out.println("Job:[No jobs available]");
 
 					// If we are running in an automatic mode, and there are no
-					// jobs, sleep for a bit
-					if (!ClientUI) {
+					// jobs, sleep for a bit. A server that held the request
+					// already waited for us, but one that answered well
+					// before the wait was up does not hold requests.
+					boolean held = (LongPollSeconds > 0)
+							&& ((System.currentTimeMillis() - AskedAt) >= (LongPollSeconds * 500L));
+					if ((!ClientUI) && (!held)) {
 						// Between 20 an 40 seconds, pseudo random distribution
 						int SleepFor = ((20 + (int) (Math.random() * 20)) * 1000);
 						try {
@@ -383,12 +346,19 @@ public class Client {
 			// Check input for special commands
 			if ((UserInput.contains("rekey")) && serverUp) {
 				UserInput = "";
-				DHrekey(ServerNetwork, cryptSVR, "Server");
-				DHrekey(DropOffNetwork, cryptDO, "Drop Off");
+				Rekey();
 				Current = 0;
 			} else if (UserInput.contains("job")) {
 				flagJob = true; // Flags the use of a slightly different display
 				UserInput = "job" + ":" + ClientID + ":" + OS + ":" + SecLev;
+				if (LongPollSeconds > 0) {
+					// Let the server hold the request until there is work
+					UserInput = "jobwait:" + LongPollSeconds + ":" + ClientID + ":" + OS + ":" + SecLev;
+				}
+				if (BatchSize > 1) {
+					// Ask for up to BatchSize jobs at once
+					UserInput = UserInput + ":" + BatchSize;
+				}
 			} else if (UserInput.contains("help")) {
 				// Do not send anything, a help request stays local
 				noSend = true;
@@ -397,8 +367,7 @@ public class Client {
 
 			// Check for forced rekey interval
 			if (Current == MaxBeforeREKEY) {
-				DHrekey(ServerNetwork, cryptSVR, "Server");
-				DHrekey(DropOffNetwork, cryptDO, "Drop Off");
+				Rekey();
 				Current = 0;
 			} else {
 				Current++;
@@ -406,7 +375,11 @@ public class Client {
 		}
 
 		if ((UserInput.compareToIgnoreCase("quit") == 0) && serverUp) {
-			ServerNetwork.Send(cryptSVR.encrypt("quit"));
+			if (ServerRequests != null) {
+				ServerRequests.Post(ServerRequests.Request(Message.QUIT));
+			} else {
+				ServerNetwork.Send(cryptSVR.encrypt("quit"));
+			}
 			DropOffNetwork.Send(cryptDO.encrypt("quit"));
 		}
 
@@ -422,6 +395,458 @@ public class Client {
 		mylog.out("INFO", "Client terminated");
 	}
 
+	/**
+	 * Runs a single job and hands its results to the Drop Off point. Returns 1
+	 * if the Drop Off kept them, 0 if it refused them (the job is not to be
+	 * signed off) and -1 if it stopped following the upload protocol.
+	 * 
+	 * @param Job
+	 * @param OS
+	 * @param HeartbeatSeconds
+	 * @return
+	 */
+	private int RunJob(String Job, String OS, int HeartbeatSeconds) {
+		// Adjust the job so it can properly run (Windows clients
+		// require some padding at the front)
+		if (OS.contains("Windows")) {
+			// Pad the job with the required Windows shell
+			Job = "cmd /C " + Job;
+		}
+
+		LeaseHeartbeat heartbeat = null;
+		try {
+			/*
+			 * Some of the code in this section is from the
+			 * following URL http://www.javaworld
+			 * .com/jw-12-2000/jw-1229-traps.html?page=4
+			 * 
+			 * It provides a simple way of calling external code
+			 * while still capturing all of the output (STD and
+			 * STDERR)
+			 * 
+			 * @author Michael C. Daconta
+			 */
+
+			// Setup and Connect
+			ArrayList<String> ErrorData = new ArrayList<String>();
+			ArrayList<String> OutputData = new ArrayList<String>();
+			Runtime rt = Runtime.getRuntime();
+			Process proc = rt.exec(Job);
+
+			// Keep the lease on this job alive until the results
+			// have been handed to the Drop Off point
+			if (HeartbeatSeconds > 0) {
+				heartbeat = new LeaseHeartbeat(mylog, ServerNetwork, cryptSVR, HeartbeatSeconds, ServerRequests);
+				heartbeat.start();
+			}
+
+			// Stream the results to the Drop Off point while the job runs
+			// unless it only knows the uploads made once the job is done
+			if (StreamUpload) {
+				int opened = OpenStream(Job);
+				if (opened < 0) {
+					proc.destroy();
+					return -1;
+				} else if (opened > 0) {
+					return StreamJob(proc);
+				}
+				mylog.out("INFO", "Drop Off does not take streamed uploads, sending results once the job is done");
+				StreamUpload = false;
+			}
+
+			// Capture all STDERR
+			StreamGobbler errorGobbler = new StreamGobbler(proc.getErrorStream(), "ERROR");
+			errorGobbler.start();
+
+			// Capture all STDOUT
+			StreamGobbler outputGobbler = new StreamGobbler(proc.getInputStream(), "OUTPUT");
+			outputGobbler.start();
+
+			// Wait for the work to complete
+			int CheckExit = 0;
+			try {
+				CheckExit = proc.waitFor();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+
+			// Let the gobblers finish reading what the job left behind
+			try {
+				errorGobbler.join();
+				outputGobbler.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+
+			// Aggregate data (output is only kept if the job exited normally)
+			ErrorData = errorGobbler.ReturnData();
+			if (CheckExit != 0) {
+				System.out.println("Program did not exit normally. Exit value: " + CheckExit);
+			} else {
+				OutputData = outputGobbler.ReturnData();
+			}
+
+			// Send the results to the Drop Off point, in bulk unless it only
+			// knows the line by line upload
+			if (BulkUpload) {
+				int sent = SendBulk(Job, ErrorData, OutputData);
+				if (sent < 0) {
+					return -1;
+				} else if (sent > 0) {
+					return AwaitCommit();
+				}
+				mylog.out("INFO", "Drop Off does not take bulk uploads, sending results line by line");
+				BulkUpload = false;
+			}
+			if (!SendLines(Job, ErrorData, OutputData)) {
+				return -1;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (heartbeat != null) {
+				heartbeat.Halt();
+			}
+		}
+
+		return 1;
+	}
+
+	/**
+	 * Uploads a jobs results to the Drop Off point in large chunks, only
+	 * waiting when the Drop Off has not granted credit for more, and commits
+	 * them. Returns 1 once the commit has been sent (RunJob waits for the
+	 * answer with AwaitCommit), 0 if the Drop Off does not support bulk
+	 * uploads (nothing was sent beyond the request) and -1 if it stopped
+	 * following the protocol.
+	 * 
+	 * @param Job
+	 * @param ErrorData
+	 * @param OutputData
+	 * @return
+	 */
+	private int SendBulk(String Job, ArrayList<String> ErrorData, ArrayList<String> OutputData) {
+		DropOffNetwork.Send(cryptDO.encrypt("bulkdone"));
+		String dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+		if (dec == null) {
+			mylog.out("WARN", "Drop Off disconected");
+			return -1;
+		}
+		if (!dec.startsWith("CREDIT:")) {
+			return 0;
+		}
+		credit = Credit(dec);
+		if (credit < 0) {
+			credit = 0;
+			return -1;
+		}
+
+		// The job, then every error and output line
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream(BULKCHUNK + 1024);
+		chunk.write(SessionProtocol.BULKJOB);
+		byte[] work = Job.getBytes(StandardCharsets.UTF_8);
+		chunk.write(work, 0, work.length);
+		if (!SendChunk(chunk)) {
+			return -1;
+		}
+		if ((!SendLines(SessionProtocol.BULKERROR, ErrorData, chunk))
+				|| (!SendLines(SessionProtocol.BULKOUTPUT, OutputData, chunk))) {
+			return -1;
+		}
+
+		// Commit with the line counts so the Drop Off can check it has them all
+		DropOffNetwork.Send(cryptDO.encrypt(
+				(char) SessionProtocol.BULKCOMMIT + Integer.toString(ErrorData.size()) + ":" + OutputData.size()));
+		return 1;
+	}
+
+	/**
+	 * Packs lines into chunks of the passed kind and sends each as it fills
+	 * 
+	 * @param kind
+	 * @param lines
+	 * @param chunk
+	 * @return
+	 */
+	private boolean SendLines(byte kind, ArrayList<String> lines, ByteArrayOutputStream chunk) {
+		for (String line : lines) {
+			if (chunk.size() == 0) {
+				chunk.write(kind);
+			} else {
+				chunk.write('\n');
+			}
+			byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+			chunk.write(encoded, 0, encoded.length);
+			if ((chunk.size() >= BULKCHUNK) && (!SendChunk(chunk))) {
+				return false;
+			}
+		}
+		return (chunk.size() == 0) || SendChunk(chunk);
+	}
+
+	/**
+	 * Sends a chunk once there is credit for it, then empties it
+	 * 
+	 * @param chunk
+	 * @return
+	 */
+	private boolean SendChunk(ByteArrayOutputStream chunk) {
+		if (!SendSealed(chunk.toByteArray())) {
+			return false;
+		}
+		chunk.reset();
+		return true;
+	}
+
+	/**
+	 * Seals and sends a chunk once there is credit for it (the job streams of
+	 * a streamed upload share the credit). It is sealed only once it can go,
+	 * so the chunks leave in the order they were sealed. The credit is held
+	 * by a ReentrantLock rather than a monitor, as waiting for it reads from
+	 * the network.
+	 * 
+	 * @param chunk
+	 * @return
+	 */
+	private boolean SendSealed(byte[] chunk) {
+		crediting.lock();
+		try {
+			while (credit == 0) {
+				int granted = Credit(cryptDO.decrypt(DropOffNetwork.ReceiveByte()));
+				if (granted < 0) {
+					return false;
+				}
+				credit += granted;
+			}
+			DropOffNetwork.SendSealed(cryptDO, chunk);
+			credit--;
+			return true;
+		} finally {
+			crediting.unlock();
+		}
+	}
+
+	/**
+	 * Returns the chunks granted by a CREDIT reply from the Drop Off, or -1
+	 * (logged) if the reply is anything else
+	 * 
+	 * @param dec
+	 * @return
+	 */
+	private int Credit(String dec) {
+		if ((dec != null) && dec.startsWith("CREDIT:")) {
+			try {
+				int granted = Integer.parseInt(dec.substring(7));
+				if (granted >= 0) {
+					return granted;
+				}
+			} catch (NumberFormatException e) {
+				// Reported below
+			}
+		}
+		mylog.out("INFO", "Drop Off did NOT grant credit for the next chunk (" + dec + ")");
+		return -1;
+	}
+
+	/**
+	 * Starts a streamed upload of a jobs results and sends the job. Returns 1
+	 * if the Drop Off took it, 0 if it does not support streamed uploads
+	 * (nothing was sent beyond the request) and -1 if it stopped following
+	 * the protocol.
+	 * 
+	 * @param Job
+	 * @return
+	 */
+	private int OpenStream(String Job) {
+		DropOffNetwork.Send(cryptDO.encrypt("streamdone"));
+		String dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+		if (dec == null) {
+			mylog.out("WARN", "Drop Off disconected");
+			return -1;
+		}
+		if (!dec.startsWith("CREDIT:")) {
+			return 0;
+		}
+		credit = Credit(dec);
+		if (credit < 0) {
+			credit = 0;
+			return -1;
+		}
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+		chunk.write(SessionProtocol.BULKJOB);
+		byte[] work = Job.getBytes(StandardCharsets.UTF_8);
+		chunk.write(work, 0, work.length);
+		return SendChunk(chunk) ? 1 : -1;
+	}
+
+	/**
+	 * Streams the error and output of a running job to the Drop Off point (see
+	 * SealedOutputStream) and commits them with its exit value once it is
+	 * done. Returns 1 if the Drop Off kept them, 0 if it refused them and -1
+	 * if it stopped following the protocol.
+	 * 
+	 * @param proc
+	 * @return
+	 */
+	private int StreamJob(Process proc) {
+		StreamPump errorPump = new StreamPump(mylog, proc.getErrorStream(), new SealedOutputStream(
+				SessionProtocol.BULKERROR) {
+			protected boolean Deliver(byte[] record) {
+				return SendSealed(record);
+			}
+		});
+		StreamPump outputPump = new StreamPump(mylog, proc.getInputStream(), new SealedOutputStream(
+				SessionProtocol.BULKOUTPUT) {
+			protected boolean Deliver(byte[] record) {
+				return SendSealed(record);
+			}
+		});
+		errorPump.start();
+		outputPump.start();
+
+		// Wait for the work to complete and the pumps to send what it left
+		int CheckExit = 0;
+		try {
+			CheckExit = proc.waitFor();
+			errorPump.join();
+			outputPump.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		if (CheckExit != 0) {
+			System.out.println("Program did not exit normally. Exit value: " + CheckExit);
+		}
+		if (errorPump.IsBroken() || outputPump.IsBroken()) {
+			return -1;
+		}
+
+		// Commit with the exit value so the Drop Off knows whether to keep
+		// the output
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+		chunk.write(SessionProtocol.BULKCOMMIT);
+		byte[] exit = Integer.toString(CheckExit).getBytes(StandardCharsets.UTF_8);
+		chunk.write(exit, 0, exit.length);
+		DropOffNetwork.Send(cryptDO.encrypt(chunk.toByteArray()));
+		return AwaitCommit();
+	}
+
+	/**
+	 * Waits for the Drop Off to acknowledge a committed upload (taking any
+	 * credit granted on the way). Returns 1 if it kept the results, 0 if it
+	 * answered with anything else (it did not keep them) and -1 if it
+	 * disconnected.
+	 * 
+	 * @return
+	 */
+	private int AwaitCommit() {
+		String dec;
+		while ((dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte())) != null) {
+			if (dec.equals("Acknowledged")) {
+				mylog.out("INFO", "Drop Off acknowledges job recipt");
+				return 1;
+			} else if (!dec.startsWith("CREDIT:")) {
+				mylog.out("INFO", "Drop Off did NOT acknowledge job recipt (" + dec + ")");
+				return 0;
+			}
+		}
+		mylog.out("WARN", "Drop Off disconected");
+		return -1;
+	}
+
+	/**
+	 * Uploads a jobs results to the Drop Off point one line at a time, each
+	 * waiting for the Drop Off to ask for the next. Returns false if the Drop
+	 * Off point stopped following the upload protocol.
+	 * 
+	 * @param Job
+	 * @param ErrorData
+	 * @param OutputData
+	 * @return
+	 */
+	private boolean SendLines(String Job, ArrayList<String> ErrorData, ArrayList<String> OutputData) {
+		DropOffNetwork.Send(cryptDO.encrypt("workdone"));
+		// Make sure the drop off point is ready
+		String dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+		if (!dec.equals("NEXT")) {
+			mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec + ")");
+			return false;
+		}
+
+		// Send the job that was done to the server
+		DropOffNetwork.Send(cryptDO.encrypt(Job));
+
+		// Make sure the drop off point is ready
+		dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+		if (!dec.equals("NEXT")) {
+			mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec + ")");
+			return false;
+		}
+
+		// If there are any error lines to record
+		DropOffNetwork.Send(cryptDO.encrypt(Integer.toString(ErrorData.size())));
+		for (String line : ErrorData) {
+			// Make sure the drop off point is ready
+			dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+			if (!dec.equals("NEXT")) {
+				mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec + ")");
+				break;
+			}
+			DropOffNetwork.Send(cryptDO.encrypt(line));
+		}
+
+		// Make sure the drop off point is ready
+		dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+		if (!dec.equals("NEXT")) {
+			mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec + ")");
+			return false;
+		}
+
+		// If there are any output lines to record
+		DropOffNetwork.Send(cryptDO.encrypt(Integer.toString(OutputData.size())));
+		for (String line : OutputData) {
+			// Make sure the drop off point is ready
+			dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+			if (!dec.equals("NEXT")) {
+				mylog.out("INFO", "Drop Off did NOT acknowledge readiness for the next segment (" + dec + ")");
+				break;
+			}
+			DropOffNetwork.Send(cryptDO.encrypt(line));
+		}
+
+		// Make sure the drop off point acknowledges readiness
+		dec = cryptDO.decrypt(DropOffNetwork.ReceiveByte());
+		if (dec.equals("Acknowledged")) {
+			mylog.out("INFO", "Drop Off acknowledges job recipt");
+		} else {
+			mylog.out("INFO", "Drop Off did NOT acknowledge job recipt (" + dec + ")");
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the servers answer to a job request into [JobID, job] pairs. A
+	 * batch answer has one "JobID:job" per line; a single job answer (batch
+	 * size of 1) is just the job itself and has no JobID.
+	 * 
+	 * @param Response
+	 * @param BatchSize
+	 * @return
+	 */
+	private ArrayList<String[]> SplitBatch(String Response, int BatchSize) {
+		ArrayList<String[]> Batch = new ArrayList<String[]>();
+		if (BatchSize <= 1) {
+			Batch.add(new String[] { null, Response });
+			return Batch;
+		}
+		for (String line : Response.split("\n")) {
+			int split = line.indexOf(':');
+			if (split > 0) {
+				Batch.add(new String[] { line.substring(0, split), line.substring(split + 1) });
+			}
+		}
+		return Batch;
+	}
+
 	/**
 	 * Reads input provided by the user, returns a string
 	 * 
@@ -458,95 +883,131 @@ public class Client {
 	}
 
 	/**
-	 * Starts a DH rekey between the client and the server
+	 * Asks the server if it takes binary requests
+	 * 
+	 * @param network
+	 * @param crypt
+	 * @return
 	 */
-	private void DHrekey(Networking network, Crypto crypt, String ReKeyedWith) {
-		// Prep
-		byte[] fetched = null;
-		String ServerResponse = null;
+	private boolean AskBinary(Networking network, Crypto crypt) {
+		network.Send(crypt.encrypt("<BINARY>"));
+		String dec = crypt.decrypt(network.ReceiveByte());
+		if ("<BINARY>".equals(dec)) {
+			mylog.out("INFO", "Sending binary requests to the Server");
+			return true;
+		}
+		mylog.out("INFO", "The Server only takes text requests");
+		return false;
+	}
 
-		// Create a DH instance and generate a PRIME and BASE
-		DH myDH = new DH(mylog);
-
-		// Share data with the server
-		network.Send(crypt.encrypt("<REKEY>"));
-		RecieveACK(network, crypt); // Wait for ACK
-		network.Send(crypt.encrypt("<PRIME>"));
-		RecieveACK(network, crypt); // Wait for ACK
-		network.Send(crypt.encrypt(myDH.GetPrime(16)));
-		RecieveACK(network, crypt); // Wait for ACK
-		network.Send(crypt.encrypt("<BASE>"));
-		RecieveACK(network, crypt); // Wait for ACK
-		network.Send(crypt.encrypt(myDH.GetBase(16)));
-		RecieveACK(network, crypt); // Wait for ACK
-
-		// Validate server agrees with what has been sent
-		fetched = network.ReceiveByte();
-		SendACK(network, crypt); // Send ACK
-		ServerResponse = crypt.decrypt(fetched);
-		if (ServerResponse.compareToIgnoreCase("<REKEY-STARTING>") != 0) {
-			mylog.out("ERROR", ReKeyedWith + " has failed to acknowledge re-keying!");
-		}
-
-		// Phase 1 of DH
-		myDH.DHPhase1();
-
-		// Send my public DH key to SERVER
-		network.Send(crypt.encrypt("<PUBLICKEY>"));
-		RecieveACK(network, crypt); // Wait for ACK
-		network.Send(crypt.encrypt(myDH.GetPublicKeyBF()));
-		RecieveACK(network, crypt); // Wait for ACK
-
-		// Validate server agrees with what has been sent
-		fetched = network.ReceiveByte();
-		SendACK(network, crypt); // Send ACK
-		ServerResponse = crypt.decrypt(fetched);
-		if (ServerResponse.compareToIgnoreCase("<PubKey-GOOD>") != 0) {
-			mylog.out("ERROR", ReKeyedWith + " has failed to acknowledge client public key!");
-		}
-
-		// Receive server public DH key
-		byte[] serverPublicKey = null;
-		fetched = network.ReceiveByte();
-		SendACK(network, crypt); // Send ACK(); //Send ACK
-		ServerResponse = crypt.decrypt(fetched);
-		if (ServerResponse.compareToIgnoreCase("<PUBLICKEY>") != 0) {
-			mylog.out("ERROR", ReKeyedWith + " has failed to send its public key!");
-		} else {
-			fetched = network.ReceiveByte();
-			SendACK(network, crypt); // Send ACK(); //Send ACK
-			serverPublicKey = crypt.decryptByte(fetched);
-			network.Send(crypt.encrypt("<PubKey-GOOD>"));
-			RecieveACK(network, crypt); // Wait for ACK
+	/**
+	 * Sends the server a binary request for work without waiting for the
+	 * answer, returns the request ID to collect it with (see CollectJobs)
+	 * 
+	 * @param ClientID
+	 * @param OS
+	 * @param SecLev
+	 * @param WaitSeconds
+	 * @param BatchSize
+	 * @return
+	 */
+	private int AskForJobs(String ClientID, String OS, String SecLev, int WaitSeconds, int BatchSize) {
+		return ServerRequests.Send(ServerRequests.Request(Message.JOB).Add(WaitSeconds).Add(ClientID).Add(OS)
+				.Add(Integer.parseInt(SecLev)).Add(BatchSize));
+	}
+
+	/**
+	 * Waits for the answer to a request for work, returns the JobID and job of
+	 * each job assigned (none if there was no work) or null if the server went
+	 * away
+	 * 
+	 * @param RequestID
+	 * @return
+	 */
+	private ArrayList<String[]> CollectJobs(int RequestID) {
+		Message reply = ServerRequests.Await(RequestID);
+		if (reply == null) {
+			return null;
+		}
+		ArrayList<String[]> Batch = new ArrayList<String[]>();
+		if (reply.GetOpcode() != Message.JOBS) {
+			mylog.out("WARN", "Server refused the job request (" + reply.NextText() + ")");
+			return Batch;
+		}
+		int count = reply.NextInt();
+		for (int scan = 0; (scan < count) && reply.IsIntact(); scan++) {
+			int JobID = reply.NextInt();
+			String work = reply.NextText();
+			Batch.add(new String[] { Integer.toString(JobID), work });
+		}
+		if (!reply.IsIntact()) {
+			mylog.out("ERROR", "Server sent a broken job list");
+			Batch.clear();
 		}
+		return Batch;
+	}
 
-		// Use server DH public key to generate shared secret
-		myDH.DHPhase2(myDH.CraftPublicKey(serverPublicKey), ReKeyedWith);
+	/**
+	 * Tells the server a job is done (every job held if JobID is null),
+	 * returns the servers answer or null if it went away
+	 * 
+	 * @param JobID
+	 * @return
+	 */
+	private String SignOff(String JobID) {
+		if (ServerRequests != null) {
+			Message reply = ServerRequests.Call(SignOffRequest(JobID));
+			return (reply == null) ? null : reply.NextText();
+		}
+		if (JobID == null) {
+			ServerNetwork.Send(cryptSVR.encrypt("workdone"));
+		} else {
+			ServerNetwork.Send(cryptSVR.encrypt("workdone:" + JobID));
+		}
+		return cryptSVR.decrypt(ServerNetwork.ReceiveByte());
+	}
 
-		// Final verification
-		// System.out.println("Shared Secret (Hex): " +
-		// myDH.GetSharedSecret(10));
-		crypt.ReKey(myDH.GetSharedSecret(10), ReKeyedWith);
+	/**
+	 * Builds the binary sign off for a job (every job held if JobID is null)
+	 * 
+	 * @param JobID
+	 * @return
+	 */
+	private Message SignOffRequest(String JobID) {
+		return ServerRequests.Request(Message.WORKDONE).Add((JobID == null) ? -1 : Integer.parseInt(JobID));
 	}
 
 	/**
-	 * Provides message synchronization
+	 * Rekeys with the server and the drop off. The rekey is an exchange of its
+	 * own on each connection, so a job request still in flight is answered
+	 * first (and its jobs kept for the next turn).
 	 */
-	private void SendACK(Networking network, Crypto crypt) {
-		network.Send(crypt.encrypt("<ACK>"));
-		if (crypt.decrypt(network.ReceiveByteACK()).compareToIgnoreCase("<ACK>") != 0) {
-			mylog.out("ERROR", "Partner failed to ACK");
+	private void Rekey() {
+		if (NextJobs != 0) {
+			FetchedJobs = CollectJobs(NextJobs);
+			NextJobs = 0;
 		}
+		rekeyer.Rekey(ServerNetwork, cryptSVR, "Server");
+		rekeyer.Rekey(DropOffNetwork, cryptDO, "Drop Off");
 	}
 
 	/**
-	 * Provides message synchronization
+	 * Asks the other end to compress messages, switching compression on if it
+	 * agrees
+	 * 
+	 * @param network
+	 * @param crypt
+	 * @param level
+	 * @param Target
 	 */
-	private void RecieveACK(Networking network, Crypto crypt) {
-		if (crypt.decrypt(network.ReceiveByteACK()).compareToIgnoreCase("<ACK>") != 0) {
-			mylog.out("ERROR", "Partner failed to ACK");
+	private void Compression(Networking network, Crypto crypt, int level, String Target) {
+		network.Send(crypt.encrypt("<COMPRESS>"));
+		String dec = crypt.decrypt(network.ReceiveByte());
+		if ("<COMPRESS>".equals(dec)) {
+			crypt.EnableCompression(level);
+		} else {
+			mylog.out("INFO", "The " + Target + " declined compression, messages are sent as is");
 		}
-		network.Send(crypt.encrypt("<ACK>"));
 	}
 }
 
@@ -592,3 +1053,130 @@ class StreamGobbler extends Thread {
 		return Collect;
 	}
 }
+
+/**
+ * Copies what a running job writes to one of its streams into a
+ * SealedOutputStream, closing it (which sends the last record) once the job
+ * closes its end. If the stream can not be sent the rest is still read and
+ * dropped, so the job never blocks on a full pipe.
+ * 
+ * @author Cole Christie
+ * 
+ */
+class StreamPump extends Thread {
+	private Logging mylog;
+	private InputStream source;
+	private SealedOutputStream target;
+	private boolean broken;
+
+	StreamPump(Logging passedLog, InputStream passedSource, SealedOutputStream passedTarget) {
+		mylog = passedLog;
+		source = passedSource;
+		target = passedTarget;
+		broken = false;
+		setDaemon(true);
+	}
+
+	public void run() {
+		byte[] buffer = new byte[8192];
+		OutputStream sink = target;
+		try {
+			int read;
+			while ((read = source.read(buffer)) >= 0) {
+				if (sink != null) {
+					try {
+						sink.write(buffer, 0, read);
+					} catch (IOException e) {
+						mylog.out("WARN", "Stopped streaming job results [" + e.getMessage() + "]");
+						broken = true;
+						sink = null;
+					}
+				}
+			}
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to read the jobs results [" + e.getMessage() + "]");
+		}
+		if (sink != null) {
+			try {
+				sink.close();
+			} catch (IOException e) {
+				mylog.out("WARN", "Stopped streaming job results [" + e.getMessage() + "]");
+				broken = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the results could not all be sent
+	 * 
+	 * @return
+	 */
+	public boolean IsBroken() {
+		return broken;
+	}
+}
+
+/**
+ * Periodically tells the server that the job this client is running is still
+ * being worked on, so its lease does not expire. With binary requests the
+ * heartbeats share the server connection with whatever else is in flight,
+ * otherwise it only runs while the main client thread is not using it.
+ * 
+ * @author Cole Christie
+ * 
+ */
+class LeaseHeartbeat extends Thread {
+	private Logging mylog;
+	private Networking network;
+	private Crypto crypt;
+	private int IntervalSeconds;
+	private Multiplexer requests; // Null when the server only takes text
+	private CountDownLatch stop;
+
+	LeaseHeartbeat(Logging passedLog, Networking passedNetwork, Crypto passedCrypt, int passedInterval,
+			Multiplexer passedRequests) {
+		mylog = passedLog;
+		network = passedNetwork;
+		crypt = passedCrypt;
+		IntervalSeconds = passedInterval;
+		requests = passedRequests;
+		stop = new CountDownLatch(1);
+		setDaemon(true);
+	}
+
+	public void run() {
+		try {
+			while (!stop.await(IntervalSeconds, TimeUnit.SECONDS)) {
+				String response;
+				if (requests != null) {
+					Message reply = requests.Call(requests.Request(Message.HEARTBEAT));
+					response = (reply == null) ? null : reply.NextText();
+				} else {
+					network.SendSealed(crypt, "heartbeat".getBytes(StandardCharsets.UTF_8));
+					response = crypt.decrypt(network.ReceiveByte());
+				}
+				if (response == null) {
+					mylog.out("WARN", "Server disconected during heartbeat");
+					break;
+				} else if (!response.equals("Lease Extended")) {
+					mylog.out("WARN", "Server did not extend the job lease (" + response + ")");
+				}
+			}
+		} catch (InterruptedException e) {
+			mylog.out("ERROR", "Heartbeat interrupted");
+		}
+	}
+
+	/**
+	 * Stops the heartbeat and waits for any exchange in progress to finish so
+	 * the server connection is free for the caller
+	 */
+	public void Halt() {
+		stop.countDown();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			mylog.out("ERROR", "Failed to wait for the heartbeat to stop");
+		}
+	}
+}
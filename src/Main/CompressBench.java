@@ -0,0 +1,195 @@
+package Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Wire compression benchmark. Pushes job output through Crypto the way a
+ * client uploads it, once per compression level, and reports the bytes that
+ * would go on the wire against the CPU spent sending and receiving them.
+ * Run it with:
+ *
+ * java -Dfile=captured_job_output -Drounds=5 -cp Truss*.jar Main.CompressBench
+ *
+ * Without a file a mix of typical job output (command listings, ping and
+ * build logs) is generated. Each level is measured both line by line (the
+ * original upload) and in 64 KB chunks (the bulk upload). The extra CPU per
+ * KB saved is relative to sending the same data uncompressed, which helps
+ * pick the compress setting for a deployment.
+ *
+ * @author Cole Christie
+ *
+ */
+public class CompressBench {
+	// Deflate levels compared (0 is compression off)
+	private static int[] LEVELS = { 0, 1, 3, 6, 9 };
+	// Lines generated when no file is given
+	private static int LINES = 200000;
+	// Matches the bulk upload chunk size
+	private static int CHUNK = 64 * 1024;
+
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		Logging mylog = new Logging(System.getProperty("loglevel", "ERROR"));
+		String file = System.getProperty("file", "");
+		int rounds = Integer.parseInt(System.getProperty("rounds", "5"));
+
+		List<String> lines;
+		if (file.isEmpty()) {
+			lines = Generate(LINES);
+		} else {
+			lines = Files.readAllLines(new File(file).toPath(), StandardCharsets.UTF_8);
+		}
+		ArrayList<byte[]> messages = new ArrayList<byte[]>();
+		for (String line : lines) {
+			messages.add(line.getBytes(StandardCharsets.UTF_8));
+		}
+		ArrayList<byte[]> chunks = Chunk(messages);
+		long raw = 0;
+		for (byte[] message : messages) {
+			raw += message.length;
+		}
+		System.out.println("Job output: [" + messages.size() + "] lines, [" + (raw / 1024) + "] KB, best of ["
+				+ rounds + "] rounds, messages under [" + Crypto.COMPRESSMIN + "] bytes are not compressed");
+		System.out.println(String.format("%-6s %-5s %12s %8s %10s %10s %14s", "mode", "level", "wire KB", "saved",
+				"send ms", "recv ms", "CPU us/KB saved"));
+
+		for (String mode : new String[] { "line", "bulk" }) {
+			ArrayList<byte[]> sent = mode.equals("line") ? messages : chunks;
+			long[] plain = null;
+			for (int level : LEVELS) {
+				long[] best = null;
+				for (int round = 0; round < rounds; round++) {
+					long[] result = Run(mylog, sent, level);
+					if ((best == null) || ((result[1] + result[2]) < (best[1] + best[2]))) {
+						best = result;
+					}
+				}
+				if (level == 0) {
+					plain = best;
+				}
+				long saved = plain[0] - best[0];
+				String cost = "-";
+				if (saved > 0) {
+					double extra = ((best[1] + best[2]) - (plain[1] + plain[2])) / 1000.0;
+					cost = String.format("%.2f", extra / (saved / 1024.0));
+				}
+				System.out.println(String.format("%-6s %-5d %12d %7.1f%% %10.1f %10.1f %14s", mode, level,
+						best[0] / 1024, (100.0 * saved) / plain[0], best[1] / 1000000.0, best[2] / 1000000.0, cost));
+			}
+		}
+	}
+
+	/**
+	 * Sends the messages through one end of a connection and receives them
+	 * at the other. Returns the bytes on the wire (frame headers included)
+	 * and the CPU nanoseconds spent sending and receiving.
+	 *
+	 * @param mylog
+	 * @param messages
+	 * @param level
+	 * @return
+	 */
+	private static long[] Run(Logging mylog, ArrayList<byte[]> messages, int level) {
+		Crypto sender = new Crypto(mylog, "CompressBench", "Bench");
+		Crypto receiver = new Crypto(mylog, "CompressBench", "Bench");
+		if (level > 0) {
+			sender.EnableCompression(level);
+			receiver.EnableCompression(level);
+		}
+		ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+		long wire = 0;
+		byte[][] encrypted = new byte[messages.size()][];
+		long started = cpu.getCurrentThreadCpuTime();
+		for (int scan = 0; scan < encrypted.length; scan++) {
+			encrypted[scan] = sender.encrypt(messages.get(scan));
+		}
+		long sending = cpu.getCurrentThreadCpuTime() - started;
+		for (byte[] message : encrypted) {
+			wire += Networking.HEADERSIZE + message.length;
+		}
+
+		started = cpu.getCurrentThreadCpuTime();
+		for (int scan = 0; scan < encrypted.length; scan++) {
+			byte[] decrypted = receiver.decryptByte(encrypted[scan]);
+			if ((decrypted == null) || (decrypted.length != messages.get(scan).length)) {
+				throw new IllegalStateException("Message [" + scan + "] did not survive the round trip");
+			}
+		}
+		long receiving = cpu.getCurrentThreadCpuTime() - started;
+		return new long[] { wire, sending, receiving };
+	}
+
+	/**
+	 * Packs lines into newline separated chunks the size of a bulk upload
+	 * chunk
+	 *
+	 * @param messages
+	 * @return
+	 */
+	private static ArrayList<byte[]> Chunk(ArrayList<byte[]> messages) {
+		ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+		StringBuilder chunk = new StringBuilder(CHUNK + 1024);
+		for (byte[] message : messages) {
+			if (chunk.length() > 0) {
+				chunk.append('\n');
+			}
+			chunk.append(new String(message, StandardCharsets.UTF_8));
+			if (chunk.length() >= CHUNK) {
+				chunks.add(chunk.toString().getBytes(StandardCharsets.UTF_8));
+				chunk.setLength(0);
+			}
+		}
+		if (chunk.length() > 0) {
+			chunks.add(chunk.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Generates a mix of typical job output
+	 *
+	 * @param count
+	 * @return
+	 */
+	private static List<String> Generate(int count) {
+		ArrayList<String> lines = new ArrayList<String>(count);
+		Random random = new Random(42);
+		String[] users = { "root", "truss", "daemon", "www-data" };
+		String[] files = { "results.csv", "job.log", "output.bin", "config.xml", "data-set", "archive.tar.gz" };
+		for (int scan = 0; scan < count; scan++) {
+			switch (scan % 3) {
+			case 0:
+				lines.add(String.format("64 bytes from 10.0.%d.%d: icmp_seq=%d ttl=%d time=%.3f ms",
+						random.nextInt(4), random.nextInt(255), scan, 54 + random.nextInt(10),
+						random.nextDouble() * 40));
+				break;
+			case 1:
+				lines.add(String.format("-rw-r--r-- 1 %s %s %9d Oct %2d %02d:%02d %s.%d",
+						users[random.nextInt(users.length)], users[random.nextInt(users.length)],
+						random.nextInt(100000000), 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60),
+						files[random.nextInt(files.length)], random.nextInt(1000)));
+				break;
+			default:
+				lines.add(String.format("[INFO] %02d:%02d:%02d.%03d Processed block %d of %d (%d records, %d rejected)",
+						random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000), scan,
+						count, random.nextInt(5000), random.nextInt(20)));
+				break;
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,181 @@
+package Main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Job queue contention benchmark. Runs a crowd of simulated clients against
+ * one JobManagement, each repeating what a client costs the server and drop
+ * off: it is assigned a job, the job is sent to it, its results are stored and
+ * sealed and it signs the job off. Run it with:
+ *
+ * java -Dclients=1000 -Dcycles=50 -Dsend=200 -cp Truss*.jar Main.ContentionBench
+ *
+ * Sending is simulated by parking the clients thread for send microseconds
+ * (encrypting and writing to a client on the network). "global" is the
+ * original locking (every cycle held one lock shared by all clients from the
+ * assignment until the job was sent, as the JobLock was) and "concurrent" is
+ * JobManagement as it is, with nothing held around the send. The throughput
+ * and the latency of a cycle are reported.
+ *
+ * @author Cole Christie
+ *
+ */
+public class ContentionBench {
+	// Lines of output stored for each job
+	private static int LINES = 20;
+
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int clients = Integer.parseInt(System.getProperty("clients", "1000"));
+		int cycles = Integer.parseInt(System.getProperty("cycles", "50"));
+		long send = Long.parseLong(System.getProperty("send", "200"));
+
+		System.out.println("[" + clients + "] clients, [" + cycles + "] cycles each, sends take [" + send + "] us");
+		System.out.println(String.format("%-10s %10s %12s %10s %10s %10s", "mode", "cycles", "k cycles/s",
+				"p50 ms", "p99 ms", "max ms"));
+		for (String mode : new String[] { "global", "concurrent" }) {
+			long[] latencies = new long[clients * cycles];
+			long elapsed = Run(mode, clients, cycles, send, latencies);
+			Arrays.sort(latencies);
+			System.out.println(String.format("%-10s %10d %12.1f %10.2f %10.2f %10.2f", mode, latencies.length,
+					latencies.length / (elapsed / 1000000000.0) / 1000, Percentile(latencies, 50),
+					Percentile(latencies, 99), latencies[latencies.length - 1] / 1000000.0));
+		}
+	}
+
+	/**
+	 * Runs every client to the end, returns the wall time in nanoseconds and
+	 * fills latencies with the time each cycle took
+	 *
+	 * @param mode
+	 * @param clients
+	 * @param cycles
+	 * @param send
+	 * @param latencies
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private static long Run(final String mode, int clients, final int cycles, final long send,
+			final long[] latencies) throws InterruptedException {
+		final JobManagement JobQueue = new JobManagement();
+		ArrayList<Jobs> jobs = new ArrayList<Jobs>(clients * cycles);
+		for (int scan = 0; scan < clients * cycles; scan++) {
+			jobs.add(new Jobs("job " + scan, "linux", 1));
+		}
+		JobQueue.AddBatch(jobs);
+
+		final byte[] output = Output();
+		final Object JobLock = new Object();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[clients];
+		for (int number = 0; number < clients; number++) {
+			final String name = "client" + number;
+			final int first = number * cycles;
+			threads[number] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int cycle = 0; cycle < cycles; cycle++) {
+						long began = System.nanoTime();
+						String work;
+						if (mode.equals("global")) {
+							synchronized (JobLock) {
+								work = JobQueue.Assign(name, "Linux", 1);
+								Send(send);
+							}
+							synchronized (JobLock) {
+								Store(JobQueue, work, output);
+							}
+							synchronized (JobLock) {
+								JobQueue.Signoff(name);
+							}
+						} else {
+							work = JobQueue.Assign(name, "Linux", 1);
+							Send(send);
+							Store(JobQueue, work, output);
+							JobQueue.Signoff(name);
+						}
+						if (work.isEmpty()) {
+							throw new IllegalStateException(name + " was not assigned a job");
+						}
+						latencies[first + cycle] = System.nanoTime() - began;
+					}
+				}
+			};
+			threads[number].start();
+		}
+
+		long started = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - started;
+		if (JobQueue.CompletedCount() != clients * cycles) {
+			throw new IllegalStateException("Only [" + JobQueue.CompletedCount() + "] results were stored");
+		}
+		return elapsed;
+	}
+
+	/**
+	 * Stands in for encrypting and writing to a client
+	 *
+	 * @param micros
+	 */
+	private static void Send(long micros) {
+		LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+	}
+
+	/**
+	 * Stores and seals the results of a job the way a bulk upload does
+	 *
+	 * @param JobQueue
+	 * @param work
+	 * @param output
+	 */
+	private static void Store(JobManagement JobQueue, String work, byte[] output) {
+		int JobID = JobQueue.SetupResultStorage(work);
+		JobQueue.StoreResultChunk(JobID, output, 0, output.length, "OUTPUT");
+		JobQueue.SealResults(JobID);
+	}
+
+	/**
+	 * Returns the newline separated output stored for every job
+	 *
+	 * @return
+	 */
+	private static byte[] Output() {
+		StringBuilder text = new StringBuilder();
+		for (int line = 0; line < LINES; line++) {
+			if (line > 0) {
+				text.append('\n');
+			}
+			text.append("64 bytes from 10.0.0.1: icmp_seq=" + line + " ttl=64 time=0.045 ms");
+		}
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns a percentile of the sorted latencies in milliseconds
+	 *
+	 * @param sorted
+	 * @param percent
+	 * @return
+	 */
+	private static double Percentile(long[] sorted, int percent) {
+		return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1000000.0;
+	}
+}
@@ -1,41 +1,72 @@
 package Main;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import javax.crypto.Mac;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.SecretKeyFactory;
 
-import org.apache.shiro.codec.CodecSupport;
-import org.apache.shiro.crypto.AesCipherService;
-import org.apache.shiro.crypto.CryptoException;
-
 /**
  * Handles basic encryption decryption
  * 
+ * Messages are sealed with AES-GCM by a CipherEngine kept for the life of the
+ * connection, so each one is authenticated as well as encrypted. The
+ * ByteBuffer forms of encrypt and decrypt work straight between the callers
+ * buffers; the byte[] forms allocate only the array they return.
+ * 
+ * Once both ends have agreed to it (see EnableCompression) every plain text
+ * carries a leading marker byte: STORED is followed by the message as is,
+ * DEFLATED by its four byte length and the raw deflated message. Messages
+ * shorter than COMPRESSMIN, or that deflate does not shrink, are stored.
+ * 
  * @author Cole Christie
  * 
  */
 public class Crypto {
 	private Logging mylog;
-	private AesCipherService cipher;
+	private CipherEngine engine;
 	private byte[] KeyBytes;
+	private Deflater deflater; // Null until compression is enabled
+	private Inflater inflater;
+
+	// Plain text markers (only used once compression is enabled)
+	private static final byte STORED = 0;
+	private static final byte DEFLATED = 1;
+
+	// Messages shorter than this are never compressed
+	static int COMPRESSMIN = 512;
 
 	/**
 	 * CONSTRUCTOR
+	 * 
+	 * @param passedLog
+	 * @param password
+	 * @param Target
+	 *            (the other end, a Crypto talking to a "Client" is the servers
+	 *            or drop offs end)
 	 */
 	public Crypto(Logging passedLog, String password, String Target) {
 		// Setup log
 		mylog = passedLog;
 
 		// Setup cipher
-		cipher = new AesCipherService();
+		engine = new CipherEngine(mylog,
+				Target.equalsIgnoreCase("Client") ? CipherEngine.FROMSERVER : CipherEngine.FROMCLIENT);
 
 		// NEW key setup
-		cipher.setKeySize(128);
-		byte[] salt = CodecSupport.toBytes(password + "ExtraSalty");
+		byte[] salt = (password + "ExtraSalty").getBytes(StandardCharsets.UTF_8);
 		SecretKeyFactory factory = null;
 		try {
 			factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
@@ -50,13 +81,11 @@ public class Crypto {
 			mylog.out("ERROR", "Failed to generate secret key");
 		}
 		KeyBytes = key.getEncoded();
+		engine.SetKey(KeyBytes, false);
 
 		// Log what is active
-		int keySize = cipher.getKeySize();
-		String cryptoAlg = cipher.getAlgorithmName();
-		String cryptoMode = cipher.getModeName();
-		mylog.out("INFO", "Using " + keySize + " bit key with " + cryptoAlg + " in " + cryptoMode
-				+ " mode to encrypt communication with the " + Target + ".");
+		mylog.out("INFO", "Using " + (KeyBytes.length * 8)
+				+ " bit key with AES in GCM mode to encrypt communication with the " + Target + ".");
 	}
 
 	/**
@@ -65,7 +94,7 @@ public class Crypto {
 	 * @param newPassword
 	 */
 	public void ReKey(String newPassword, String ReKeyedWith) {
-		byte[] salt = CodecSupport.toBytes(newPassword + "ExtraSalty");
+		byte[] salt = (newPassword + "ExtraSalty").getBytes(StandardCharsets.UTF_8);
 		SecretKeyFactory factory = null;
 		try {
 			factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
@@ -80,9 +109,201 @@ public class Crypto {
 			mylog.out("ERROR", "Failed to generate secret key");
 		}
 		KeyBytes = key.getEncoded();
+		engine.SetKey(KeyBytes, true);
 		mylog.out("INFO", "Encryption rekeyed with " + ReKeyedWith);
 	}
 
+	/**
+	 * Rekey's the encryption channel with a key from DeriveRekey
+	 * 
+	 * @param newKey
+	 * @param ReKeyedWith
+	 */
+	public void ReKey(byte[] newKey, String ReKeyedWith) {
+		KeyBytes = newKey.clone();
+		engine.SetKey(KeyBytes, true);
+		mylog.out("INFO", "Encryption rekeyed with " + ReKeyedWith);
+	}
+
+	/**
+	 * Derives the next key, and the confirmation the server sends back, from a
+	 * Diffie Hellman shared secret with HKDF-SHA256 (RFC 5869). The salt is a
+	 * hash of the current key and both public keys, so the new key is bound to
+	 * this exchange and to the key it was made under. Returns the key and the
+	 * confirmation, or null if the JVM lacks SHA-256.
+	 * 
+	 * @param SharedSecret
+	 * @param ClientKey
+	 *            (the clients encoded public key)
+	 * @param ServerKey
+	 *            (the servers encoded public key)
+	 * @return
+	 */
+	public byte[][] DeriveRekey(byte[] SharedSecret, byte[] ClientKey, byte[] ServerKey) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(KeyBytes);
+			digest.update(ClientKey);
+			digest.update(ServerKey);
+			byte[] secret = Hmac(digest.digest(), SharedSecret);
+			byte[] newKey = Expand(secret, "truss rekey key", KeyBytes.length);
+			byte[] confirm = Expand(secret, "truss rekey confirm", 32);
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(confirm, "HmacSHA256"));
+			mac.update(ClientKey);
+			mac.update(ServerKey);
+			return new byte[][] { newKey, mac.doFinal() };
+		} catch (GeneralSecurityException e) {
+			mylog.out("ERROR", "Failed to derive a key from the shared secret [" + e + "]");
+		}
+		return null;
+	}
+
+	/**
+	 * HKDF expand step, returns length bytes of key material for the label
+	 * 
+	 * @param secret
+	 * @param label
+	 * @param length
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	private static byte[] Expand(byte[] secret, String label, int length) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+		byte[] info = label.getBytes(StandardCharsets.UTF_8);
+		byte[] output = new byte[length];
+		byte[] block = new byte[0];
+		for (int filled = 0, counter = 1; filled < length; counter++) {
+			mac.update(block);
+			mac.update(info);
+			mac.update((byte) counter);
+			block = mac.doFinal();
+			System.arraycopy(block, 0, output, filled, Math.min(block.length, length - filled));
+			filled += block.length;
+		}
+		return output;
+	}
+
+	/**
+	 * HMAC-SHA256 of data under key (the HKDF extract step)
+	 * 
+	 * @param key
+	 * @param data
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	private static byte[] Hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(data);
+	}
+
+	/**
+	 * Starts compressing outgoing messages at the passed deflate level (1-9)
+	 * and expecting incoming ones to carry a marker. Both ends of the
+	 * connection must switch at the same message.
+	 * 
+	 * @param level
+	 */
+	public void EnableCompression(int level) {
+		deflater = new Deflater(Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level)), true);
+		inflater = new Inflater(true);
+		mylog.out("INFO", "Messages of " + COMPRESSMIN + " bytes or more are compressed at level " + level);
+	}
+
+	/**
+	 * Returns true once compression has been enabled
+	 * 
+	 * @return
+	 */
+	public boolean IsCompressing() {
+		return deflater != null;
+	}
+
+	/**
+	 * Adds the compression marker to a plain text, deflating it when that is
+	 * worthwhile
+	 * 
+	 * @param plain
+	 * @return
+	 */
+	private byte[] Pack(byte[] plain) {
+		if (plain.length >= COMPRESSMIN) {
+			byte[] packed = new byte[5 + plain.length];
+			int size = 5;
+			synchronized (deflater) {
+				deflater.reset();
+				deflater.setInput(plain);
+				deflater.finish();
+				while ((!deflater.finished()) && (size < packed.length)) {
+					size += deflater.deflate(packed, size, packed.length - size);
+				}
+				if (!deflater.finished()) {
+					size = packed.length;
+				}
+			}
+			if (size < packed.length) {
+				packed[0] = DEFLATED;
+				packed[1] = (byte) (plain.length >>> 24);
+				packed[2] = (byte) (plain.length >>> 16);
+				packed[3] = (byte) (plain.length >>> 8);
+				packed[4] = (byte) plain.length;
+				return Arrays.copyOf(packed, size);
+			}
+		}
+		byte[] stored = new byte[1 + plain.length];
+		stored[0] = STORED;
+		System.arraycopy(plain, 0, stored, 1, plain.length);
+		return stored;
+	}
+
+	/**
+	 * Strips the compression marker from a plain text, inflating it if need
+	 * be. Returns null if the marker or deflated data is broken.
+	 * 
+	 * @param packed
+	 * @return
+	 */
+	private byte[] Unpack(byte[] packed) {
+		if ((packed.length > 0) && (packed[0] == STORED)) {
+			return Arrays.copyOfRange(packed, 1, packed.length);
+		}
+		if ((packed.length < 5) || (packed[0] != DEFLATED)) {
+			mylog.out("WARN", "Message has an unknown compression marker");
+			return null;
+		}
+		int length = ((packed[1] & 0xff) << 24) | ((packed[2] & 0xff) << 16) | ((packed[3] & 0xff) << 8)
+				| (packed[4] & 0xff);
+		if ((length < 0) || (length > Networking.MAXFRAME)) {
+			mylog.out("WARN", "Compressed message claims to be [" + length + "] bytes, ignoring");
+			return null;
+		}
+		byte[] plain = new byte[length];
+		synchronized (inflater) {
+			inflater.reset();
+			inflater.setInput(packed, 5, packed.length - 5);
+			try {
+				int size = 0;
+				while ((size < length) && (!inflater.finished())) {
+					int got = inflater.inflate(plain, size, length - size);
+					if ((got == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					size += got;
+				}
+				if (size != length) {
+					mylog.out("WARN", "Compressed message is truncated");
+					return null;
+				}
+			} catch (DataFormatException e) {
+				mylog.out("WARN", "Compressed message is corrupt");
+				return null;
+			}
+		}
+		return plain;
+	}
+
 	/**
 	 * Simple proof of concept
 	 */
@@ -105,42 +326,60 @@ public class Crypto {
 	}
 
 	/**
-	 * Returns the encrypted ByteSource of a passed plain text string
+	 * Returns the encrypted form of a passed plain text string
 	 * 
 	 * @param plainText
 	 * @return
 	 */
 	public byte[] encrypt(String plainText) {
-		byte[] encrypted = cipher.encrypt(CodecSupport.toBytes(plainText), KeyBytes).getBytes();
-		return encrypted;
+		return encrypt(plainText.getBytes(StandardCharsets.UTF_8));
 	}
 
 	/**
-	 * Returns the encrypted ByteSource of a passed byte[]
+	 * Returns the encrypted form of a passed byte[]
 	 * 
 	 * @param byteArray
 	 * @return
 	 */
 	public byte[] encrypt(byte[] byteArray) {
-		byte[] encrypted = cipher.encrypt(byteArray, KeyBytes).getBytes();
+		if (deflater != null) {
+			byteArray = Pack(byteArray);
+		}
+		byte[] encrypted = new byte[byteArray.length + CipherEngine.OVERHEAD];
+		if (engine.Seal(ByteBuffer.wrap(byteArray), ByteBuffer.wrap(encrypted)) < 0) {
+			return null;
+		}
 		return encrypted;
 	}
 
 	/**
-	 * Returns the decrypted string of a passed encrypted ByteSource
+	 * Encrypts the remaining bytes of plain into encrypted (which needs room
+	 * for CipherEngine.OVERHEAD more bytes), returns the bytes written or -1.
+	 * Only the byte[] forms compress, so this refuses once compression is
+	 * enabled.
 	 * 
-	 * @param plainText
+	 * @param plain
+	 * @param encrypted
+	 * @return
+	 */
+	public int encrypt(ByteBuffer plain, ByteBuffer encrypted) {
+		if (deflater != null) {
+			mylog.out("ERROR", "Compressed messages must be encrypted from a byte[]");
+			return -1;
+		}
+		return engine.Seal(plain, encrypted);
+	}
+
+	/**
+	 * Returns the decrypted string of a passed encrypted message
+	 * 
+	 * @param encryptedText
 	 * @return
 	 */
 	public String decrypt(byte[] encryptedText) {
 		if (encryptedText != null) {
-			String decrypted = "Failed2DECRYPT";
-			try {
-				decrypted = CodecSupport.toString((cipher.decrypt(encryptedText, KeyBytes).getBytes()));
-			} catch (CryptoException err) {
-				mylog.out("WARN", "Failed to decrypt the message. Likely bad PSK.");
-			}
-			return decrypted;
+			byte[] plain = decryptByte(encryptedText);
+			return (plain == null) ? "Failed2DECRYPT" : new String(plain, StandardCharsets.UTF_8);
 		} else {
 			mylog.out("WARN", "Null value passed to decryption, ignoring.");
 			return null;
@@ -149,21 +388,50 @@ public class Crypto {
 	}
 
 	/**
-	 * Returns the decrypted byte[] of a passed encrypted ByteSource
+	 * Returns the decrypted byte[] of a passed encrypted message (null if it
+	 * is not genuine)
 	 * 
-	 * @param plainText
+	 * @param encryptedText
 	 * @return
 	 */
 	public byte[] decryptByte(byte[] encryptedText) {
-		byte[] decrypted = null;
-		try {
-			decrypted = (cipher.decrypt(encryptedText, KeyBytes).getBytes());
-		} catch (CryptoException err) {
+		if ((encryptedText == null) || (encryptedText.length < CipherEngine.OVERHEAD)) {
+			mylog.out("WARN", "Failed to decrypt the message. Likely bad PSK.");
+			return null;
+		}
+		byte[] decrypted = new byte[encryptedText.length - CipherEngine.OVERHEAD];
+		if (engine.Open(ByteBuffer.wrap(encryptedText), ByteBuffer.wrap(decrypted)) < 0) {
 			mylog.out("WARN", "Failed to decrypt the message. Likely bad PSK.");
+			return null;
+		}
+		if (inflater != null) {
+			decrypted = Unpack(decrypted);
 		}
 		return decrypted;
 	}
 
+	/**
+	 * Decrypts the remaining bytes of encrypted into plain (which needs room
+	 * for CipherEngine.OVERHEAD fewer bytes), returns the bytes written or -1
+	 * if the message is not genuine. Only the byte[] forms compress, so this
+	 * refuses once compression is enabled.
+	 * 
+	 * @param encrypted
+	 * @param plain
+	 * @return
+	 */
+	public int decrypt(ByteBuffer encrypted, ByteBuffer plain) {
+		if (inflater != null) {
+			mylog.out("ERROR", "Compressed messages must be decrypted to a byte[]");
+			return -1;
+		}
+		int opened = engine.Open(encrypted, plain);
+		if (opened < 0) {
+			mylog.out("WARN", "Failed to decrypt the message. Likely bad PSK.");
+		}
+		return opened;
+	}
+
 	/**
 	 * Test Diffie Hellman code
 	 */
@@ -0,0 +1,127 @@
+package Main;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.shiro.crypto.AesCipherService;
+
+/**
+ * Message encryption benchmark. Encrypts and decrypts messages of a few sizes
+ * and reports the round trips per second and the bytes allocated per round
+ * trip. Run it with:
+ *
+ * java -Drounds=3 -cp Truss*.jar Main.CryptoBench
+ *
+ * Three ways are compared: "shiro" is the original path (Shiros
+ * AesCipherService in CBC mode, set up afresh by every call), "bytes" is
+ * Crypto.encrypt and Crypto.decryptByte (AES-GCM, see CipherEngine) and
+ * "buffer" is the ByteBuffer forms of the same, working between buffers that
+ * are reused. Each message is checked after its round trip. The garbage
+ * figure needs a HotSpot JVM (it reads the allocation counters of
+ * com.sun.management.ThreadMXBean).
+ *
+ * @author Cole Christie
+ *
+ */
+public class CryptoBench {
+	// Message sizes compared
+	private static int[] SIZES = { 64, 512, 4096, 65536 };
+	// Bytes encrypted per size and round
+	private static long VOLUME = 64L * 1024 * 1024;
+	// Fewest messages per size and round
+	private static int MINMESSAGES = 20000;
+
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Logging mylog = new Logging(System.getProperty("loglevel", "ERROR"));
+		int rounds = Integer.parseInt(System.getProperty("rounds", "3"));
+
+		System.out.println("Best of [" + rounds + "] rounds, encrypt and decrypt per message");
+		System.out.println(String.format("%-6s %8s %10s %12s %10s %12s", "mode", "size", "messages", "k ops/s",
+				"MB/s", "B/message"));
+		for (int size : SIZES) {
+			int messages = (int) Math.max(MINMESSAGES, VOLUME / size);
+			for (String mode : new String[] { "shiro", "bytes", "buffer" }) {
+				Run(mylog, mode, size, messages / 10); // Warm up
+				long[] best = null;
+				for (int round = 0; round < rounds; round++) {
+					long[] result = Run(mylog, mode, size, messages);
+					if ((best == null) || (result[0] < best[0])) {
+						best = result;
+					}
+				}
+				double seconds = best[0] / 1000000000.0;
+				System.out.println(String.format("%-6s %8d %10d %12.1f %10.1f %12d", mode, size, messages,
+						messages / seconds / 1000, ((double) size * messages) / (1024 * 1024) / seconds,
+						best[1] / messages));
+			}
+		}
+	}
+
+	/**
+	 * Encrypts and decrypts the messages, returns the wall time in
+	 * nanoseconds and the bytes allocated
+	 *
+	 * @param mylog
+	 * @param mode
+	 * @param size
+	 * @param messages
+	 * @return
+	 */
+	private static long[] Run(Logging mylog, String mode, int size, int messages) {
+		byte[] payload = new byte[size];
+		Arrays.fill(payload, (byte) 'T');
+		Crypto sender = new Crypto(mylog, "CryptoBench", "Server");
+		Crypto receiver = new Crypto(mylog, "CryptoBench", "Client");
+		AesCipherService cipher = new AesCipherService();
+		byte[] key = cipher.generateNewKey(128).getEncoded();
+		ByteBuffer plain = ByteBuffer.wrap(payload);
+		ByteBuffer sealed = ByteBuffer.allocate(size + CipherEngine.OVERHEAD);
+		ByteBuffer opened = ByteBuffer.allocate(size);
+
+		long started = System.nanoTime();
+		long before = Allocated();
+		for (int scan = 0; scan < messages; scan++) {
+			if (mode.equals("shiro")) {
+				byte[] encrypted = cipher.encrypt(payload, key).getBytes();
+				if (cipher.decrypt(encrypted, key).getBytes().length != size) {
+					throw new IllegalStateException("Round trip lost bytes");
+				}
+			} else if (mode.equals("bytes")) {
+				if (receiver.decryptByte(sender.encrypt(payload)).length != size) {
+					throw new IllegalStateException("Round trip lost bytes");
+				}
+			} else {
+				plain.clear();
+				sealed.clear();
+				opened.clear();
+				sender.encrypt(plain, sealed);
+				sealed.flip();
+				if (receiver.decrypt(sealed, opened) != size) {
+					throw new IllegalStateException("Round trip lost bytes");
+				}
+			}
+		}
+		long allocated = Allocated() - before;
+		return new long[] { System.nanoTime() - started, allocated };
+	}
+
+	/**
+	 * Returns the bytes the current thread has allocated so far (0 if the JVM
+	 * does not count them)
+	 *
+	 * @return
+	 */
+	private static long Allocated() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -24,11 +24,12 @@ import javax.crypto.spec.DHParameterSpec;
  *         http://www.java2s.com/Tutorial
  *         /Java/0490__Security/DiffieHellmanKeyAgreement.htm
  */
-public class DH {
+public class DH implements KeyExchange {
 	private Logging mylog;
 	private BigInteger prime;
 	private BigInteger base;
 	private BigInteger sharedSecret;
+	private byte[] secretBytes;
 	private DHParameterSpec dhParameters;
 	private KeyPairGenerator keyGen;
 	private KeyAgreement keyAgree;
@@ -46,6 +47,15 @@ public class DH {
 		// System.out.println("128 bit Base (Hex): " + GetBase(16));
 	}
 
+	/**
+	 * CONTRUCTOR USES a group handed out by DHParameters
+	 */
+	public DH(Logging passedLog, DHParameterSpec passedParameters) {
+		mylog = passedLog;
+		prime = passedParameters.getP();
+		base = passedParameters.getG();
+	}
+
 	/**
 	 * CONTRUCTOR USES a pre-calculated prime and base
 	 */
@@ -124,6 +134,15 @@ public class DH {
 		return sharedSecret.toString(radix);
 	}
 
+	/**
+	 * Returns the shared secret as the raw bytes the agreement produced
+	 * 
+	 * @return
+	 */
+	public byte[] GetSharedSecretBytes() {
+		return secretBytes;
+	}
+
 	/**
 	 * Returns the public key
 	 * 
@@ -199,17 +218,32 @@ public class DH {
 	}
 
 	/**
-	 * Performs phase 2 of a Diffie Hellmankeying agreement
+	 * Performs phase 2 of a Diffie Hellmankeying agreement, returns false if
+	 * the partners key could not be used (no secret is made)
 	 */
-	public void DHPhase2(PublicKey partnersKey, String ReKeyedWith) {
+	public boolean DHPhase2(PublicKey partnersKey, String ReKeyedWith) {
 		try {
 			keyAgree.doPhase(partnersKey, true);
 		} catch (InvalidKeyException | IllegalStateException e) {
 			mylog.out("ERROR", "Unable to complete keying agreement with " + ReKeyedWith);
+			return false;
 		}
 
 		// Generate shared Secret
-		byte[] secretBYTE = keyAgree.generateSecret();
-		sharedSecret = new BigInteger(secretBYTE);
+		secretBytes = keyAgree.generateSecret();
+		sharedSecret = new BigInteger(secretBytes);
+		return true;
+	}
+
+	/**
+	 * Performs phase 2 with the partners public key in byte form, returns
+	 * false if it could not be used (DHPhase1 must have been run)
+	 */
+	public boolean Agree(byte[] partnersKey, String ReKeyedWith) {
+		PublicKey partner = CraftPublicKey(partnersKey);
+		if (partner == null) {
+			return false;
+		}
+		return DHPhase2(partner, ReKeyedWith);
 	}
 }
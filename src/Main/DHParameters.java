@@ -0,0 +1,170 @@
+package Main;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameterGenerator;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Hands out the Diffie Hellman group (prime and base) a client starts a rekey
+ * with, so a rekey never waits on a prime being searched for.
+ *
+ * FIXED (the default) always hands out the 2048 bit MODP group of RFC 3526
+ * (group 14, base 2), a vetted safe prime that costs nothing to use.
+ *
+ * POOL hands out groups generated on this machine. A background thread keeps
+ * a small pool of them topped up ahead of demand; if a rekey finds the pool
+ * empty it is handed the fixed group rather than waiting.
+ *
+ * A group picked by the other side of a rekey is checked with UnfitPrime and
+ * UnfitBase before it is used. Its size is bounded both ways, so it is
+ * neither weak nor slow enough to hold up the server.
+ *
+ * @author Cole Christie
+ *
+ */
+public class DHParameters {
+	private Logging mylog;
+	private ArrayBlockingQueue<DHParameterSpec> pool; // Null when fixed
+
+	// RFC 3526 2048 bit MODP group (group 14)
+	private static final BigInteger MODP2048 = new BigInteger(
+			"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+			+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+			+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+			+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+			+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+			+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+			+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+			+ "3995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
+	private static final DHParameterSpec FIXED = new DHParameterSpec(MODP2048, BigInteger.valueOf(2));
+
+	// Smallest and largest prime a peer may pick, in bits
+	static final int MINGROUPBITS = 2048;
+	static final int MAXGROUPBITS = 4096;
+	// Certainty asked of the primality test on a prime a peer picked
+	private static int CERTAINTY = 40;
+
+	// Groups the background thread keeps ready, and their size in bits
+	private static int POOLSIZE = 4;
+	private static int POOLBITS = 2048;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedLog
+	 * @param mode
+	 *            (fixed or pool)
+	 */
+	public DHParameters(Logging passedLog, String mode) {
+		mylog = passedLog;
+		pool = null;
+		if ("pool".equalsIgnoreCase(mode)) {
+			pool = new ArrayBlockingQueue<DHParameterSpec>(POOLSIZE);
+			Thread filler = new Thread() {
+				public void run() {
+					Fill();
+				}
+			};
+			filler.setName("DHParameters");
+			filler.setDaemon(true);
+			filler.start();
+			mylog.out("INFO", "Generating a pool of [" + POOLSIZE + "] " + POOLBITS + " bit DH groups for rekeys");
+		} else if (!"fixed".equalsIgnoreCase(mode)) {
+			mylog.out("WARN", "Unknown DH parameter source [" + mode + "], using the fixed group");
+		}
+	}
+
+	/**
+	 * Returns the group to start a rekey with (never blocks)
+	 *
+	 * @return
+	 */
+	public DHParameterSpec Take() {
+		if (pool == null) {
+			return FIXED;
+		}
+		DHParameterSpec parameters = pool.poll();
+		if (parameters == null) {
+			mylog.out("INFO", "The DH group pool is empty, rekeying with the fixed group");
+			return FIXED;
+		}
+		return parameters;
+	}
+
+	/**
+	 * Returns the fixed group
+	 *
+	 * @return
+	 */
+	public static DHParameterSpec Fixed() {
+		return FIXED;
+	}
+
+	/**
+	 * Returns why a prime a peer picked can not be used, or null if it can: it
+	 * must be MINGROUPBITS to MAXGROUPBITS long and prime (the fixed group is
+	 * known to be)
+	 *
+	 * @param prime
+	 * @return
+	 */
+	static String UnfitPrime(BigInteger prime) {
+		int bits = prime.bitLength();
+		if (bits < MINGROUPBITS) {
+			return "a " + bits + " bit group is too small";
+		} else if (bits > MAXGROUPBITS) {
+			return "a " + bits + " bit group is too large";
+		} else if ((!prime.equals(MODP2048)) && (!prime.isProbablePrime(CERTAINTY))) {
+			return "its prime is not prime";
+		}
+		return null;
+	}
+
+	/**
+	 * Returns why a base a peer picked can not be used with the prime, or
+	 * null if it can (it must be from 2 to prime - 2)
+	 *
+	 * @param prime
+	 * @param base
+	 * @return
+	 */
+	static String UnfitBase(BigInteger prime, BigInteger base) {
+		BigInteger two = BigInteger.valueOf(2);
+		if ((base.compareTo(two) < 0) || (base.compareTo(prime.subtract(two)) > 0)) {
+			return "its base is out of range";
+		}
+		return null;
+	}
+
+	/**
+	 * Generates a new group
+	 *
+	 * @param bits
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	static DHParameterSpec Generate(int bits) throws GeneralSecurityException {
+		AlgorithmParameterGenerator generator = AlgorithmParameterGenerator.getInstance("DH");
+		generator.init(bits);
+		return generator.generateParameters().getParameterSpec(DHParameterSpec.class);
+	}
+
+	/**
+	 * Keeps the pool full, waiting while it is
+	 */
+	private void Fill() {
+		while (true) {
+			try {
+				pool.put(Generate(POOLBITS));
+			} catch (GeneralSecurityException e) {
+				mylog.out("ERROR", "Failed to generate a DH group [" + e + "], rekeys use the fixed group");
+				return;
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package Main;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * Handles an X25519 (RFC 7748) elliptic curve Diffie Hellman exchange to
+ * generate a shared secret. There are no group parameters to agree on, a key
+ * pair costs a fraction of a 2048 bit DH one and a public key is its 32 byte
+ * u-coordinate (little endian, as RFC 7748 encodes it).
+ *
+ * @author Cole Christie
+ *
+ */
+public class ECDH implements KeyExchange {
+	private Logging mylog;
+	private KeyPair keyPair;
+	private KeyAgreement keyAgree;
+	private byte[] secretBytes;
+
+	// Bytes in an encoded X25519 public key
+	static final int KEYSIZE = 32;
+
+	/**
+	 * CONSTRUCTOR Generates a key pair, ready to send its public key
+	 *
+	 * @param passedLog
+	 */
+	public ECDH(Logging passedLog) {
+		mylog = passedLog;
+		try {
+			keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+			keyAgree = KeyAgreement.getInstance("X25519");
+			keyAgree.init(keyPair.getPrivate());
+		} catch (NoSuchAlgorithmException e) {
+			mylog.out("ERROR", "There is no X25519 algorithm available.");
+		} catch (InvalidKeyException e) {
+			mylog.out("ERROR", "Unable to calculate a private key for X25519.");
+		}
+	}
+
+	/**
+	 * Returns true if this JVM can run an X25519 exchange
+	 *
+	 * @return
+	 */
+	public static boolean IsAvailable() {
+		try {
+			KeyAgreement.getInstance("X25519");
+			return true;
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the public key in byte form (32 bytes)
+	 *
+	 * @return
+	 */
+	public byte[] GetPublicKeyBF() {
+		BigInteger u = ((XECPublicKey) keyPair.getPublic()).getU();
+		byte[] bigEndian = u.toByteArray();
+		byte[] byteForm = new byte[KEYSIZE];
+		for (int scan = 0; (scan < KEYSIZE) && (scan < bigEndian.length); scan++) {
+			byteForm[scan] = bigEndian[bigEndian.length - 1 - scan];
+		}
+		return byteForm;
+	}
+
+	/**
+	 * Returns a public key built from a passed byte[] (null if it is not 32
+	 * bytes)
+	 *
+	 * @param source
+	 * @return
+	 */
+	public PublicKey CraftPublicKey(byte[] source) {
+		if ((source == null) || (source.length != KEYSIZE)) {
+			mylog.out("ERROR", "Failed to build a public key from the received byte array.");
+			return null;
+		}
+		// Read it little endian, ignoring the top bit as RFC 7748 asks
+		byte[] bigEndian = new byte[KEYSIZE];
+		for (int scan = 0; scan < KEYSIZE; scan++) {
+			bigEndian[scan] = source[KEYSIZE - 1 - scan];
+		}
+		bigEndian[0] &= 0x7f;
+		PublicKey pubKey = null;
+		try {
+			pubKey = KeyFactory.getInstance("X25519")
+					.generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, new BigInteger(1, bigEndian)));
+		} catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+			mylog.out("ERROR", "Failed to build a public key from the received byte array.");
+		}
+		return pubKey;
+	}
+
+	/**
+	 * Agrees a shared secret with the partners public key, returns false if
+	 * the key could not be used (including one of small order, which would
+	 * give an all zero secret)
+	 *
+	 * @param partnersKey
+	 * @param ReKeyedWith
+	 * @return
+	 */
+	public boolean Agree(byte[] partnersKey, String ReKeyedWith) {
+		PublicKey partner = CraftPublicKey(partnersKey);
+		if ((partner == null) || (keyAgree == null)) {
+			return false;
+		}
+		try {
+			keyAgree.doPhase(partner, true);
+			secretBytes = keyAgree.generateSecret();
+		} catch (InvalidKeyException | IllegalStateException e) {
+			mylog.out("ERROR", "Unable to complete keying agreement with " + ReKeyedWith);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the shared secret as the raw bytes the agreement produced
+	 *
+	 * @return
+	 */
+	public byte[] GetSharedSecretBytes() {
+		return secretBytes;
+	}
+}
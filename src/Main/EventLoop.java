@@ -0,0 +1,537 @@
+package Main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread of the NIO server engine. Each loop owns a selector and serves
+ * any number of client connections from it: bytes are read as they arrive,
+ * split into frames, run through the connections SessionProtocol and the
+ * replies written back without ever blocking the thread. A connection that
+ * has replies waiting to be written is not read from until they have gone, so
+ * a client that stops reading cannot make the server buffer without limit. A
+ * connection over its rate limit is likewise set aside (not read from) until
+ * it may make its next request. A frame split over reads is held in a
+ * buffer grown as its bytes arrive, and frames are capped at
+ * Networking.HANDSHAKEFRAME until the client has shown it holds the key, so
+ * a peer announcing large frames costs only what it has sent.
+ *
+ * Connections are handed to a loop by the accepting thread through Register.
+ *
+ * @author Cole Christie
+ *
+ */
+public class EventLoop extends Thread {
+	private Logging mylog;
+	private Auth subject;
+	private JobManagement JobQueue;
+	private boolean ServerMode;
+	private int RateLimit;
+	private int Compress;
+	private Selector selector;
+	private ConcurrentLinkedQueue<Connection> arrivals;
+	private ByteBuffer scratch;
+	private ByteBuffer[] gather; // What a connection has waiting, for one write
+	private ArrayList<byte[]> replies;
+	private ArrayList<Connection> throttled;
+	private ArrayList<Connection> parked;
+	private ConcurrentLinkedQueue<Connection> woken;
+	private long LastSweep;
+
+	// Size of the buffer each read lands in (shared by every connection)
+	private static int BUFFERSIZE = 64 * 1024;
+	// Connections idle this long are closed (matches the threaded engine)
+	private static long IDLELIMIT = 14400000; // 4 hours
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedSubject
+	 * @param passedLog
+	 * @param passedJobQueue
+	 * @param PassedMode
+	 *            (true for a server, false for a drop off)
+	 * @param passedRateLimit
+	 *            (requests per second each client may make, 0 is unlimited)
+	 * @param passedCompress
+	 *            (deflate level offered to clients that ask, 0 declines)
+	 * @param number
+	 * @throws IOException
+	 */
+	public EventLoop(Auth passedSubject, Logging passedLog, JobManagement passedJobQueue, boolean PassedMode,
+			int passedRateLimit, int passedCompress, int number) throws IOException {
+		subject = passedSubject;
+		mylog = passedLog;
+		JobQueue = passedJobQueue;
+		ServerMode = PassedMode;
+		RateLimit = passedRateLimit;
+		Compress = passedCompress;
+		selector = Selector.open();
+		arrivals = new ConcurrentLinkedQueue<Connection>();
+		scratch = ByteBuffer.allocateDirect(BUFFERSIZE);
+		gather = new ByteBuffer[16];
+		replies = new ArrayList<byte[]>();
+		throttled = new ArrayList<Connection>();
+		parked = new ArrayList<Connection>();
+		woken = new ConcurrentLinkedQueue<Connection>();
+		LastSweep = System.currentTimeMillis();
+		setName("EventLoop-" + number);
+		setDaemon(true);
+	}
+
+	/**
+	 * Hands a newly accepted connection to this loop
+	 *
+	 * @param channel
+	 * @param UID
+	 */
+	public void Register(SocketChannel channel, int UID) {
+		arrivals.add(new Connection(channel, UID));
+		selector.wakeup();
+	}
+
+	/**
+	 * Serves the loops connections until interrupted
+	 */
+	public void run() {
+		while (!isInterrupted()) {
+			// Wake in time for the next throttled connection to go again, or
+			// parked job request to give up
+			long timeout = 1000;
+			long now = System.nanoTime();
+			for (Connection conn : throttled) {
+				timeout = Math.min(timeout, Math.max(1, (conn.ResumeAt - now) / 1000000));
+			}
+			for (Connection conn : parked) {
+				timeout = Math.min(timeout, Math.max(1, (conn.session.ParkedUntil() - now) / 1000000));
+			}
+			try {
+				selector.select(timeout);
+			} catch (IOException e) {
+				mylog.out("ERROR", "Event loop failed to select [" + e + "]");
+				break;
+			}
+
+			// Take on new connections
+			Connection arrived;
+			while ((arrived = arrivals.poll()) != null) {
+				Open(arrived);
+			}
+
+			// Serve the ones that are ready
+			Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+			while (ready.hasNext()) {
+				SelectionKey key = ready.next();
+				ready.remove();
+				Connection conn = (Connection) key.attachment();
+				if (key.isValid() && key.isReadable()) {
+					Read(conn);
+				}
+				if (key.isValid() && key.isWritable()) {
+					Flush(conn);
+				}
+			}
+
+			// Answer parked job requests that were woken or have run out of
+			// time
+			Connection wake;
+			while ((wake = woken.poll()) != null) {
+				if (wake.channel.isOpen()) {
+					Answer(wake);
+				}
+			}
+			if (!parked.isEmpty()) {
+				now = System.nanoTime();
+				for (Connection conn : new ArrayList<Connection>(parked)) {
+					if ((!conn.channel.isOpen()) || ((conn.session.ParkedUntil() - now) <= 0)) {
+						Answer(conn);
+					}
+				}
+			}
+
+			// Resume throttled connections whose wait is over (taken out of
+			// the list first, as resuming one can throttle it again)
+			if (!throttled.isEmpty()) {
+				now = System.nanoTime();
+				ArrayList<Connection> due = new ArrayList<Connection>();
+				Iterator<Connection> scan = throttled.iterator();
+				while (scan.hasNext()) {
+					Connection conn = scan.next();
+					if (!conn.channel.isOpen()) {
+						scan.remove();
+					} else if (conn.ResumeAt <= now) {
+						scan.remove();
+						due.add(conn);
+					}
+				}
+				for (Connection conn : due) {
+					Resume(conn);
+				}
+			}
+
+			// Drop connections that have gone quiet
+			now = System.currentTimeMillis();
+			if ((now - LastSweep) >= 1000) {
+				LastSweep = now;
+				for (SelectionKey key : selector.keys()) {
+					Connection conn = (Connection) key.attachment();
+					if ((conn != null) && ((now - conn.LastActive) > IDLELIMIT)) {
+						mylog.out("WARN", "Conection has timed out from inactvitiy. Limit of [" + IDLELIMIT + "ms].");
+						Close(conn);
+					}
+				}
+			}
+		}
+
+		// Shut everything this loop holds
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null) {
+				Close((Connection) key.attachment());
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to close the event loop selector");
+		}
+	}
+
+	/**
+	 * Registers a new connection with the selector
+	 *
+	 * @param conn
+	 */
+	private void Open(Connection conn) {
+		mylog.out("INFO", "Establishing session with client number [" + conn.UID + "]");
+		String ClientIP = conn.channel.socket().getRemoteSocketAddress().toString().replace("/", "");
+		try {
+			conn.channel.configureBlocking(false);
+			conn.channel.socket().setTcpNoDelay(true);
+			conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to register client number [" + conn.UID + "] [" + e + "]");
+			Close(conn);
+			return;
+		}
+		conn.session = new SessionProtocol(subject, mylog, JobQueue, ServerMode, ClientIP, RateLimit,
+				Compress);
+		final Connection parker = conn;
+		conn.session.SetWakeUp(new Runnable() {
+			public void run() {
+				woken.add(parker);
+				selector.wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Gives a parked job request another look for work, sending the answer if
+	 * it is done waiting
+	 *
+	 * @param conn
+	 */
+	private void Answer(Connection conn) {
+		if (!conn.channel.isOpen()) {
+			parked.remove(conn);
+			return;
+		}
+		conn.session.Resume(replies);
+		Queue(conn);
+		if (!conn.session.IsParked()) {
+			parked.remove(conn);
+			Flush(conn);
+		}
+	}
+
+	/**
+	 * Reads whatever has arrived and handles every whole frame in it
+	 *
+	 * @param conn
+	 */
+	private void Read(Connection conn) {
+		scratch.clear();
+		int got;
+		try {
+			got = conn.channel.read(scratch);
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to RECEIVE data byte[] [" + e + "]");
+			got = -1;
+		}
+		if (got < 0) {
+			mylog.out("WARN", "Client disconnected abruptly");
+			Close(conn);
+			return;
+		}
+		conn.LastActive = System.currentTimeMillis();
+		scratch.flip();
+
+		boolean healthy;
+		if (conn.pending == null) {
+			// Usually whole frames, handled straight out of the shared buffer
+			healthy = Parse(conn, scratch);
+			if (healthy && scratch.hasRemaining()) {
+				conn.pending = ByteBuffer.allocate(scratch.remaining());
+				conn.pending.put(scratch);
+			}
+		} else {
+			// Add to the partial frame held from earlier reads, growing it as
+			// bytes arrive rather than to the size its header announces
+			if (conn.pending.remaining() < scratch.remaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(conn.pending.position() + scratch.remaining(),
+						(int) Math.min(conn.needed, conn.pending.capacity() * 2L)));
+				conn.pending.flip();
+				grown.put(conn.pending);
+				conn.pending = grown;
+			}
+			conn.pending.put(scratch);
+			healthy = ParsePending(conn);
+		}
+		if (!healthy) {
+			Close(conn);
+			return;
+		}
+		Flush(conn);
+	}
+
+	/**
+	 * Lets a throttled connection carry on with any requests it already sent
+	 *
+	 * @param conn
+	 */
+	private void Resume(Connection conn) {
+		conn.throttled = false;
+		if ((conn.pending != null) && (!ParsePending(conn))) {
+			Close(conn);
+			return;
+		}
+		Flush(conn);
+	}
+
+	/**
+	 * Handles every whole frame held in the connections pending buffer.
+	 * Returns false if the stream is broken.
+	 *
+	 * @param conn
+	 * @return
+	 */
+	private boolean ParsePending(Connection conn) {
+		conn.pending.flip();
+		boolean healthy = Parse(conn, conn.pending);
+		if (healthy && conn.pending.hasRemaining()) {
+			conn.pending.compact();
+		} else {
+			conn.pending = null;
+		}
+		return healthy;
+	}
+
+	/**
+	 * Handles every whole frame in the buffer, leaving any partial frame (and
+	 * anything held back by the rate limit) in it. Returns false if the stream
+	 * is broken.
+	 *
+	 * @param conn
+	 * @param in
+	 * @return
+	 */
+	private boolean Parse(Connection conn, ByteBuffer in) {
+		conn.needed = Networking.HEADERSIZE;
+		while ((in.remaining() >= Networking.HEADERSIZE) && (!conn.session.IsFinished())) {
+			int length = in.getInt(in.position());
+			int limit = conn.session.IsTrusted() ? Networking.MAXFRAME : Networking.HANDSHAKEFRAME;
+			if ((length < 0) || (length > limit)) {
+				mylog.out("ERROR", "Received a frame of [" + length + "] bytes, the stream is broken");
+				return false;
+			}
+			if (in.remaining() < (Networking.HEADERSIZE + length)) {
+				conn.needed = Networking.HEADERSIZE + length;
+				break;
+			}
+
+			// Set the connection aside if it is asking too fast (only charged
+			// once the whole frame is in, as the threaded engine does)
+			long wait = conn.session.Admit();
+			if (wait > 0) {
+				conn.throttled = true;
+				conn.ResumeAt = System.nanoTime() + wait;
+				throttled.add(conn);
+				break;
+			}
+			in.getInt();
+			byte type = in.get();
+			if (type != Networking.FRAMEDATA) {
+				mylog.out("WARN", "Received a frame of unknown type [" + type + "]");
+			}
+			byte[] fetched = new byte[length];
+			in.get(fetched);
+
+			boolean WasParked = conn.session.IsParked();
+			conn.session.Handle(fetched, replies);
+			Queue(conn);
+			if (conn.session.IsParked() && (!WasParked)) {
+				parked.add(conn);
+			} else if (WasParked && (!conn.session.IsParked())) {
+				parked.remove(conn);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues the replies made for a connection. Each is packed with its header
+	 * into a buffer from the BufferPool, shared by as many replies as fit, so
+	 * queueing a reply allocates nothing; a payload too big for a buffer is
+	 * queued from its own array behind its header.
+	 *
+	 * @param conn
+	 */
+	private void Queue(Connection conn) {
+		for (byte[] reply : replies) {
+			int size = Networking.HEADERSIZE + reply.length;
+			int room = (size <= BufferPool.BUFFERSIZE) ? size : Networking.HEADERSIZE;
+			if ((conn.filling != null) && (conn.filling.remaining() < room)) {
+				Seal(conn);
+			}
+			if (conn.filling == null) {
+				conn.filling = BufferPool.Take();
+			}
+			conn.filling.putInt(reply.length);
+			conn.filling.put(Networking.FRAMEDATA);
+			if (size <= BufferPool.BUFFERSIZE) {
+				conn.filling.put(reply);
+			} else {
+				Seal(conn);
+				conn.outbound.add(ByteBuffer.wrap(reply));
+			}
+		}
+		replies.clear();
+	}
+
+	/**
+	 * Moves the buffer being packed (if any) to the end of those waiting
+	 *
+	 * @param conn
+	 */
+	private void Seal(Connection conn) {
+		if (conn.filling != null) {
+			conn.filling.flip();
+			conn.outbound.add(conn.filling);
+			conn.filling = null;
+		}
+	}
+
+	/**
+	 * Writes as much of the waiting replies as the socket will take, then
+	 * decides whether to wait to write more or to read again. Everything
+	 * waiting goes out in one gathering write rather than a write per buffer,
+	 * and pooled buffers are handed back as soon as they have been written.
+	 *
+	 * @param conn
+	 */
+	private void Flush(Connection conn) {
+		Seal(conn);
+		try {
+			if (!conn.outbound.isEmpty()) {
+				int count = conn.outbound.size();
+				if (gather.length < count) {
+					gather = new ByteBuffer[Math.max(gather.length * 2, count)];
+				}
+				conn.outbound.toArray(gather);
+				conn.channel.write(gather, 0, count);
+				Arrays.fill(gather, 0, count, null);
+				// Anything left is for when the socket will take more
+				while ((!conn.outbound.isEmpty()) && (!conn.outbound.peekFirst().hasRemaining())) {
+					Release(conn.outbound.pollFirst());
+				}
+			}
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to SEND data byte[] [" + e + "]");
+			Close(conn);
+			return;
+		}
+		if (!conn.outbound.isEmpty()) {
+			conn.key.interestOps(SelectionKey.OP_WRITE);
+		} else if (conn.session.IsFinished()) {
+			Close(conn);
+		} else if (conn.throttled) {
+			conn.key.interestOps(0);
+		} else {
+			conn.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Closes a connection and forgets it
+	 *
+	 * @param conn
+	 */
+	private void Close(Connection conn) {
+		if (conn.session != null) {
+			conn.session.Abandon();
+		}
+		if (conn.key != null) {
+			conn.key.cancel();
+		}
+		try {
+			conn.channel.close();
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to close SOCKET within EVENT LOOP");
+		}
+		conn.pending = null;
+		Seal(conn);
+		while (!conn.outbound.isEmpty()) {
+			Release(conn.outbound.pollFirst());
+		}
+	}
+
+	/**
+	 * Hands a written buffer back to the BufferPool if it came from there
+	 * (the direct ones did, the rest wrap a reply)
+	 *
+	 * @param buffer
+	 */
+	private void Release(ByteBuffer buffer) {
+		if (buffer.isDirect()) {
+			BufferPool.Give(buffer);
+		}
+	}
+
+	/**
+	 * Everything the loop holds for one client
+	 */
+	private static class Connection {
+		private SocketChannel channel;
+		private int UID;
+		private SelectionKey key;
+		private SessionProtocol session;
+		private ByteBuffer pending; // Start of a frame still arriving, or null
+		private int needed; // Bytes needed to finish the frame in pending
+		private ArrayDeque<ByteBuffer> outbound; // Ready to write
+		private ByteBuffer filling; // Replies being packed, or null
+		private long LastActive;
+		private boolean throttled;
+		private long ResumeAt; // System.nanoTime() the rate limit lifts
+
+		Connection(SocketChannel passedChannel, int passedUID) {
+			channel = passedChannel;
+			UID = passedUID;
+			key = null;
+			session = null;
+			pending = null;
+			needed = Networking.HEADERSIZE;
+			outbound = new ArrayDeque<ByteBuffer>();
+			filling = null;
+			LastActive = System.currentTimeMillis();
+			throttled = false;
+			ResumeAt = 0;
+		}
+	}
+}
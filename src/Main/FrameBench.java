@@ -0,0 +1,178 @@
+package Main;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Framing benchmark. Sends frames of a few sizes over a loopback connection
+ * and reports the throughput and the garbage made per frame on the sending
+ * and on the receiving thread. Run it with:
+ *
+ * java -Drounds=3 -Dbatch=16 -cp Truss*.jar Main.FrameBench
+ *
+ * Three ways of sending are compared: "copy" is the original path (each frame
+ * copied into a fresh array and written to an unbuffered stream, read back
+ * with a read for the header and one for the payload), "send" is
+ * Networking.Send and "batch" queues frames and flushes every batch of them
+ * in one write. Encryption is left out so only the framing is measured. The
+ * garbage figure needs a HotSpot JVM (it reads the allocation counters of
+ * com.sun.management.ThreadMXBean).
+ *
+ * @author Cole Christie
+ *
+ */
+public class FrameBench {
+	// Payload sizes compared
+	private static int[] SIZES = { 64, 512, 4096, 65536 };
+	// Bytes sent per size and round
+	private static long VOLUME = 64L * 1024 * 1024;
+	// Fewest frames sent per size and round
+	private static int MINFRAMES = 2000;
+
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Logging mylog = new Logging(System.getProperty("loglevel", "ERROR"));
+		int rounds = Integer.parseInt(System.getProperty("rounds", "3"));
+		int batch = Integer.parseInt(System.getProperty("batch", "16"));
+
+		System.out.println("Best of [" + rounds + "] rounds, batches of [" + batch + "] frames");
+		System.out.println(String.format("%-6s %8s %10s %10s %10s %12s %12s", "mode", "payload", "frames",
+				"MB/s", "k frames/s", "send B/frame", "recv B/frame"));
+		for (int size : SIZES) {
+			int frames = (int) Math.max(MINFRAMES, VOLUME / size);
+			for (String mode : new String[] { "copy", "send", "batch" }) {
+				long[] best = null;
+				for (int round = 0; round < rounds; round++) {
+					long[] result = Run(mylog, mode, size, frames, batch);
+					if ((best == null) || (result[0] < best[0])) {
+						best = result;
+					}
+				}
+				double seconds = best[0] / 1000000000.0;
+				System.out.println(String.format("%-6s %8d %10d %10.1f %10.1f %12d %12d", mode, size, frames,
+						((double) size * frames) / (1024 * 1024) / seconds, frames / seconds / 1000,
+						best[1] / frames, best[2] / frames));
+			}
+		}
+	}
+
+	/**
+	 * Sends the frames one way over a fresh loopback connection. Returns the
+	 * wall time in nanoseconds and the bytes allocated by the sending and by
+	 * the receiving thread.
+	 *
+	 * @param mylog
+	 * @param mode
+	 * @param size
+	 * @param frames
+	 * @param batch
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static long[] Run(Logging mylog, final String mode, int size, final int frames, int batch)
+			throws IOException, InterruptedException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		final Socket sending = SocketChannel.open(listener.getLocalAddress()).socket();
+		final Socket receiving = listener.accept().socket();
+		listener.close();
+
+		final Networking out = new Networking(mylog);
+		final Networking in = new Networking(mylog);
+		if (!mode.equals("copy")) {
+			out.BringUp(sending);
+			in.BringUp(receiving);
+		}
+
+		// The receiving end counts what it makes while taking every frame
+		final long[] received = new long[1];
+		Thread receiver = new Thread() {
+			public void run() {
+				long before = Allocated();
+				try {
+					if (mode.equals("copy")) {
+						DataInputStream stream = new DataInputStream(receiving.getInputStream());
+						byte[] header = new byte[Networking.HEADERSIZE];
+						for (int scan = 0; scan < frames; scan++) {
+							stream.readFully(header);
+							byte[] payload = new byte[ByteBuffer.wrap(header).getInt()];
+							stream.readFully(payload);
+						}
+					} else {
+						for (int scan = 0; scan < frames; scan++) {
+							if (in.ReceiveByte() == null) {
+								throw new IOException("Connection closed after [" + scan + "] frames");
+							}
+						}
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException("Receiving failed [" + e + "]");
+				}
+				received[0] = Allocated() - before;
+			}
+		};
+		receiver.start();
+
+		byte[] payload = new byte[size];
+		long started = System.nanoTime();
+		long before = Allocated();
+		if (mode.equals("copy")) {
+			OutputStream stream = sending.getOutputStream();
+			for (int scan = 0; scan < frames; scan++) {
+				ByteBuffer frame = ByteBuffer.allocate(Networking.HEADERSIZE + payload.length);
+				frame.putInt(payload.length);
+				frame.put(Networking.FRAMEDATA);
+				frame.put(payload);
+				stream.write(frame.array());
+			}
+		} else if (mode.equals("send")) {
+			for (int scan = 0; scan < frames; scan++) {
+				out.Send(payload);
+			}
+		} else {
+			for (int scan = 0; scan < frames; scan++) {
+				out.Queue(payload);
+				if (((scan + 1) % batch) == 0) {
+					out.Flush();
+				}
+			}
+			out.Flush();
+		}
+		long sent = Allocated() - before;
+		receiver.join();
+		long elapsed = System.nanoTime() - started;
+
+		sending.close();
+		receiving.close();
+		return new long[] { elapsed, sent, received[0] };
+	}
+
+	/**
+	 * Returns the bytes the current thread has allocated so far (0 if the JVM
+	 * does not count them)
+	 *
+	 * @return
+	 */
+	private static long Allocated() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,315 @@
+package Main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bucketed storage for the unassigned job queue. Jobs are split into one
+ * bucket per OS (windows, linux and any) and each bucket is ordered by
+ * security level, with a FIFO line of jobs per level. Every job is stamped
+ * with a sequence number as it is queued so the oldest job a client is allowed
+ * to run can be picked across buckets and levels. This keeps the same FIFO
+ * fairness as scanning the queue from the front, but only the head of each
+ * eligible level has to be looked at.
+ * 
+ * Each bucket has its own lock, so windows and linux clients only contend with
+ * each other on the any bucket. When more than one bucket is locked they are
+ * always taken in the order windows, linux, any.
+ *
+ * @author Cole Christie
+ *
+ */
+public class JobBuckets {
+	private TreeMap<Integer, ArrayDeque<Jobs>> windows;
+	private TreeMap<Integer, ArrayDeque<Jobs>> linux;
+	private TreeMap<Integer, ArrayDeque<Jobs>> any;
+	private ReentrantLock windowsLock;
+	private ReentrantLock linuxLock;
+	private ReentrantLock anyLock;
+	private AtomicLong TailSequence;
+	private AtomicLong HeadSequence;
+	private AtomicInteger size;
+
+	/**
+	 * Default constructor.
+	 */
+	public JobBuckets() {
+		windows = new TreeMap<Integer, ArrayDeque<Jobs>>();
+		linux = new TreeMap<Integer, ArrayDeque<Jobs>>();
+		any = new TreeMap<Integer, ArrayDeque<Jobs>>();
+		windowsLock = new ReentrantLock();
+		linuxLock = new ReentrantLock();
+		anyLock = new ReentrantLock();
+		TailSequence = new AtomicLong(0);
+		HeadSequence = new AtomicLong(0);
+		size = new AtomicInteger(0);
+	}
+
+	/**
+	 * Returns the number of jobs held in all buckets
+	 *
+	 * @return int
+	 */
+	public int Size() {
+		return size.get();
+	}
+
+	/**
+	 * Adds a job to the back of the queue
+	 *
+	 * @param jobUnit
+	 */
+	public void Add(Jobs jobUnit) {
+		TreeMap<Integer, ArrayDeque<Jobs>> bucket = BucketFor(jobUnit.GetOSspecific());
+		ReentrantLock lock = LockFor(bucket);
+		lock.lock();
+		try {
+			// Stamp under the lock so each line stays in sequence order
+			jobUnit.SetQueueSequence(TailSequence.getAndIncrement());
+			ArrayDeque<Jobs> line = bucket.get(jobUnit.GetSecurityLevel());
+			if (line == null) {
+				line = new ArrayDeque<Jobs>();
+				bucket.put(jobUnit.GetSecurityLevel(), line);
+			}
+			line.addLast(jobUnit);
+			size.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a batch of jobs to the back of the queue in the order given. All
+	 * buckets are locked once for the whole batch so the batch keeps its order
+	 * relative to jobs added by other threads.
+	 * 
+	 * @param batch
+	 */
+	public void AddAll(List<Jobs> batch) {
+		LockAll();
+		try {
+			for (Jobs jobUnit : batch) {
+				jobUnit.SetQueueSequence(TailSequence.getAndIncrement());
+				TreeMap<Integer, ArrayDeque<Jobs>> bucket = BucketFor(jobUnit.GetOSspecific());
+				ArrayDeque<Jobs> line = bucket.get(jobUnit.GetSecurityLevel());
+				if (line == null) {
+					line = new ArrayDeque<Jobs>();
+					bucket.put(jobUnit.GetSecurityLevel(), line);
+				}
+				line.addLast(jobUnit);
+			}
+			size.addAndGet(batch.size());
+		} finally {
+			UnlockAll();
+		}
+	}
+
+	/**
+	 * Puts a job back at the front of the queue (ahead of everything already
+	 * waiting), used when a job has to be handed out again
+	 * 
+	 * @param jobUnit
+	 */
+	public void AddFirst(Jobs jobUnit) {
+		TreeMap<Integer, ArrayDeque<Jobs>> bucket = BucketFor(jobUnit.GetOSspecific());
+		ReentrantLock lock = LockFor(bucket);
+		lock.lock();
+		try {
+			// Head sequence numbers count down from zero so they sort first
+			jobUnit.SetQueueSequence(HeadSequence.decrementAndGet());
+			ArrayDeque<Jobs> line = bucket.get(jobUnit.GetSecurityLevel());
+			if (line == null) {
+				line = new ArrayDeque<Jobs>();
+				bucket.put(jobUnit.GetSecurityLevel(), line);
+			}
+			line.addFirst(jobUnit);
+			size.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest job that can be ran by a client with the
+	 * passed OS and security level. Jobs for "any" OS are always eligible.
+	 * Returns null if there is no such job.
+	 *
+	 * @param OS
+	 * @param SecLev
+	 * @return
+	 */
+	public Jobs Poll(String OS, int SecLev) {
+		if (size.get() == 0) {
+			return null;
+		}
+
+		TreeMap<Integer, ArrayDeque<Jobs>> specific = ClientBucket(OS);
+		if (specific != null) {
+			LockFor(specific).lock();
+		}
+		anyLock.lock();
+		try {
+			// Find the oldest head in the OS specific bucket and the any bucket
+			ArrayDeque<Jobs> best = null;
+			if (specific != null) {
+				best = OldestHead(specific, SecLev, null);
+			}
+			best = OldestHead(any, SecLev, best);
+			if (best == null) {
+				return null;
+			}
+
+			// Pull it and drop the level if that emptied it
+			Jobs jobUnit = best.pollFirst();
+			if (best.isEmpty()) {
+				BucketFor(jobUnit.GetOSspecific()).remove(jobUnit.GetSecurityLevel());
+			}
+			size.decrementAndGet();
+			return jobUnit;
+		} finally {
+			anyLock.unlock();
+			if (specific != null) {
+				LockFor(specific).unlock();
+			}
+		}
+	}
+
+	/**
+	 * Empties every bucket
+	 */
+	public void Clear() {
+		LockAll();
+		try {
+			windows.clear();
+			linux.clear();
+			any.clear();
+			size.set(0);
+		} finally {
+			UnlockAll();
+		}
+	}
+
+	/**
+	 * Returns a copy of every queued job in the order they would be handed out
+	 * (oldest first)
+	 *
+	 * @return
+	 */
+	public ArrayList<Jobs> Snapshot() {
+		ArrayList<Jobs> copy = new ArrayList<Jobs>(size.get());
+		LockAll();
+		try {
+			for (ArrayDeque<Jobs> line : windows.values()) {
+				copy.addAll(line);
+			}
+			for (ArrayDeque<Jobs> line : linux.values()) {
+				copy.addAll(line);
+			}
+			for (ArrayDeque<Jobs> line : any.values()) {
+				copy.addAll(line);
+			}
+		} finally {
+			UnlockAll();
+		}
+		Collections.sort(copy, new Comparator<Jobs>() {
+			public int compare(Jobs a, Jobs b) {
+				return Long.compare(a.GetQueueSequence(), b.GetQueueSequence());
+			}
+		});
+		return copy;
+	}
+
+	/**
+	 * Walks the levels at or below SecLev and returns whichever line has the
+	 * oldest head (or the passed current best if it is older)
+	 *
+	 * @param bucket
+	 * @param SecLev
+	 * @param best
+	 * @return
+	 */
+	private ArrayDeque<Jobs> OldestHead(TreeMap<Integer, ArrayDeque<Jobs>> bucket, int SecLev, ArrayDeque<Jobs> best) {
+		for (Map.Entry<Integer, ArrayDeque<Jobs>> level : bucket.headMap(SecLev, true).entrySet()) {
+			ArrayDeque<Jobs> line = level.getValue();
+			if ((best == null) || (line.peekFirst().GetQueueSequence() < best.peekFirst().GetQueueSequence())) {
+				best = line;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the lock guarding a bucket
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	private ReentrantLock LockFor(TreeMap<Integer, ArrayDeque<Jobs>> bucket) {
+		if (bucket == windows) {
+			return windowsLock;
+		} else if (bucket == linux) {
+			return linuxLock;
+		}
+		return anyLock;
+	}
+
+	/**
+	 * Locks every bucket (in order)
+	 */
+	private void LockAll() {
+		windowsLock.lock();
+		linuxLock.lock();
+		anyLock.lock();
+	}
+
+	/**
+	 * Unlocks every bucket (in reverse order)
+	 */
+	private void UnlockAll() {
+		anyLock.unlock();
+		linuxLock.unlock();
+		windowsLock.unlock();
+	}
+
+	/**
+	 * Maps the OS a job requires to the bucket it is stored in
+	 *
+	 * @param OS
+	 * @return
+	 */
+	private TreeMap<Integer, ArrayDeque<Jobs>> BucketFor(String OS) {
+		String compare = OS.toLowerCase();
+		if (compare.contains("windows")) {
+			return windows;
+		} else if (compare.contains("linux")) {
+			return linux;
+		}
+		return any;
+	}
+
+	/**
+	 * Maps the OS a client reports to the OS specific bucket it may pull from
+	 * (mac clients run linux/unix jobs). Returns null for clients that can only
+	 * run jobs for any OS.
+	 *
+	 * @param OS
+	 * @return
+	 */
+	private TreeMap<Integer, ArrayDeque<Jobs>> ClientBucket(String OS) {
+		String compare = OS.toLowerCase();
+		if (compare.contains("windows")) {
+			return windows;
+		} else if ((compare.contains("linux")) || (compare.contains("mac"))) {
+			return linux;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,536 @@
+package Main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only write-ahead log for the job server queue. Callers
+ * append small binary records; a single writer thread drains everything that
+ * piled up while the previous fsync was running and commits it with one more
+ * write and fsync (group commit), so the cost of an fsync is shared by every
+ * operation that arrived during it.
+ *
+ * The log is split into numbered segments (journal-N.log). A checkpoint
+ * starts a new segment and writes a compact snapshot (snapshot-N.dat) of the
+ * queue as it stood at that cut. Once the snapshot is renamed into place and
+ * the directory synced, older segments and snapshots are deleted. Recovery loads the newest snapshot and replays the segments from
+ * that point on.
+ *
+ * Every record is framed as [int length][int CRC32][body] so a torn write at
+ * the tail of the last segment is detected and ignored.
+ *
+ * A failed write or fsync is final: the writer stops, nothing after the last
+ * good fsync is ever reported durable, AwaitDurable returns false and further
+ * appends are refused, so callers can stop acknowledging changes that would
+ * not survive a restart.
+ *
+ * @author Cole Christie
+ *
+ */
+public class JobJournal extends Thread {
+	// Record types
+	public static final byte LOAD = 1;
+	public static final byte ASSIGN = 2;
+	public static final byte SIGNOFF = 3;
+	public static final byte REQUEUE = 4;
+	public static final byte CLEARQ = 5;
+	public static final byte CLEARS = 6;
+
+	private static final String[] KNOWNOS = { "any", "windows", "linux", "Windows", "Linux" };
+
+	private Logging mylog;
+	private File directory;
+	private FileChannel channel;
+	private int segment;
+	private ReentrantLock lock;
+	private Condition pendingData;
+	private Condition durable;
+	private ReentrantLock channelLock;
+	private ByteArrayOutputStream pending;
+	private long AppendedLSN;
+	private long DurableLSN;
+	private long RecordsSinceCheckpoint;
+	private int HighestJobID;
+	private volatile boolean failed;
+
+	/**
+	 * CONSTRUCTOR Opens (creating if needed) the journal directory. Call
+	 * Recover before starting the writer thread.
+	 */
+	public JobJournal(Logging passedLog, String passedDirectory) throws IOException {
+		mylog = passedLog;
+		directory = new File(passedDirectory);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory [" + passedDirectory + "]");
+		}
+		lock = new ReentrantLock();
+		pendingData = lock.newCondition();
+		durable = lock.newCondition();
+		channelLock = new ReentrantLock();
+		pending = new ByteArrayOutputStream(64 * 1024);
+		AppendedLSN = 0;
+		DurableLSN = 0;
+		RecordsSinceCheckpoint = 0;
+		HighestJobID = 0;
+		failed = false;
+		setName("JobJournal");
+		setDaemon(true);
+	}
+
+	/**
+	 * Rebuilds the queue from the newest snapshot and the segments after it.
+	 * Returns every job that survived in the order it should be queued again
+	 * (jobs that were in flight first, then the unassigned jobs in order). The
+	 * highest JobID seen is available from GetHighestJobID afterwards.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public ArrayList<Jobs> Recover() throws IOException {
+		JournalReplay replay = new JournalReplay();
+		int snapshot = LatestNumber("snapshot-", ".dat");
+		int firstSegment = 0;
+		if (snapshot >= 0) {
+			ReadFile(new File(directory, "snapshot-" + snapshot + ".dat"), replay);
+			firstSegment = snapshot;
+		}
+		ArrayList<Integer> segments = Numbers("journal-", ".log");
+		int replayed = 0;
+		for (int number : segments) {
+			if (number >= firstSegment) {
+				replayed += ReadFile(new File(directory, "journal-" + number + ".log"), replay);
+			}
+		}
+		segment = segments.isEmpty() ? firstSegment : Math.max(firstSegment, segments.get(segments.size() - 1));
+
+		// Always continue in a fresh segment after whatever was on disk
+		segment++;
+		channel = OpenSegment(segment);
+		HighestJobID = replay.HighestJobID();
+		ArrayList<Jobs> recovered = replay.Survivors();
+		mylog.out("INFO", "Journal recovered [" + recovered.size() + "] jobs (snapshot [" + snapshot + "], ["
+				+ replayed + "] log records replayed)");
+		return recovered;
+	}
+
+	/**
+	 * Returns the highest JobID seen during recovery
+	 *
+	 * @return
+	 */
+	public int GetHighestJobID() {
+		return HighestJobID;
+	}
+
+	/**
+	 * Builds a LOAD record
+	 */
+	public static byte[] Load(Jobs jobUnit) {
+		return Encode(LOAD, jobUnit.GetJobID(), jobUnit);
+	}
+
+	/**
+	 * Builds an ASSIGN record
+	 */
+	public static byte[] Assign(Jobs jobUnit) {
+		return Encode(ASSIGN, jobUnit.GetJobID(), null);
+	}
+
+	/**
+	 * Builds a SIGNOFF record
+	 */
+	public static byte[] Signoff(Jobs jobUnit) {
+		return Encode(SIGNOFF, jobUnit.GetJobID(), null);
+	}
+
+	/**
+	 * Builds a REQUEUE record
+	 */
+	public static byte[] Requeue(Jobs jobUnit) {
+		return Encode(REQUEUE, jobUnit.GetJobID(), null);
+	}
+
+	/**
+	 * Builds a CLEARQ or CLEARS record
+	 */
+	public static byte[] Clear(byte type) {
+		return Encode(type, 0, null);
+	}
+
+	/**
+	 * Returns true once a write or fsync has failed
+	 *
+	 * @return
+	 */
+	public boolean IsFailed() {
+		return failed;
+	}
+
+	/**
+	 * Queues a record for the next group commit and returns its log sequence
+	 * number (pass it to AwaitDurable to wait for the fsync), or -1 if the
+	 * journal has failed
+	 *
+	 * @param record
+	 * @return
+	 */
+	public long Append(byte[] record) {
+		lock.lock();
+		try {
+			if (failed) {
+				return -1;
+			}
+			pending.write(record, 0, record.length);
+			AppendedLSN++;
+			RecordsSinceCheckpoint++;
+			pendingData.signal();
+			return AppendedLSN;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until the record with the passed log sequence number is on disk,
+	 * returns false if the journal failed before it got there
+	 *
+	 * @param lsn
+	 * @return
+	 */
+	public boolean AwaitDurable(long lsn) {
+		lock.lock();
+		try {
+			while ((DurableLSN < lsn) && !failed) {
+				durable.awaitUninterruptibly();
+			}
+			return (DurableLSN >= lsn) && (lsn >= 0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until every record appended so far is on disk, returns false if
+	 * the journal failed first
+	 *
+	 * @return
+	 */
+	public boolean Sync() {
+		long lsn;
+		lock.lock();
+		try {
+			lsn = AppendedLSN;
+		} finally {
+			lock.unlock();
+		}
+		return AwaitDurable(lsn);
+	}
+
+	/**
+	 * Returns the number of records appended since the last checkpoint
+	 *
+	 * @return
+	 */
+	public long RecordsSinceCheckpoint() {
+		lock.lock();
+		try {
+			return RecordsSinceCheckpoint;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the current segment and starts the next one. The caller must
+	 * ensure nothing is appended while this runs. Returns the number of the new
+	 * segment; the snapshot for this cut carries the same number.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public int Rotate() throws IOException {
+		long lsn;
+		lock.lock();
+		try {
+			lsn = AppendedLSN;
+			RecordsSinceCheckpoint = 0;
+		} finally {
+			lock.unlock();
+		}
+		if (!AwaitDurable(lsn)) {
+			throw new IOException("The job journal has failed");
+		}
+		channelLock.lock();
+		try {
+			channel.close();
+			segment++;
+			channel = OpenSegment(segment);
+			return segment;
+		} finally {
+			channelLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the snapshot for a cut made by Rotate and then drops the segments
+	 * and snapshots it replaces
+	 *
+	 * @param cut
+	 * @param jobs
+	 *            (in the order they should be queued on recovery)
+	 * @throws IOException
+	 */
+	public void WriteSnapshot(int cut, List<Jobs> jobs) throws IOException {
+		File temp = new File(directory, "snapshot-" + cut + ".tmp");
+		try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteArrayOutputStream block = new ByteArrayOutputStream(1024 * 1024);
+			for (Jobs jobUnit : jobs) {
+				byte[] record = Load(jobUnit);
+				block.write(record, 0, record.length);
+				if (block.size() >= (1024 * 1024)) {
+					WriteFully(out, block.toByteArray());
+					block.reset();
+				}
+			}
+			WriteFully(out, block.toByteArray());
+			out.force(true);
+		}
+		Files.move(temp.toPath(), new File(directory, "snapshot-" + cut + ".dat").toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		SyncDirectory();
+
+		// Everything before the cut is now covered by the snapshot
+		for (int number : Numbers("journal-", ".log")) {
+			if (number < cut) {
+				new File(directory, "journal-" + number + ".log").delete();
+			}
+		}
+		for (int number : Numbers("snapshot-", ".dat")) {
+			if (number < cut) {
+				new File(directory, "snapshot-" + number + ".dat").delete();
+			}
+		}
+		mylog.out("INFO", "Journal checkpoint [" + cut + "] written with [" + jobs.size() + "] jobs");
+	}
+
+	/**
+	 * Forces the directory itself to disk, so the snapshot renamed into it is
+	 * there before anything it replaces is deleted. Where a directory can not
+	 * be opened (Windows) the file system keeps its own metadata in order.
+	 *
+	 * @throws IOException
+	 */
+	private void SyncDirectory() throws IOException {
+		FileChannel dir;
+		try {
+			dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			mylog.out("WARN", "Can not open the journal directory to sync it [" + e + "]");
+			return;
+		}
+		try {
+			dir.force(true);
+		} finally {
+			dir.close();
+		}
+	}
+
+	/**
+	 * Group commit loop (ends if a write or fsync fails)
+	 */
+	public void run() {
+		ByteArrayOutputStream writing = new ByteArrayOutputStream(64 * 1024);
+		while (true) {
+			long target;
+			lock.lock();
+			try {
+				while (pending.size() == 0) {
+					pendingData.awaitUninterruptibly();
+				}
+				// Swap buffers so appenders can keep going during the fsync
+				ByteArrayOutputStream swap = pending;
+				pending = writing;
+				writing = swap;
+				target = AppendedLSN;
+			} finally {
+				lock.unlock();
+			}
+
+			boolean written = false;
+			channelLock.lock();
+			try {
+				WriteFully(channel, writing.toByteArray());
+				channel.force(false);
+				written = true;
+			} catch (IOException e) {
+				mylog.out("FATAL", "Failed to write the job journal, durability is lost [" + e + "]");
+			} finally {
+				channelLock.unlock();
+			}
+			writing.reset();
+
+			lock.lock();
+			try {
+				if (written) {
+					DurableLSN = target;
+				} else {
+					// Whatever was waiting on this write is told it failed
+					failed = true;
+					pending.reset();
+				}
+				durable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (!written) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Encodes a record as [length][crc][type][JobID][job fields if any]
+	 */
+	private static byte[] Encode(byte type, int JobID, Jobs jobUnit) {
+		byte[] os = null;
+		byte[] work = null;
+		int length = 13;
+		if (jobUnit != null) {
+			os = jobUnit.GetOSspecific().getBytes(StandardCharsets.UTF_8);
+			work = jobUnit.GetWork().getBytes(StandardCharsets.UTF_8);
+			length += 12 + os.length + work.length;
+		}
+		byte[] record = new byte[length];
+		ByteBuffer body = ByteBuffer.wrap(record);
+		body.position(8); // Length and CRC are filled in last
+		body.put(type);
+		body.putInt(JobID);
+		if (jobUnit != null) {
+			body.putInt(jobUnit.GetSecurityLevel());
+			body.putInt(os.length);
+			body.put(os);
+			body.putInt(work.length);
+			body.put(work);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record, 8, length - 8);
+		body.putInt(0, length - 8);
+		body.putInt(4, (int) crc.getValue());
+		return record;
+	}
+
+	/**
+	 * Reads every intact record in a file into the replay, stopping at the
+	 * first torn or corrupt record. Returns how many records were read.
+	 */
+	private int ReadFile(File file, JournalReplay replay) throws IOException {
+		byte[] data = Files.readAllBytes(file.toPath());
+		ByteBuffer in = ByteBuffer.wrap(data);
+		int count = 0;
+		while (in.remaining() >= 8) {
+			int length = in.getInt();
+			int expected = in.getInt();
+			if ((length < 5) || (length > in.remaining())) {
+				mylog.out("WARN", "Journal [" + file.getName() + "] ends with a torn record, ignoring it");
+				break;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, in.position(), length);
+			if ((int) crc.getValue() != expected) {
+				mylog.out("WARN", "Journal [" + file.getName() + "] has a corrupt record, ignoring the rest");
+				break;
+			}
+			int end = in.position() + length;
+			byte type = in.get();
+			int JobID = in.getInt();
+			if (type == LOAD) {
+				int SecLev = in.getInt();
+				int osLength = in.getInt();
+				String os = OSName(data, in.position(), osLength);
+				in.position(in.position() + osLength);
+				int workLength = in.getInt();
+				String work = new String(data, in.position(), workLength, StandardCharsets.UTF_8);
+				replay.Load(JobID, new Jobs(work, os, SecLev));
+			} else {
+				replay.Apply(type, JobID);
+			}
+			in.position(end);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Decodes a job OS, sharing one string for each of the usual names rather
+	 * than allocating one per job
+	 */
+	private static String OSName(byte[] data, int offset, int length) {
+		for (String known : KNOWNOS) {
+			if ((known.length() == length) && (known.equals(new String(data, offset, length, StandardCharsets.UTF_8)))) {
+				return known;
+			}
+		}
+		return new String(data, offset, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Opens a segment for appending
+	 */
+	private FileChannel OpenSegment(int number) throws IOException {
+		return FileChannel.open(new File(directory, "journal-" + number + ".log").toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Returns the sorted numbers of every file named prefix + N + suffix
+	 */
+	private ArrayList<Integer> Numbers(String prefix, String suffix) {
+		ArrayList<Integer> numbers = new ArrayList<Integer>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					try {
+						numbers.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+					} catch (NumberFormatException e) {
+						// Not one of ours
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Returns the highest N of every file named prefix + N + suffix (or -1)
+	 */
+	private int LatestNumber(String prefix, String suffix) {
+		ArrayList<Integer> numbers = Numbers(prefix, suffix);
+		return numbers.isEmpty() ? -1 : numbers.get(numbers.size() - 1);
+	}
+
+	/**
+	 * Writes the whole array to the channel
+	 */
+	private static void WriteFully(FileChannel out, byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+}
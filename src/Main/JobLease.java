@@ -0,0 +1,71 @@
+package Main;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single entry in the lease delay queue. The deadline is fixed when the
+ * entry is queued; heartbeats only move the deadline held by the job itself,
+ * so the reaper re-queues an entry when it finds the job was extended.
+ * 
+ * @author Cole Christie
+ * 
+ */
+public class JobLease implements Delayed {
+	private Jobs job;
+	private long Deadline;
+	private long IssuedAt;
+
+	/**
+	 * CONSTRUCTOR
+	 * 
+	 * @param passedJob
+	 * @param passedDeadline
+	 *            (System.nanoTime based)
+	 */
+	public JobLease(Jobs passedJob, long passedDeadline) {
+		job = passedJob;
+		Deadline = passedDeadline;
+		IssuedAt = passedJob.GetTimeIssued();
+	}
+
+	/**
+	 * Returns the leased job
+	 * 
+	 * @return
+	 */
+	public Jobs GetJob() {
+		return job;
+	}
+
+	/**
+	 * Returns the deadline this entry was queued with
+	 * 
+	 * @return
+	 */
+	public long GetDeadline() {
+		return Deadline;
+	}
+
+	/**
+	 * Returns true if the job has been signed off, cleared or issued again
+	 * since this entry was queued
+	 * 
+	 * @return
+	 */
+	public boolean IsStale() {
+		return job.GetTimeIssued() != IssuedAt;
+	}
+
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(Deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	public int compareTo(Delayed other) {
+		if (other instanceof JobLease) {
+			long diff = Deadline - ((JobLease) other).Deadline;
+			return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+		}
+		return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+	}
+}
@@ -1,37 +1,224 @@
 package Main;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
 
 /**
  * Simple job management class. Supports reading jobs (one per line) from a
  * file. Also supports issuing those jobs to clients and a simple expiration
- * system.
+ * system: when leases are enabled every assigned job must be signed off (or
+ * have its lease extended by a heartbeat) before its lease runs out, or it is
+ * put back at the front of the queue.
+ * 
+ * When long polling is enabled a job request that finds nothing can be parked
+ * (see JobWaiters) and is woken as soon as a job it can run is loaded or put
+ * back in the queue.
+ * 
+ * This class is thread safe. Every server thread shares one instance and calls
+ * straight into it; each structure guards itself (striped bucket locks for the
+ * unassigned queue, concurrent maps and queues for the rest) so assignment,
+ * sign off and result storage from different clients run in parallel. Callers
+ * must not hold any lock of their own around network or crypto work.
+ * 
+ * When journaling is enabled every change to the unassigned and assigned
+ * queues is also appended to a write-ahead log (see JobJournal) after it is
+ * made, so the queues can be rebuilt if the server stops. Changes hold the read
+ * side of a cut lock while they update memory and log the change; a checkpoint
+ * takes the write side just long enough to copy the queues and start a new log
+ * segment, so each snapshot matches its log exactly.
+ * 
+ * Loads and clears wait for their records to reach the disk before returning.
+ * Assignments and sign offs do not: the journal writer commits them within one
+ * fsync, so a crash can at worst hand out again a job that was signed off in
+ * the last few milliseconds, which is no worse than a client dying before it
+ * signs off.
+ * 
+ * Once the journal has failed (see JobJournal) nothing more is acknowledged:
+ * loads throw, assignments hand out nothing and sign offs fail, so no client
+ * or operator is told of a change that would not survive a restart.
  * 
  * @author Cole Christie
  * 
  */
 public class JobManagement {
-	private ArrayList<Jobs> jobqueue;
-	private ArrayList<Jobs> jobsent;
-	private ArrayList<Jobs> jobcomplete;
-	private Charset ENCODING = StandardCharsets.UTF_8;
-	private int IDcounter;
+	private JobBuckets jobqueue;
+	private ConcurrentHashMap<Integer, Jobs> jobsent; // Keyed by JobID
+	private ConcurrentHashMap<String, Set<Integer>> jobsentByClient; // JobIDs held by each client, none empty
+	private ResultStore jobcomplete; // Fully received results only
+	private ConcurrentHashMap<Integer, Jobs> jobcompleteIndex; // Results being received, keyed by JobID
+	private boolean CompressResults;
+	private AtomicInteger IDcounter;
+	private DelayQueue<JobLease> leases;
+	private long LeaseNanos; // Zero when leasing is disabled
+	private JobJournal journal; // Null when journaling is disabled
+	private ReentrantReadWriteLock CutLock;
+	private JobWaiters waiters;
+	private int LongPollSeconds; // Zero when long polling is disabled
+
+	// Drops a clients entry from jobsentByClient once it holds nothing, so
+	// the names (one per connection) do not pile up
+	private static final BiFunction<String, Set<Integer>, Set<Integer>> DROPEMPTY =
+			new BiFunction<String, Set<Integer>, Set<Integer>>() {
+				public Set<Integer> apply(String clientsName, Set<Integer> held) {
+					return held.isEmpty() ? null : held;
+				}
+			};
 
 	/**
 	 * Default constructor.
 	 */
 	public JobManagement() {
-		jobqueue = new ArrayList<Jobs>();
-		jobsent = new ArrayList<Jobs>();
-		jobcomplete = new ArrayList<Jobs>();
-		IDcounter = 1;
+		jobqueue = new JobBuckets();
+		jobsent = new ConcurrentHashMap<Integer, Jobs>();
+		jobsentByClient = new ConcurrentHashMap<String, Set<Integer>>();
+		jobcomplete = new ResultStore();
+		jobcompleteIndex = new ConcurrentHashMap<Integer, Jobs>();
+		CompressResults = false;
+		IDcounter = new AtomicInteger(1);
+		leases = new DelayQueue<JobLease>();
+		LeaseNanos = 0;
+		journal = null;
+		CutLock = new ReentrantReadWriteLock();
+		waiters = new JobWaiters();
+		LongPollSeconds = 0;
+	}
+
+	/**
+	 * Turns on leases for assigned jobs and starts the thread that returns
+	 * expired jobs to the queue
+	 * 
+	 * @param passedLog
+	 * @param LeaseSeconds
+	 */
+	public void EnableLeases(Logging passedLog, int LeaseSeconds) {
+		if ((LeaseSeconds <= 0) || (LeaseNanos > 0)) {
+			return;
+		}
+		LeaseNanos = TimeUnit.SECONDS.toNanos(LeaseSeconds);
+		new LeaseReaper(passedLog, leases, this).start();
+	}
+
+	/**
+	 * Lets clients park a job request for up to MaxSeconds when there is
+	 * nothing for them to run
+	 * 
+	 * @param MaxSeconds
+	 */
+	public void EnableLongPoll(int MaxSeconds) {
+		LongPollSeconds = Math.max(0, MaxSeconds);
+	}
+
+	/**
+	 * Returns the longest a job request may be parked for (0 when long polling
+	 * is disabled)
+	 * 
+	 * @return
+	 */
+	public int GetLongPollSeconds() {
+		return LongPollSeconds;
+	}
+
+	/**
+	 * Parks a job request until a job it can run is queued. The caller must
+	 * look at the queue again after parking, a job queued just before it
+	 * parked does not wake it.
+	 * 
+	 * @param waiter
+	 */
+	public void Park(JobWaiter waiter) {
+		waiters.Park(waiter);
+	}
+
+	/**
+	 * Forgets a parked job request
+	 * 
+	 * @param waiter
+	 */
+	public void Unpark(JobWaiter waiter) {
+		waiters.Unpark(waiter);
+	}
+
+	/**
+	 * Returns the number of parked job requests
+	 * 
+	 * @return
+	 */
+	public int ParkedCount() {
+		return waiters.Size();
+	}
+
+	/**
+	 * Turns on the write-ahead journal kept in the passed directory. Anything
+	 * already journaled there is recovered into the queue first (jobs that
+	 * were assigned when the server stopped go back to the front), then a
+	 * checkpoint is taken every CheckpointSeconds. Must be called before any
+	 * client is served.
+	 * 
+	 * @param passedLog
+	 * @param directory
+	 * @param CheckpointSeconds
+	 * @return the number of jobs recovered
+	 * @throws IOException
+	 */
+	public int EnableJournal(Logging passedLog, String directory, int CheckpointSeconds) throws IOException {
+		if (journal != null) {
+			return 0;
+		}
+		JobJournal opened = new JobJournal(passedLog, directory);
+		ArrayList<Jobs> recovered = opened.Recover();
+		if (opened.GetHighestJobID() >= IDcounter.get()) {
+			IDcounter.set(opened.GetHighestJobID() + 1);
+		}
+		jobqueue.AddAll(recovered);
+		opened.start();
+		journal = opened;
+
+		// Fold whatever was replayed into a fresh snapshot right away
+		Checkpoint(true);
+		if (CheckpointSeconds > 0) {
+			new JournalCheckpointer(passedLog, this, CheckpointSeconds).start();
+		}
+		return recovered.size();
+	}
+
+	/**
+	 * Writes a snapshot of the queues and drops the log it replaces. Unless
+	 * forced, nothing is done when no change was logged since the last one.
+	 * 
+	 * @param force
+	 * @throws IOException
+	 */
+	public void Checkpoint(boolean force) throws IOException {
+		if ((journal == null) || ((!force) && (journal.RecordsSinceCheckpoint() == 0))) {
+			return;
+		}
+		ArrayList<Jobs> state;
+		int cut;
+		CutLock.writeLock().lock();
+		try {
+			// In flight jobs first, they are requeued at the front on recovery
+			state = new ArrayList<Jobs>(jobsent.values());
+			Collections.sort(state, new Comparator<Jobs>() {
+				public int compare(Jobs a, Jobs b) {
+					return Long.compare(a.GetTimeIssued(), b.GetTimeIssued());
+				}
+			});
+			state.addAll(jobqueue.Snapshot());
+			cut = journal.Rotate();
+		} finally {
+			CutLock.writeLock().unlock();
+		}
+		journal.WriteSnapshot(cut, state);
 	}
 
 	public void DetailedList(String mode) {
@@ -39,14 +226,19 @@ public class JobManagement {
 		ArrayList<Jobs> TargetList;
 		String TargetName = "";
 		if (mode.equalsIgnoreCase("unassigned")) {
-			TargetList = jobqueue;
+			TargetList = jobqueue.Snapshot();
 			TargetName = "Unassigned List";
 		} else if (mode.equalsIgnoreCase("assigned")) {
-			TargetList = jobsent;
+			TargetList = new ArrayList<Jobs>(jobsent.values());
+			Collections.sort(TargetList, new Comparator<Jobs>() {
+				public int compare(Jobs a, Jobs b) {
+					return Long.compare(a.GetTimeIssued(), b.GetTimeIssued());
+				}
+			});
 			TargetName = "Assigned List";
 		} else if (mode.equalsIgnoreCase("complete")) {
-			TargetList = jobcomplete;
-			TargetName = "Completed List";
+			CompletedList();
+			return;
 		} else {
 			return;
 		}
@@ -65,43 +257,54 @@ public class JobManagement {
 			System.out.printf("%8s|%6s|%-50s%n", "OS", "SecLev", "Job");
 		} else if (mode.equalsIgnoreCase("assigned")) {
 			System.out.printf("%25s|%25s|%8s|%6s|%-50s %n", "Issued To", "Seconds Since Issued", "OS", "SecLev", "Job");
-		} else if (mode.equalsIgnoreCase("complete")) {
-			System.out.printf("%5s|%17s|%17s|%-50s %n", "JobID", "Error Line Count", "Output Line Count", "Job");
 		}
 
 		while (scan < size) {
 			// Load the target an associated data
 			Jobs looking = TargetList.get(scan);
 			String Issued = looking.GetIussed();
-			int JobID = looking.GetJobID();
 			long AssignedOn = looking.GetTimeIssued();
 			long SecondsAgo = ((System.nanoTime() - AssignedOn) / 1000000000);
 			int SecLev = looking.GetSecurityLevel();
 			String OS = looking.GetOSspecific();
 			String ActualJob = looking.GetWork();
-			int ErrorSize = looking.GetErrorListSize();
-			int OutputSize = looking.GetOutputListSize();
 
 			// Display the data
 			if (mode.equalsIgnoreCase("unassigned")) {
 				System.out.printf("%8s|%6s|%-50s%n", OS, SecLev, ActualJob);
 			} else if (mode.equalsIgnoreCase("assigned")) {
 				System.out.printf("%25s|%25s|%8s|%6s|%-50s %n", Issued, SecondsAgo, OS, SecLev, ActualJob);
-			} else if (mode.equalsIgnoreCase("complete")) {
-				System.out.printf("%5s|%17s|%17s|%-50s %n", JobID, ErrorSize, OutputSize, ActualJob);
 			}
 
 			scan++;
 		}
 	}
 
+	/**
+	 * Displays the completed results, whether they are held in memory or have
+	 * been spilled to disk
+	 */
+	private void CompletedList() {
+		ArrayList<ResultStore.Entry> TargetList = jobcomplete.Listing();
+		if (TargetList.isEmpty()) {
+			return;
+		}
+		System.out.println("# Completed List ########################################");
+		System.out.printf("%5s|%17s|%17s|%7s|%-50s %n", "JobID", "Error Line Count", "Output Line Count", "On Disk",
+				"Job");
+		for (ResultStore.Entry looking : TargetList) {
+			System.out.printf("%5s|%17s|%17s|%7s|%-50s %n", looking.GetJobID(), looking.GetErrorCount(),
+					looking.GetOutputCount(), looking.IsSpilled() ? "yes" : "no", looking.GetWork());
+		}
+	}
+
 	/**
 	 * Returns the number of jobs yet to be assigned
 	 * 
 	 * @return int
 	 */
 	public int UnassignedCount() {
-		return jobqueue.size();
+		return jobqueue.Size();
 	}
 
 	/**
@@ -121,7 +324,7 @@ public class JobManagement {
 	 * @return int
 	 */
 	public int CompletedCount() {
-		return jobcomplete.size();
+		return jobcomplete.Size();
 	}
 
 	/**
@@ -131,149 +334,134 @@ public class JobManagement {
 	 * @throws IOException
 	 */
 	public int Load(String filepath) throws IOException {
-		// Setup
-		int AddedCounter = 0;
-		boolean LoadJob = true;
-
-		// Open the file and parse it
-		Path path = Paths.get(filepath);
-		try (Scanner scanner = new Scanner(path, ENCODING.name())) {
-			System.out.printf("%8s|%6s|%-50s%n", "OS", "SecLev", "Job");
-			while (scanner.hasNextLine()) {
-				// Read each line into the array list
-				String line = scanner.nextLine();
-				if (line != null && !line.isEmpty()) {
-					// Parse line
-					String[] parse = line.split(" ", 3);
-
-					// Validate OS
-					String parsedOS = parse[0];
-					if (!((parsedOS.equalsIgnoreCase("any")) || (parsedOS.equalsIgnoreCase("windows")) || (parsedOS
-							.equalsIgnoreCase("linux")))) {
-						// If the OS is NOT "any", "windows" or "linux"...
-						System.out.println("\tOS improperly defined (needs to be \"any\", \"windows\" or \"linux\" ("
-								+ line + ")");
-						LoadJob = false;
-					}
-
-					// Validate SecLev
-					int parsedSecLev = -1;
-					try {
-						parsedSecLev = Integer.parseInt(parse[1]);
-					} catch (NumberFormatException e) {
-						// Do not display a stack trace
-					}
-					if (parsedSecLev < 0) {
-						System.out.println("\tSecurity level improperly formated (" + line + ")");
-						LoadJob = false;
-					}
-
-					// Validate the job
-					String parsedJob = parse[2];
-					if (parsedJob.length() <= 0) {
-						System.out.println("\tNo job was provided (" + line + ")");
-						LoadJob = false;
-					}
-
-					if (LoadJob) {
-						// Display
-						System.out.printf("%8s|%6s|%-50s%n", parsedOS, parsedSecLev, parsedJob);
-
-						// Load
-						Jobs jobUnit = new Jobs(parsedJob, parsedOS, parsedSecLev);
-						jobqueue.add(jobUnit);
-						AddedCounter++;
-					} else {
-						// Reset for the next line
-						LoadJob = true;
-					}
-
-				}
-			}
+		int loaded = new BulkLoader(this).Load(filepath);
+		// Do not report the load until it would survive a restart
+		if (!Sync()) {
+			throw new IOException("The job journal has failed, the [" + loaded + "] jobs loaded would not survive a restart");
 		}
-		return AddedCounter;
+		return loaded;
 	}
 
 	/**
-	 * Saves the job cache to a file
+	 * Adds a batch of jobs to the back of the queue, keeping their order
 	 * 
-	 * @param filepath
-	 * @throws IOException
+	 * @param batch
 	 */
-	public int Save(String filepath) throws IOException {
-		// Setup
-		int size = jobcomplete.size();
-		int SavePointer = 0;
-		
-		// If there is nothing to save, do not create an empty file
-		if (size == 0) {
-			return 0;
+	public void AddBatch(List<Jobs> batch) {
+		for (Jobs jobUnit : batch) {
+			jobUnit.SetJobID(IDcounter.getAndIncrement());
 		}
-		
-		// Open the file
-		PrintWriter writer = new PrintWriter(filepath, "UTF-8");
-
-		// Save each cached set of job results to the file
-		while (SavePointer < size) {
-			// Load the job
-			Jobs looking = jobcomplete.get(0);
-
-			// Extract the data
-			String workDone = looking.GetWork();
-			ArrayList<String> ReturnedErrors = looking.GetErrorList();
-			ArrayList<String> ReturnedOutput = looking.GetOutputList();
-
-			// Write to the file
-			if (SavePointer > 0) {
-				// If there is more than one job to save, provide separators
-				writer.println("##################################################");
-			}
-			// Write job
-			writer.println("Job:" + workDone);
-			// Write out error List
-			for (String line : ReturnedErrors) {
-				writer.println("Error:" + line);
-			}
-			// Write out output List
-			for (String line : ReturnedOutput) {
-				writer.println("Output:" + line);
+		BeginChange();
+		try {
+			jobqueue.AddAll(batch);
+			for (Jobs jobUnit : batch) {
+				Log(JobJournal.Load(jobUnit));
 			}
+		} finally {
+			EndChange();
+		}
+		waiters.Signal(batch);
+	}
 
-			// Remove that job from the list
-			jobcomplete.remove(0);
+	/**
+	 * Removes and returns the oldest fully received result, or null if there
+	 * is none. Used by the result sink to move results out of memory.
+	 * 
+	 * @return
+	 */
+	public Jobs NextCompleted() {
+		return jobcomplete.Poll();
+	}
 
-			SavePointer++;
-		}
+	/**
+	 * Removes and returns the oldest fully received result, waiting up to
+	 * WaitMillis for one to arrive. Returns null if none did.
+	 * 
+	 * @param WaitMillis
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Jobs NextCompleted(long WaitMillis) throws InterruptedException {
+		return jobcomplete.Poll(WaitMillis);
+	}
 
-		writer.println("");
+	/**
+	 * Caps the memory held by completed results, spilling the rest to disk
+	 * 
+	 * @param passedLog
+	 * @param MemoryMB
+	 */
+	public void EnableResultSpill(Logging passedLog, int MemoryMB) {
+		jobcomplete.EnableSpill(passedLog, MemoryMB);
+	}
 
-		// Close the file & return
-		writer.close();
-		return SavePointer;
+	/**
+	 * Deflates the lines of each result as it is sealed (when that helps)
+	 * 
+	 * @param compress
+	 */
+	public void SetResultCompression(boolean compress) {
+		CompressResults = compress;
 	}
 
 	/**
-	 * Sets up to receive the completed work
+	 * Sets up to receive the completed work. The job is not listed or saved
+	 * until SealResults is called for it.
 	 */
 	public int SetupResultStorage(String JobComplete) {
 		Jobs jobUnit = new Jobs(JobComplete);
-		jobcomplete.add(jobUnit);
-		jobUnit.SetJobID(IDcounter);
-		int toReturn = IDcounter;
-		IDcounter++;
+		int toReturn = IDcounter.getAndIncrement();
+		jobUnit.SetJobID(toReturn);
+		jobcompleteIndex.put(toReturn, jobUnit);
 		return toReturn;
 	}
 
+	/**
+	 * Marks the results of a job as fully received, making them visible to
+	 * listing and saving (and free to be spilled to disk)
+	 * 
+	 * @param JobID
+	 */
+	public void SealResults(int JobID) {
+		Jobs jobUnit = jobcompleteIndex.remove(JobID);
+		if (jobUnit != null) {
+			jobUnit.SealResults(CompressResults);
+			jobcomplete.Add(jobUnit);
+		}
+	}
+
+	/**
+	 * Drops the output stored so far for a job whose results are still being
+	 * received (its errors are kept)
+	 * 
+	 * @param JobID
+	 */
+	public void DiscardOutput(int JobID) {
+		Jobs jobUnit = jobcompleteIndex.get(JobID);
+		if (jobUnit != null) {
+			jobUnit.DiscardOutput();
+		}
+	}
+
+	/**
+	 * Drops a job whose results are still being received and will not be
+	 * kept, so none of them are ever listed or saved
+	 * 
+	 * @param JobID
+	 */
+	public void DiscardResults(int JobID) {
+		jobcompleteIndex.remove(JobID);
+	}
+
 	/**
 	 * Saves a line of either ERROR or OUTPUT to a specific job ID
 	 */
 	public void StoreResutls(int JobID, String ToStore, String Type) {
 		// Look for, and load, the job that has that JobID
-		int fetch = JobSearch(JobID, jobcomplete);
-		Jobs jobUnit = jobcomplete.get(fetch);
+		Jobs jobUnit = jobcompleteIndex.get(JobID);
 
 		// If we can find that job...
-		if (fetch >= 0) {
+		if (jobUnit != null) {
 			if (Type.equalsIgnoreCase("ERROR")) {
 				jobUnit.AddToErrorList(ToStore);
 			} else if (Type.equalsIgnoreCase("OUTPUT")) {
@@ -282,208 +470,365 @@ public class JobManagement {
 		}
 	}
 
+	/**
+	 * Saves a chunk of newline separated ERROR or OUTPUT lines (UTF-8) to a
+	 * specific job ID, returns the number of lines saved
+	 * 
+	 * @param JobID
+	 * @param chunk
+	 * @param offset
+	 * @param length
+	 * @param Type
+	 * @return
+	 */
+	public int StoreResultChunk(int JobID, byte[] chunk, int offset, int length, String Type) {
+		Jobs jobUnit = jobcompleteIndex.get(JobID);
+		if (jobUnit == null) {
+			return 0;
+		}
+		if (Type.equalsIgnoreCase("ERROR")) {
+			return jobUnit.AddToErrorList(chunk, offset, length);
+		} else if (Type.equalsIgnoreCase("OUTPUT")) {
+			return jobUnit.AddToOutputList(chunk, offset, length);
+		}
+		return 0;
+	}
+
 	/**
 	 * Populates the job queue with 10 sample jobs for windows based systems
 	 */
 	public void SampleWindows() {
+		ArrayList<Jobs> samples = new ArrayList<Jobs>();
 		for (int loop = 0; loop < 10; loop++) {
-			Jobs jobUnit = new Jobs("time /T", "Windows");
-			jobqueue.add(jobUnit);
+			samples.add(new Jobs("time /T", "Windows"));
 		}
+		AddBatch(samples);
 	}
 
 	/**
 	 * Populates the job queue with 10 sample jobs for linux/unix based systems
 	 */
 	public void SampleLinux() {
+		ArrayList<Jobs> samples = new ArrayList<Jobs>();
 		for (int loop = 0; loop < 10; loop++) {
-			Jobs jobUnit = new Jobs("date", "Linux");
-			jobqueue.add(jobUnit);
+			samples.add(new Jobs("date", "Linux"));
 		}
+		AddBatch(samples);
 	}
 
 	/**
 	 * Populates the job queue with 10 sample jobs for ANY OS
 	 */
 	public void Sample() {
+		ArrayList<Jobs> samples = new ArrayList<Jobs>();
 		for (int loop = 0; loop < 10; loop++) {
-			Jobs jobUnit = new Jobs("java -version");
-			jobqueue.add(jobUnit);
+			samples.add(new Jobs("java -version"));
 		}
+		AddBatch(samples);
 	}
 
 	/**
-	 * Signs off (acknowledges) a job that was assigned to a client has been
-	 * completed
+	 * Signs off (acknowledges) every job assigned to a client as completed
 	 * 
 	 * @param clientsName
-	 * @param OS
-	 * @param SecLev
 	 * @return
 	 */
 	public String Signoff(String clientsName) {
-		int size = jobsent.size();
-		int fetch = 0;
-		if (size > 0) {
-			fetch = JobSearch(clientsName, jobsent);
-
-			// If fetch is 0 or -1 than no jobs have been assigned to that
-			// client
-			if (fetch < 0) {
-				return "Failed";
-			} else {
-				jobsent.remove(fetch); // Remove it from the queue
-				return "Done";
+		Set<Integer> held = jobsentByClient.get(clientsName);
+		int released = 0;
+		if ((held != null) && (!JournalFailed())) {
+			BeginChange();
+			try {
+				for (Integer JobID : held) {
+					Jobs jobUnit = jobsent.get(JobID);
+					if ((jobUnit != null) && Release(jobUnit)) {
+						Log(JobJournal.Signoff(jobUnit));
+						released++;
+					}
+				}
+			} finally {
+				EndChange();
 			}
 		}
-		return "Failed";
+
+		// If nothing was removed than no jobs have been assigned to that client
+		if (released == 0) {
+			return "Failed";
+		}
+		return "Done";
 	}
 
 	/**
-	 * Assigns a job to a client and returns the string contain what that job is
-	 * (what work needs to be done)
+	 * Signs off (acknowledges) a single job assigned to a client as completed
 	 * 
 	 * @param clientsName
-	 * @param OS
-	 * @param SecLev
+	 * @param JobID
 	 * @return
 	 */
-	public String Assign(String clientsName, String OS, int SecLev) {
-		int size = jobqueue.size();
-		if (size > 0) {
-			int fetch = 0;
-			if ((OS.toLowerCase().contains("windows")) || (OS.toLowerCase().contains("linux"))
-					|| (OS.toLowerCase().contains("mac"))) {
-				fetch = JobSearch(OS, SecLev, jobqueue);
-
-				// If fetch is now -1 than no jobs exist for that OS type
-				if (fetch == -1) {
-					return "";
-				}
-			} else {
-				fetch = JobSearch("any", jobqueue);
+	public String Signoff(String clientsName, int JobID) {
+		Jobs jobUnit = jobsent.get(JobID);
 
-				// If fetch is now -1 than no jobs exist for generic clients
-				if (fetch == -1) {
-					return "";
-				}
+		// The job must exist and belong to the client signing it off
+		if ((jobUnit == null) || (!jobUnit.GetIussed().equals(clientsName)) || JournalFailed()) {
+			return "Failed";
+		}
+		BeginChange();
+		try {
+			if (!Release(jobUnit)) {
+				return "Failed";
 			}
+			Log(JobJournal.Signoff(jobUnit));
+		} finally {
+			EndChange();
+		}
+		return "Done";
+	}
 
-			// Safety check
-			int PreventDoubleAssignment = JobSearch(clientsName, jobsent);
-			if (PreventDoubleAssignment >= 0) {
-				// Client ALREADY has an assigned job (do not double assign)
-				return "";
+	/**
+	 * Extends the lease on every job assigned to a client
+	 * 
+	 * @param clientsName
+	 * @return
+	 */
+	public String Heartbeat(String clientsName) {
+		Set<Integer> held = jobsentByClient.get(clientsName);
+		if ((held == null) || (held.isEmpty())) {
+			return "Failed";
+		}
+		if (LeaseNanos > 0) {
+			long deadline = System.nanoTime() + LeaseNanos;
+			for (Integer JobID : held) {
+				Jobs jobUnit = jobsent.get(JobID);
+				if (jobUnit != null) {
+					jobUnit.SetLeaseExpires(deadline);
+				}
 			}
-
-			// If we are here then we have a valid index to work from
-			Jobs jobUnit = jobqueue.get(fetch); // Pull the data at that index
-			jobqueue.remove(fetch); // Remove it from the queue
-			jobUnit.SetIssued(clientsName); // Add who it was issued to
-			jobUnit.SetTimeIssued(); // Update the time issued to now
-			jobsent.add(jobUnit); // Add that data into the issued list
-			String jobWork = jobUnit.GetWork();
-			return jobWork; // Return the extracted data
-		} else {
-			return "";
 		}
+		return "Done";
 	}
 
 	/**
-	 * This is passed the OS to search for and returns the index into the array
-	 * list of the first job that matches that OS or 0 if no jobs exist for that
-	 * OS
+	 * Called by the lease reaper when a lease entry comes due. Returns the job
+	 * to the front of the queue if its lease really has run out, re-queues the
+	 * entry if a heartbeat extended it, and ignores it if the job was already
+	 * signed off or cleared. Returns true if the job was put back in the queue.
 	 * 
-	 * @param OS
+	 * @param expired
 	 * @return
 	 */
-	private int JobSearch(String OS, int SecLev, ArrayList<Jobs> SearchThrough) {
-		int size = SearchThrough.size();
-		int scan = 0;
+	public boolean Expire(JobLease expired) {
+		Jobs jobUnit = expired.GetJob();
+		if (expired.IsStale() || (jobsent.get(jobUnit.GetJobID()) != jobUnit)) {
+			return false;
+		}
 
-		// Simplify searches (remove anything extra that was passed
-		if (OS.toLowerCase().contains("windows")) {
-			OS = "windows";
-		} else if (OS.toLowerCase().contains("linux")) {
-			OS = "linux";
-		} else if (OS.toLowerCase().contains("mac")) {
-			OS = "linux";
+		// Extended by a heartbeat since this entry was queued
+		long deadline = jobUnit.GetLeaseExpires();
+		if (deadline - System.nanoTime() > 0) {
+			leases.add(new JobLease(jobUnit, deadline));
+			return false;
 		}
 
-		while (scan < size) {
-			Jobs looking = SearchThrough.get(scan);
-			// Look for matching OS or jobs that can be ran under any OS
-			if ((looking.GetOSspecific().toLowerCase().contains(OS.toLowerCase()))
-					|| (looking.GetOSspecific().toLowerCase().contains("any"))) {
-				// Make sure the security level is acceptable
-				if (looking.GetSecurityLevel() <= SecLev) {
-					return scan;
-				}
+		// Only requeue it if it is still assigned (not signed off meanwhile)
+		boolean requeued = false;
+		BeginChange();
+		try {
+			if (Release(jobUnit)) {
+				jobUnit.SetIssued("");
+				jobqueue.AddFirst(jobUnit);
+				Log(JobJournal.Requeue(jobUnit));
+				requeued = true;
 			}
-			scan++;
+		} finally {
+			EndChange();
+		}
+		if (requeued) {
+			waiters.Signal(Collections.singletonList(jobUnit));
 		}
-		return -1;
+		return requeued;
 	}
 
 	/**
-	 * This is passed the ClientsID to search for and returns the index into the
-	 * array
+	 * Assigns a job to a client and returns the string contain what that job is
+	 * (what work needs to be done). A client may only hold one job at a time
+	 * through this call.
 	 * 
-	 * @param JobID
+	 * @param clientsName
+	 * @param OS
+	 * @param SecLev
 	 * @return
 	 */
-	private int JobSearch(String ClientID, ArrayList<Jobs> SearchThrough) {
-		int size = SearchThrough.size();
-		int scan = 0;
-
-		while (scan < size) {
-			Jobs looking = SearchThrough.get(scan);
-			// See if the client name matches the search parameter
-			if (looking.GetIussed() == ClientID) {
-				return scan;
-			}
-			scan++;
+	public String Assign(String clientsName, String OS, int SecLev) {
+		ArrayList<Jobs> assigned = AssignBatch(clientsName, OS, SecLev, 1);
+		if (assigned.isEmpty()) {
+			return "";
 		}
-		return -1;
+		return assigned.get(0).GetWork(); // Return the extracted data
 	}
 
 	/**
-	 * This is passed the JobID to search for and returns the index into the
-	 * array
+	 * Assigns jobs to a client until it holds BatchSize jobs (or the queue has
+	 * nothing more it can run) and returns the newly assigned jobs. Each job is
+	 * carries the JobID it was given when queued, which the client uses to sign
+	 * it off.
 	 * 
-	 * @param JobID
+	 * @param clientsName
+	 * @param OS
+	 * @param SecLev
+	 * @param BatchSize
 	 * @return
 	 */
-	private int JobSearch(int JobID, ArrayList<Jobs> SearchThrough) {
-		int size = SearchThrough.size();
-		int scan = 0;
+	public ArrayList<Jobs> AssignBatch(String clientsName, String OS, int SecLev, int BatchSize) {
+		ArrayList<Jobs> assigned = new ArrayList<Jobs>();
+		if ((jobqueue.Size() == 0) || JournalFailed()) {
+			return assigned;
+		}
 
-		if (JobID < 0) {
-			return -1;
+		// Safety check (a client name belongs to a single connection, so this
+		// can not race with another assignment for the same client). A new
+		// set is only put in the index once it holds a job.
+		Set<Integer> held = jobsentByClient.get(clientsName);
+		if (held == null) {
+			held = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 		}
+		int wanted = BatchSize - held.size();
 
-		while (scan < size) {
-			Jobs looking = SearchThrough.get(scan);
-			// See if the job id matches the search parameter
-			if (looking.GetJobID() == JobID) {
-				return scan;
+		BeginChange();
+		try {
+			AssignUpTo(clientsName, OS, SecLev, wanted, held, assigned);
+		} finally {
+			EndChange();
+		}
+		return assigned;
+	}
+
+	/**
+	 * Pulls and assigns up to wanted jobs for AssignBatch
+	 */
+	private void AssignUpTo(String clientsName, String OS, int SecLev, int wanted, Set<Integer> held,
+			ArrayList<Jobs> assigned) {
+		while (wanted > 0) {
+			// Pull the oldest job for that OS (or any OS) at or below the
+			// clients security level
+			Jobs jobUnit = jobqueue.Poll(OS, SecLev);
+			if (jobUnit == null) {
+				// No more jobs exist for that OS type and security level
+				break;
 			}
-			scan++;
+
+			jobUnit.SetIssued(clientsName); // Add who it was issued to
+			jobUnit.SetTimeIssued(); // Update the time issued to now
+			jobsent.put(jobUnit.GetJobID(), jobUnit); // Add that data into the issued list
+			held.add(jobUnit.GetJobID());
+			jobsentByClient.putIfAbsent(clientsName, held); // Again, if a release dropped it
+			if (LeaseNanos > 0) {
+				long deadline = jobUnit.GetTimeIssued() + LeaseNanos;
+				jobUnit.SetLeaseExpires(deadline);
+				leases.add(new JobLease(jobUnit, deadline));
+			}
+			Log(JobJournal.Assign(jobUnit));
+			assigned.add(jobUnit);
+			wanted--;
 		}
-		return -1;
+	}
+
+	/**
+	 * Removes an assigned job from the issued list and its clients index
+	 * (dropping the clients entry once it is empty). Returns false if something
+	 * else already removed it.
+	 * 
+	 * @param jobUnit
+	 * @return
+	 */
+	private boolean Release(Jobs jobUnit) {
+		if (!jobsent.remove(jobUnit.GetJobID(), jobUnit)) {
+			return false;
+		}
+		Set<Integer> held = jobsentByClient.get(jobUnit.GetIussed());
+		if ((held != null) && held.remove(jobUnit.GetJobID())) {
+			jobsentByClient.computeIfPresent(jobUnit.GetIussed(), DROPEMPTY);
+		}
+		return true;
 	}
 
 	/**
 	 * Clears the queue of jobs that have NOT already been sent to clients
 	 */
 	public void ClearUnsentQueue() {
-		jobqueue.clear();
+		BeginChange();
+		try {
+			jobqueue.Clear();
+			Log(JobJournal.Clear(JobJournal.CLEARQ));
+		} finally {
+			EndChange();
+		}
+		Sync();
 	}
 
 	/**
 	 * Clears the queue of jobs that HAVE already been sent to clients
 	 */
 	public void ClearSentQueue() {
-		jobsent.clear();
+		BeginChange();
+		try {
+			jobsent.clear();
+			jobsentByClient.clear();
+			Log(JobJournal.Clear(JobJournal.CLEARS));
+		} finally {
+			EndChange();
+		}
+		Sync();
+	}
+
+	/**
+	 * Enters a journaled change (a no-op when journaling is disabled)
+	 */
+	private void BeginChange() {
+		if (journal != null) {
+			CutLock.readLock().lock();
+		}
+	}
+
+	/**
+	 * Leaves a journaled change
+	 */
+	private void EndChange() {
+		if (journal != null) {
+			CutLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a record to the journal (if enabled)
+	 * 
+	 * @param record
+	 */
+	private void Log(byte[] record) {
+		if (journal != null) {
+			journal.Append(record);
+		}
+	}
+
+	/**
+	 * Waits for everything logged so far to reach the disk, returns false if
+	 * the journal failed first
+	 * 
+	 * @return
+	 */
+	private boolean Sync() {
+		if (journal != null) {
+			return journal.Sync();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if changes can no longer be journaled, so they must not be
+	 * acknowledged
+	 * 
+	 * @return
+	 */
+	private boolean JournalFailed() {
+		return (journal != null) && journal.IsFailed();
 	}
 }
\ No newline at end of file
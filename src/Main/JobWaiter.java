@@ -0,0 +1,90 @@
+package Main;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A job request that found nothing to run and is parked until a job it can
+ * run is queued (long polling). Whoever claims the waiter first decides what
+ * happens to it: the registry when a matching job arrives (and then wakes the
+ * connection that parked it), or the connection itself when it gives up.
+ *
+ * @author Cole Christie
+ *
+ */
+public class JobWaiter {
+	private String OS;
+	private int SecurityLevel;
+	private long sequence;
+	private Runnable WakeUp;
+	private AtomicBoolean claimed;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedOS
+	 *            (the OS the client reported)
+	 * @param passedSecurityLevel
+	 * @param passedWakeUp
+	 *            (run once a matching job has been queued)
+	 */
+	public JobWaiter(String passedOS, int passedSecurityLevel, Runnable passedWakeUp) {
+		OS = passedOS;
+		SecurityLevel = passedSecurityLevel;
+		WakeUp = passedWakeUp;
+		sequence = 0;
+		claimed = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Returns the OS the waiting client reported
+	 *
+	 * @return
+	 */
+	public String GetOS() {
+		return OS;
+	}
+
+	/**
+	 * Returns the security level of the waiting client
+	 *
+	 * @return
+	 */
+	public int GetSecurityLevel() {
+		return SecurityLevel;
+	}
+
+	/**
+	 * Returns the order the waiter was parked in (older waiters are woken
+	 * first)
+	 *
+	 * @return
+	 */
+	public long GetSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Sets the order the waiter was parked in
+	 *
+	 * @param passedSequence
+	 */
+	public void SetSequence(long passedSequence) {
+		sequence = passedSequence;
+	}
+
+	/**
+	 * Claims the waiter, returns false if something else already had
+	 *
+	 * @return
+	 */
+	public boolean Claim() {
+		return claimed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Tells the connection that parked this waiter to look for work again
+	 */
+	public void Wake() {
+		WakeUp.run();
+	}
+}
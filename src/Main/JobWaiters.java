@@ -0,0 +1,202 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registry of parked job requests (see JobWaiter), laid out like JobBuckets:
+ * one group per kind of client (windows, linux/mac and everything else) and
+ * within each a line of waiters per security level, oldest first.
+ *
+ * When jobs are queued each one wakes the oldest waiter that is allowed to run
+ * it, so a batch of N jobs wakes at most N clients instead of every idle one.
+ * A woken client that loses its job to another client simply parks again.
+ *
+ * @author Cole Christie
+ *
+ */
+public class JobWaiters {
+	private TreeMap<Integer, LinkedHashSet<JobWaiter>> windows;
+	private TreeMap<Integer, LinkedHashSet<JobWaiter>> linux;
+	private TreeMap<Integer, LinkedHashSet<JobWaiter>> other;
+	private ReentrantLock lock;
+	private AtomicInteger size;
+	private long sequence;
+
+	/**
+	 * Default constructor.
+	 */
+	public JobWaiters() {
+		windows = new TreeMap<Integer, LinkedHashSet<JobWaiter>>();
+		linux = new TreeMap<Integer, LinkedHashSet<JobWaiter>>();
+		other = new TreeMap<Integer, LinkedHashSet<JobWaiter>>();
+		lock = new ReentrantLock();
+		size = new AtomicInteger(0);
+		sequence = 0;
+	}
+
+	/**
+	 * Returns the number of parked requests
+	 *
+	 * @return
+	 */
+	public int Size() {
+		return size.get();
+	}
+
+	/**
+	 * Parks a request until a job it can run is queued
+	 *
+	 * @param waiter
+	 */
+	public void Park(JobWaiter waiter) {
+		TreeMap<Integer, LinkedHashSet<JobWaiter>> group = GroupFor(waiter.GetOS());
+		lock.lock();
+		try {
+			waiter.SetSequence(sequence++);
+			LinkedHashSet<JobWaiter> line = group.get(waiter.GetSecurityLevel());
+			if (line == null) {
+				line = new LinkedHashSet<JobWaiter>();
+				group.put(waiter.GetSecurityLevel(), line);
+			}
+			line.add(waiter);
+			size.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets a parked request (it gave up, or its client went away)
+	 *
+	 * @param waiter
+	 */
+	public void Unpark(JobWaiter waiter) {
+		TreeMap<Integer, LinkedHashSet<JobWaiter>> group = GroupFor(waiter.GetOS());
+		lock.lock();
+		try {
+			LinkedHashSet<JobWaiter> line = group.get(waiter.GetSecurityLevel());
+			if ((line != null) && line.remove(waiter)) {
+				size.decrementAndGet();
+				if (line.isEmpty()) {
+					group.remove(waiter.GetSecurityLevel());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes one waiter for each of the passed (newly queued) jobs that has one
+	 *
+	 * @param batch
+	 */
+	public void Signal(List<Jobs> batch) {
+		if (size.get() == 0) {
+			return;
+		}
+		ArrayList<JobWaiter> woken = new ArrayList<JobWaiter>();
+		lock.lock();
+		try {
+			for (Jobs jobUnit : batch) {
+				if (size.get() == 0) {
+					break;
+				}
+				JobWaiter waiter = Take(jobUnit.GetOSspecific(), jobUnit.GetSecurityLevel());
+				if (waiter != null) {
+					woken.add(waiter);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (JobWaiter waiter : woken) {
+			waiter.Wake();
+		}
+	}
+
+	/**
+	 * Removes and claims the oldest waiter that may run a job for the passed OS
+	 * and security level, or returns null if there is none. Waiters that were
+	 * already claimed (they are giving up) are dropped along the way.
+	 *
+	 * @param OS
+	 * @param SecLev
+	 * @return
+	 */
+	private JobWaiter Take(String OS, int SecLev) {
+		String compare = OS.toLowerCase();
+		while (true) {
+			LinkedHashSet<JobWaiter> best = null;
+			if (compare.contains("windows")) {
+				best = OldestHead(windows, SecLev, null);
+			} else if (compare.contains("linux")) {
+				best = OldestHead(linux, SecLev, null);
+			} else {
+				best = OldestHead(windows, SecLev, null);
+				best = OldestHead(linux, SecLev, best);
+				best = OldestHead(other, SecLev, best);
+			}
+			if (best == null) {
+				return null;
+			}
+
+			Iterator<JobWaiter> head = best.iterator();
+			JobWaiter waiter = head.next();
+			head.remove();
+			size.decrementAndGet();
+			if (best.isEmpty()) {
+				GroupFor(waiter.GetOS()).remove(waiter.GetSecurityLevel());
+			}
+			if (waiter.Claim()) {
+				return waiter;
+			}
+		}
+	}
+
+	/**
+	 * Walks the levels at or above SecLev (clients allowed to run the job) and
+	 * returns whichever line has the oldest waiter (or the passed current best
+	 * if it is older)
+	 *
+	 * @param group
+	 * @param SecLev
+	 * @param best
+	 * @return
+	 */
+	private LinkedHashSet<JobWaiter> OldestHead(TreeMap<Integer, LinkedHashSet<JobWaiter>> group, int SecLev,
+			LinkedHashSet<JobWaiter> best) {
+		for (Map.Entry<Integer, LinkedHashSet<JobWaiter>> level : group.tailMap(SecLev, true).entrySet()) {
+			LinkedHashSet<JobWaiter> line = level.getValue();
+			if ((best == null)
+					|| (line.iterator().next().GetSequence() < best.iterator().next().GetSequence())) {
+				best = line;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Maps the OS a client reports to its group (mac clients run linux/unix
+	 * jobs, like in JobBuckets)
+	 *
+	 * @param OS
+	 * @return
+	 */
+	private TreeMap<Integer, LinkedHashSet<JobWaiter>> GroupFor(String OS) {
+		String compare = OS.toLowerCase();
+		if (compare.contains("windows")) {
+			return windows;
+		} else if ((compare.contains("linux")) || (compare.contains("mac"))) {
+			return linux;
+		}
+		return other;
+	}
+}
@@ -1,7 +1,5 @@
 package Main;
 
-import java.util.ArrayList;
-
 /**
  * 
  * @author Cole Christie
@@ -16,9 +14,11 @@ public class Jobs {
 	private long timeIssued;
 	private int SecurityLevel;
 	private String OSspecific;
-	private ArrayList<String> ReturnedErrors;
-	private ArrayList<String> ReturnedOutput;
+	private ResultBuffer ReturnedErrors;
+	private ResultBuffer ReturnedOutput;
 	private int JobID;
+	private long QueueSequence;
+	private volatile long LeaseExpires;
 
 	/**
 	 * Default constructor - Initializes values to empty set
@@ -29,8 +29,8 @@ public class Jobs {
 		timeIssued = 0;
 		SecurityLevel = 0;
 		OSspecific = "any";
-		ReturnedErrors = new ArrayList<String>();
-		ReturnedOutput = new ArrayList<String>();
+		ReturnedErrors = new ResultBuffer();
+		ReturnedOutput = new ResultBuffer();
 		JobID = 0;
 	}
 
@@ -45,8 +45,8 @@ public class Jobs {
 		timeIssued = 0;
 		SecurityLevel = 0;
 		OSspecific = "any";
-		ReturnedErrors = new ArrayList<String>();
-		ReturnedOutput = new ArrayList<String>();
+		ReturnedErrors = new ResultBuffer();
+		ReturnedOutput = new ResultBuffer();
 		JobID = 0;
 	}
 
@@ -61,8 +61,8 @@ public class Jobs {
 		timeIssued = 0;
 		SecurityLevel = 0;
 		OSspecific = PassedOSspecific;
-		ReturnedErrors = new ArrayList<String>();
-		ReturnedOutput = new ArrayList<String>();
+		ReturnedErrors = new ResultBuffer();
+		ReturnedOutput = new ResultBuffer();
 		JobID = 0;
 	}
 
@@ -79,8 +79,8 @@ public class Jobs {
 		timeIssued = 0;
 		SecurityLevel = PassedSecurityLevel;
 		OSspecific = PassedOSspecific;
-		ReturnedErrors = new ArrayList<String>();
-		ReturnedOutput = new ArrayList<String>();
+		ReturnedErrors = new ResultBuffer();
+		ReturnedOutput = new ResultBuffer();
 		JobID = 0;
 	}
 
@@ -102,13 +102,49 @@ public class Jobs {
 		JobID = DesiredJobID;
 	}	
 	
+	/**
+	 * Returns the position this job was given when it was queued
+	 * 
+	 * @return
+	 */
+	public long GetQueueSequence() {
+		return QueueSequence;
+	}
+
+	/**
+	 * Sets the position this job was given when it was queued
+	 * 
+	 * @param DesiredSequence
+	 */
+	public void SetQueueSequence(long DesiredSequence) {
+		QueueSequence = DesiredSequence;
+	}
+
+	/**
+	 * Returns when the lease on this job runs out (in nano seconds)
+	 * 
+	 * @return
+	 */
+	public long GetLeaseExpires() {
+		return LeaseExpires;
+	}
+
+	/**
+	 * Sets when the lease on this job runs out (in nano seconds)
+	 * 
+	 * @param DesiredExpiry
+	 */
+	public void SetLeaseExpires(long DesiredExpiry) {
+		LeaseExpires = DesiredExpiry;
+	}
+
 	/**
 	 * Returns the SIZE of the output (results) cached with the job results
 	 * 
 	 * @return
 	 */
 	public int GetOutputListSize() {
-		return ReturnedOutput.size();
+		return ReturnedOutput.Size();
 	}
 	
 	/**
@@ -116,7 +152,7 @@ public class Jobs {
 	 * 
 	 * @return
 	 */
-	public ArrayList<String> GetOutputList() {
+	public ResultBuffer GetOutputList() {
 		return ReturnedOutput;
 	}
 
@@ -126,7 +162,27 @@ public class Jobs {
 	 * @param SingleString
 	 */
 	public void AddToOutputList(String OutputString) {
-		ReturnedOutput.add(OutputString);
+		ReturnedOutput.Add(OutputString);
+	}
+
+	/**
+	 * Inserts a chunk of newline separated UTF-8 lines into the output storage
+	 * cache, returns the number of lines added
+	 * 
+	 * @param chunk
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public int AddToOutputList(byte[] chunk, int offset, int length) {
+		return ReturnedOutput.AddLines(chunk, offset, length);
+	}
+
+	/**
+	 * Drops the output (results) cached so far
+	 */
+	public void DiscardOutput() {
+		ReturnedOutput = new ResultBuffer();
 	}
 
 	/**
@@ -135,7 +191,7 @@ public class Jobs {
 	 * @return
 	 */
 	public int GetErrorListSize() {
-		return ReturnedErrors.size();
+		return ReturnedErrors.Size();
 	}
 	
 	/**
@@ -143,7 +199,7 @@ public class Jobs {
 	 * 
 	 * @return
 	 */
-	public ArrayList<String> GetErrorList() {
+	public ResultBuffer GetErrorList() {
 		return ReturnedErrors;
 	}
 
@@ -153,7 +209,42 @@ public class Jobs {
 	 * @param SingleString
 	 */
 	public void AddToErrorList(String ErrorString) {
-		ReturnedErrors.add(ErrorString);
+		ReturnedErrors.Add(ErrorString);
+	}
+
+	/**
+	 * Inserts a chunk of newline separated UTF-8 lines into the error storage
+	 * cache, returns the number of lines added
+	 * 
+	 * @param chunk
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public int AddToErrorList(byte[] chunk, int offset, int length) {
+		return ReturnedErrors.AddLines(chunk, offset, length);
+	}
+
+	/**
+	 * Marks the results as complete, compacting (and optionally compressing)
+	 * the stored lines. No more lines can be added afterwards.
+	 * 
+	 * @param compress
+	 */
+	public void SealResults(boolean compress) {
+		ReturnedErrors.Seal(compress);
+		ReturnedOutput.Seal(compress);
+	}
+
+	/**
+	 * Restores result lines read back from storage
+	 * 
+	 * @param PassedErrors
+	 * @param PassedOutput
+	 */
+	public void SetResults(ResultBuffer PassedErrors, ResultBuffer PassedOutput) {
+		ReturnedErrors = PassedErrors;
+		ReturnedOutput = PassedOutput;
 	}
 
 	/**
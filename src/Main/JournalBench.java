@@ -0,0 +1,148 @@
+package Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Job journal benchmark. Measures what durability costs the job server and
+ * how long a restart takes to rebuild the queue. Run it with:
+ *
+ * java -Ddir=/var/tmp/journalbench -Djobs=1000000 -Dclients=64 -Dcycles=2000
+ * -cp Truss*.jar Main.JournalBench
+ *
+ * The first table loads the jobs from a file and then has the clients each
+ * assign and sign off cycles jobs, once with journaling off and once on (the
+ * directory should be on the disk the server would journal to), after a pass
+ * to warm up that is not reported. Loads wait for their records to reach the
+ * disk; assignments and sign offs share the fsyncs of the group commit.
+ *
+ * The second table restarts on that journal: "log" recovers by replaying
+ * every record written above and "snapshot" recovers after a checkpoint has
+ * folded them into a snapshot. Each is checked to recover every job that was
+ * not signed off. The directory is emptied before and after the run.
+ *
+ * @author Cole Christie
+ *
+ */
+public class JournalBench {
+	/**
+	 * Runs the comparison and prints the tables
+	 *
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Logging mylog = new Logging(System.getProperty("loglevel", "ERROR"));
+		File directory = new File(System.getProperty("dir", System.getProperty("java.io.tmpdir") + "/journalbench"));
+		int jobs = Integer.parseInt(System.getProperty("jobs", "1000000"));
+		int clients = Integer.parseInt(System.getProperty("clients", "64"));
+		int cycles = Integer.parseInt(System.getProperty("cycles", "2000"));
+
+		File jobfile = File.createTempFile("journalbench", ".txt");
+		try (PrintWriter out = new PrintWriter(jobfile, "UTF-8")) {
+			for (int scan = 0; scan < jobs; scan++) {
+				out.println("linux 1 ping -c 4 10.0.0." + (scan % 250));
+			}
+		}
+
+		System.out.println("[" + jobs + "] jobs, [" + clients + "] clients assigning and signing off [" + cycles
+				+ "] each, journal in [" + directory + "]");
+		System.out.println(String.format("%-8s %12s %14s %14s", "journal", "load s", "k loads/s", "k cycles/s"));
+		JobManagement JobQueue = null;
+		for (int pass = 0; pass < 3; pass++) {
+			boolean journaled = (pass == 2); // The first pass is a warm up
+			Empty(directory);
+			JobQueue = new JobManagement();
+			if (journaled) {
+				JobQueue.EnableJournal(mylog, directory.getPath(), 0);
+			}
+			long started = System.nanoTime();
+			JobQueue.Load(jobfile.getPath());
+			double loading = (System.nanoTime() - started) / 1000000000.0;
+			double cycling = Cycle(JobQueue, clients, cycles) / 1000000000.0;
+			if (pass == 0) {
+				continue;
+			}
+			System.out.println(String.format("%-8s %12.2f %14.1f %14.1f", journaled ? "on" : "off", loading, jobs
+					/ loading / 1000, ((double) clients * cycles) / cycling / 1000));
+		}
+		jobfile.delete();
+
+		// Restart on the journal left by the last run, then on a snapshot
+		int expected = jobs - (clients * cycles);
+		System.out.println(String.format("%-8s %12s %14s", "recover", "jobs", "seconds"));
+		for (String mode : new String[] { "log", "snapshot" }) {
+			if (mode.equals("snapshot")) {
+				JobQueue.Checkpoint(true);
+			}
+			JobQueue = new JobManagement();
+			long started = System.nanoTime();
+			int recovered = JobQueue.EnableJournal(mylog, directory.getPath(), 0);
+			double seconds = (System.nanoTime() - started) / 1000000000.0;
+			if (recovered != expected) {
+				throw new IllegalStateException("Recovered [" + recovered + "] jobs, expected [" + expected + "]");
+			}
+			System.out.println(String.format("%-8s %12d %14.2f", mode, recovered, seconds));
+		}
+		Empty(directory);
+	}
+
+	/**
+	 * Has every client assign and sign off its jobs, returns the wall time in
+	 * nanoseconds
+	 *
+	 * @param JobQueue
+	 * @param clients
+	 * @param cycles
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private static long Cycle(final JobManagement JobQueue, int clients, final int cycles)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[clients];
+		for (int number = 0; number < clients; number++) {
+			final String name = "client" + number;
+			threads[number] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int cycle = 0; cycle < cycles; cycle++) {
+						if (JobQueue.Assign(name, "Linux", 1).isEmpty() || (!JobQueue.Signoff(name).equals("Done"))) {
+							throw new IllegalStateException(name + " failed to assign and sign off a job");
+						}
+					}
+				}
+			};
+			threads[number].start();
+		}
+		long started = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * Deletes the journal files in the directory
+	 *
+	 * @param directory
+	 */
+	private static void Empty(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith("journal-") || file.getName().startsWith("snapshot-")) {
+					file.delete();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package Main;
+
+import java.io.IOException;
+
+/**
+ * Background thread that periodically checkpoints the job journal so the log
+ * (and the time spent replaying it on restart) stays bounded. A checkpoint is
+ * skipped when nothing was logged since the last one.
+ *
+ * @author Cole Christie
+ *
+ */
+public class JournalCheckpointer extends Thread {
+	private Logging mylog;
+	private JobManagement JobQueue;
+	private long IntervalMillis;
+
+	/**
+	 * CONSTRUCTOR
+	 */
+	public JournalCheckpointer(Logging passedLog, JobManagement passedJobQueue, int IntervalSeconds) {
+		mylog = passedLog;
+		JobQueue = passedJobQueue;
+		IntervalMillis = IntervalSeconds * 1000L;
+		setName("JournalCheckpointer");
+		setDaemon(true);
+	}
+
+	/**
+	 * Checkpoints on every interval until interrupted
+	 */
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				sleep(IntervalMillis);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				JobQueue.Checkpoint(false);
+			} catch (IOException e) {
+				mylog.out("ERROR", "Failed to checkpoint the job journal [" + e + "]");
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Rebuilds the job queue state from journal records during recovery. Records
+ * from concurrent server threads can reach the log slightly out of order, so
+ * every operation is applied defensively: a LOAD for a known job, or an
+ * ASSIGN/REQUEUE for an unknown one, is ignored, and a SIGNOFF always wins.
+ * Jobs that were assigned when the server stopped are handed back at the front
+ * of the queue since the clients holding them are gone.
+ *
+ * @author Cole Christie
+ *
+ */
+public class JournalReplay {
+	private LinkedHashMap<Integer, Entry> jobs; // In LOAD order
+	private long TailRank;
+	private long HeadRank;
+	private int HighestJobID;
+
+	/**
+	 * Default constructor.
+	 */
+	public JournalReplay() {
+		jobs = new LinkedHashMap<Integer, Entry>();
+		TailRank = 0;
+		HeadRank = 0;
+		HighestJobID = 0;
+	}
+
+	/**
+	 * Applies a LOAD record
+	 *
+	 * @param JobID
+	 * @param jobUnit
+	 */
+	public void Load(int JobID, Jobs jobUnit) {
+		HighestJobID = Math.max(HighestJobID, JobID);
+		if (!jobs.containsKey(JobID)) {
+			jobUnit.SetJobID(JobID);
+			jobs.put(JobID, new Entry(jobUnit, TailRank++));
+		}
+	}
+
+	/**
+	 * Applies any record that carries only a JobID
+	 *
+	 * @param type
+	 * @param JobID
+	 */
+	public void Apply(byte type, int JobID) {
+		Entry entry = jobs.get(JobID);
+		if (type == JobJournal.ASSIGN) {
+			if (entry != null) {
+				entry.sent = true;
+			}
+		} else if (type == JobJournal.SIGNOFF) {
+			jobs.remove(JobID);
+		} else if (type == JobJournal.REQUEUE) {
+			if (entry != null) {
+				entry.sent = false;
+				entry.rank = --HeadRank;
+			}
+		} else if ((type == JobJournal.CLEARQ) || (type == JobJournal.CLEARS)) {
+			boolean sent = (type == JobJournal.CLEARS);
+			Iterator<Entry> scan = jobs.values().iterator();
+			while (scan.hasNext()) {
+				if (scan.next().sent == sent) {
+					scan.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the highest JobID seen
+	 *
+	 * @return
+	 */
+	public int HighestJobID() {
+		return HighestJobID;
+	}
+
+	/**
+	 * Returns every surviving job in the order to queue them: jobs that were in
+	 * flight first, then the unassigned jobs, each in their original order
+	 *
+	 * @return
+	 */
+	public ArrayList<Jobs> Survivors() {
+		// Jobs that never left the queue are already in LOAD order, only the
+		// few that were in flight or requeued need sorting
+		ArrayList<Entry> moved = new ArrayList<Entry>();
+		ArrayList<Jobs> survivors = new ArrayList<Jobs>(jobs.size());
+		for (Entry entry : jobs.values()) {
+			if (entry.sent || (entry.rank < 0)) {
+				moved.add(entry);
+			}
+		}
+		Collections.sort(moved, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				if (a.sent != b.sent) {
+					return a.sent ? -1 : 1;
+				}
+				return Long.compare(a.rank, b.rank);
+			}
+		});
+		for (Entry entry : moved) {
+			survivors.add(entry.job);
+		}
+		for (Entry entry : jobs.values()) {
+			if (!(entry.sent || (entry.rank < 0))) {
+				survivors.add(entry.job);
+			}
+		}
+		return survivors;
+	}
+
+	/**
+	 * A job and where it stands
+	 */
+	private static class Entry {
+		Jobs job;
+		long rank;
+		boolean sent;
+
+		Entry(Jobs passedJob, long passedRank) {
+			job = passedJob;
+			rank = passedRank;
+			sent = false;
+		}
+	}
+}
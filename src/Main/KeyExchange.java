@@ -0,0 +1,35 @@
+package Main;
+
+/**
+ * One end of a key agreement run by a rekey (see Rekeyer). An exchange is
+ * handed out ready to send its public key: DH once DHPhase1 has been run,
+ * ECDH as soon as it is made.
+ *
+ * @author Cole Christie
+ *
+ */
+public interface KeyExchange {
+	/**
+	 * Returns the public key as it is sent to the other end
+	 *
+	 * @return
+	 */
+	public byte[] GetPublicKeyBF();
+
+	/**
+	 * Agrees a shared secret with the other ends public key, returns false if
+	 * its key could not be used (no secret is made)
+	 *
+	 * @param partnersKey
+	 * @param ReKeyedWith
+	 * @return
+	 */
+	public boolean Agree(byte[] partnersKey, String ReKeyedWith);
+
+	/**
+	 * Returns the shared secret as the raw bytes the agreement produced
+	 *
+	 * @return
+	 */
+	public byte[] GetSharedSecretBytes();
+}
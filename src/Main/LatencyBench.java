@@ -0,0 +1,201 @@
+package Main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Message latency benchmark. Bounces messages of a few sizes back and forth
+ * over a loopback connection and reports the round trip times. Run it with:
+ *
+ * java -Dmessages=200 -cp Truss*.jar Main.LatencyBench
+ *
+ * "poll" is the original receive (sleeping in 25 ms steps until available()
+ * is above zero, then taking whatever has arrived as the message) and "frame"
+ * is Networking.Send and ReceiveByte. Both ends of "poll" keep reading until
+ * the whole message is in, so its times are for intact messages; "split"
+ * counts the messages the original would have handed over in pieces (TCP
+ * delivered them in more than one read). Encryption is left out so only the
+ * transport is measured.
+ *
+ * @author Cole Christie
+ *
+ */
+public class LatencyBench {
+	// Message sizes compared
+	private static int[] SIZES = { 64, 4096, 262144 };
+	// Step the original receive slept in while waiting
+	private static int SLEEPFOR = 25;
+
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Logging mylog = new Logging(System.getProperty("loglevel", "ERROR"));
+		int messages = Integer.parseInt(System.getProperty("messages", "200"));
+
+		System.out.println("[" + messages + "] round trips per size");
+		System.out.println(String.format("%-6s %8s %10s %10s %10s %8s", "mode", "size", "mean ms", "p50 ms",
+				"p99 ms", "split"));
+		for (int size : SIZES) {
+			for (String mode : new String[] { "poll", "frame" }) {
+				Run(mylog, mode, size, messages / 10); // Warm up
+				long[] times = new long[messages];
+				int split = Run(mylog, mode, size, times.length, times);
+				long total = 0;
+				for (long time : times) {
+					total += time;
+				}
+				Arrays.sort(times);
+				System.out.println(String.format("%-6s %8d %10.3f %10.3f %10.3f %8s", mode, size,
+						total / 1000000.0 / messages, times[messages / 2] / 1000000.0,
+						times[Math.min(messages - 1, messages * 99 / 100)] / 1000000.0,
+						mode.equals("poll") ? Integer.toString(split) : "-"));
+			}
+		}
+	}
+
+	/**
+	 * Bounces the messages without keeping their times, returns the number
+	 * split
+	 *
+	 * @param mylog
+	 * @param mode
+	 * @param size
+	 * @param messages
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static int Run(Logging mylog, String mode, int size, int messages) throws IOException,
+			InterruptedException {
+		return Run(mylog, mode, size, messages, new long[messages]);
+	}
+
+	/**
+	 * Bounces the messages over a fresh loopback connection, filling times
+	 * with each round trip in nanoseconds. Returns how many messages (either
+	 * way) arrived in more than one read.
+	 *
+	 * @param mylog
+	 * @param mode
+	 * @param size
+	 * @param messages
+	 * @param times
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static int Run(Logging mylog, final String mode, final int size, final int messages, long[] times)
+			throws IOException, InterruptedException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		final Socket near = SocketChannel.open(listener.getLocalAddress()).socket();
+		final Socket far = listener.accept().socket();
+		listener.close();
+		near.setTcpNoDelay(true);
+		far.setTcpNoDelay(true);
+
+		final Networking nearNetwork = new Networking(mylog);
+		final Networking farNetwork = new Networking(mylog);
+		if (mode.equals("frame")) {
+			nearNetwork.BringUp(near);
+			farNetwork.BringUp(far);
+		}
+
+		// The far end sends every message straight back
+		final int[] split = new int[1];
+		Thread echo = new Thread() {
+			public void run() {
+				try {
+					for (int scan = 0; scan < messages; scan++) {
+						if (mode.equals("poll")) {
+							byte[] message = new byte[size];
+							if (PollReceive(far.getInputStream(), message)) {
+								split[0]++;
+							}
+							far.getOutputStream().write(message);
+						} else {
+							byte[] message = farNetwork.ReceiveByte();
+							if (message == null) {
+								throw new IOException("Connection closed after [" + scan + "] messages");
+							}
+							farNetwork.Send(message);
+						}
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException("Echoing failed [" + e + "]");
+				}
+			}
+		};
+		echo.start();
+
+		byte[] message = new byte[size];
+		Arrays.fill(message, (byte) 'T');
+		OutputStream out = near.getOutputStream();
+		InputStream in = near.getInputStream();
+		int broken = 0;
+		for (int scan = 0; scan < messages; scan++) {
+			long started = System.nanoTime();
+			if (mode.equals("poll")) {
+				out.write(message);
+				byte[] reply = new byte[size];
+				if (PollReceive(in, reply)) {
+					broken++;
+				}
+			} else {
+				nearNetwork.Send(message);
+				byte[] reply = nearNetwork.ReceiveByte();
+				if ((reply == null) || (reply.length != size)) {
+					throw new IllegalStateException("Reply [" + scan + "] did not arrive intact");
+				}
+			}
+			times[scan] = System.nanoTime() - started;
+		}
+		echo.join();
+		near.close();
+		far.close();
+		return broken + split[0];
+	}
+
+	/**
+	 * The original receive, repeated until the whole message has arrived.
+	 * Returns true if it took more than one read (the original would have
+	 * handed the first piece over as the message).
+	 *
+	 * @param in
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean PollReceive(InputStream in, byte[] message) throws IOException {
+		int filled = 0;
+		int reads = 0;
+		while (filled < message.length) {
+			while (in.available() == 0) {
+				try {
+					Thread.sleep(SLEEPFOR);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for data");
+				}
+			}
+			int read = in.read(message, filled, Math.min(in.available(), message.length - filled));
+			if (read < 0) {
+				throw new IOException("Connection closed");
+			}
+			filled += read;
+			reads++;
+		}
+		return reads > 1;
+	}
+}
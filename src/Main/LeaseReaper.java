@@ -0,0 +1,48 @@
+package Main;
+
+import java.util.concurrent.DelayQueue;
+
+/**
+ * Background thread that waits on the lease delay queue and hands every lease
+ * that runs out back to the job queue. It never scans the assigned jobs; it
+ * only wakes when the earliest deadline passes.
+ * 
+ * @author Cole Christie
+ * 
+ */
+public class LeaseReaper extends Thread {
+	private Logging mylog;
+	private DelayQueue<JobLease> leases;
+	private JobManagement JobQueue;
+
+	/**
+	 * CONSTRUCTOR
+	 */
+	public LeaseReaper(Logging passedLog, DelayQueue<JobLease> passedLeases, JobManagement passedJobQueue) {
+		mylog = passedLog;
+		leases = passedLeases;
+		JobQueue = passedJobQueue;
+		setName("LeaseReaper");
+		setDaemon(true);
+	}
+
+	/**
+	 * Reaps expired leases until interrupted
+	 */
+	public void run() {
+		while (!isInterrupted()) {
+			JobLease expired;
+			try {
+				expired = leases.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			Jobs jobUnit = expired.GetJob();
+			String client = jobUnit.GetIussed();
+			if (JobQueue.Expire(expired)) {
+				mylog.out("WARN", "Lease on job [" + jobUnit.GetWork() + "] issued to [" + client
+						+ "] expired. Job returned to the front of the queue.");
+			}
+		}
+	}
+}
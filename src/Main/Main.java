@@ -70,6 +70,93 @@ public class Main {
 			// the same machine as client
 			Pdip = "127.0.0.1";
 		}
+		String Please = System.getProperty("lease");
+		if (Please == null) {
+			// Default to a 10 minute lease on assigned jobs (0 disables leases)
+			Please = "600";
+		}
+		String Pheartbeat = System.getProperty("heartbeat");
+		if (Pheartbeat == null) {
+			// Default to extending the lease on a running job every 60 seconds
+			Pheartbeat = "60";
+		}
+		String Pbatch = System.getProperty("batch");
+		if (Pbatch == null) {
+			// Default to asking the server for one job at a time
+			Pbatch = "1";
+		}
+		String Pjournal = System.getProperty("journal");
+		if (Pjournal == null) {
+			// Default to keeping the job queue in memory only
+			Pjournal = "";
+		}
+		String Pcheckpoint = System.getProperty("checkpoint");
+		if (Pcheckpoint == null) {
+			// Default to snapshotting the journaled queue every 5 minutes
+			Pcheckpoint = "300";
+		}
+		String Presultflush = System.getProperty("resultflush");
+		if (Presultflush == null) {
+			// Default to only writing job results out when asked to (SAVE)
+			Presultflush = "manual";
+		}
+		String Presultformat = System.getProperty("resultformat");
+		if (Presultformat == null) {
+			// Default to the Job:/Error:/Output: text layout
+			Presultformat = "text";
+		}
+		String Presultrotate = System.getProperty("resultrotate");
+		if (Presultrotate == null) {
+			// Default to starting a new results file every 64 MB
+			Presultrotate = "64";
+		}
+		String Presultmemory = System.getProperty("resultmemory");
+		if (Presultmemory == null) {
+			// Default to holding up to 256 MB of results before spilling to disk
+			Presultmemory = "256";
+		}
+		String Presultcompress = System.getProperty("resultcompress");
+		if (Presultcompress == null) {
+			// Default to holding completed results uncompressed
+			Presultcompress = "false";
+		}
+		String Pengine = System.getProperty("engine");
+		if (Pengine == null) {
+			// Default to serving each client from its own platform thread
+			Pengine = "thread";
+		}
+		String Peventloops = System.getProperty("eventloops");
+		if (Peventloops == null) {
+			// Default to one NIO event loop per core
+			Peventloops = "0";
+		}
+		String Pratelimit = System.getProperty("ratelimit");
+		if (Pratelimit == null) {
+			// Default to letting each client make up to 100 requests a second
+			Pratelimit = "100";
+		}
+		String Pcompress = System.getProperty("compress");
+		if (Pcompress == null) {
+			// Default to deflating large messages at the fastest level
+			Pcompress = "1";
+		}
+		String Plongpoll = System.getProperty("longpoll");
+		if (Plongpoll == null) {
+			// Default to holding a job request for up to 30 seconds when there
+			// is nothing to run
+			Plongpoll = "30";
+		}
+		String Pdhparams = System.getProperty("dhparams");
+		if (Pdhparams == null) {
+			// Default to rekeying with the fixed RFC 3526 group
+			Pdhparams = "fixed";
+		}
+		String Pkeyagreement = System.getProperty("keyagreement");
+		if (Pkeyagreement == null) {
+			// Default to rekeying with X25519 (Diffie Hellman if the other end
+			// refuses it)
+			Pkeyagreement = "x25519";
+		}
 		String Pic = System.getProperty("ic");
 		boolean PinteractiveClient = false;
 		if (Pic != null) {
@@ -101,6 +188,25 @@ public class Main {
 		}
 		Session session = subject.EstablishSession(currentUser);
 
+		// Cache runtime tuning with the session so it can be recalled later
+		session.setAttribute("LeaseSeconds", Please);
+		session.setAttribute("HeartbeatSeconds", Pheartbeat);
+		session.setAttribute("BatchSize", Pbatch);
+		session.setAttribute("JournalDir", Pjournal);
+		session.setAttribute("CheckpointSeconds", Pcheckpoint);
+		session.setAttribute("ResultFlush", Presultflush);
+		session.setAttribute("ResultFormat", Presultformat);
+		session.setAttribute("ResultRotateMB", Presultrotate);
+		session.setAttribute("ResultMemoryMB", Presultmemory);
+		session.setAttribute("ResultCompress", Presultcompress);
+		session.setAttribute("Engine", Pengine);
+		session.setAttribute("EventLoops", Peventloops);
+		session.setAttribute("RateLimit", Pratelimit);
+		session.setAttribute("Compress", Pcompress);
+		session.setAttribute("LongPollSeconds", Plongpoll);
+		session.setAttribute("DHParams", Pdhparams);
+		session.setAttribute("KeyAgreement", Pkeyagreement);
+
 		// This code enables session limits, which is not currently used
 		// anywhere
 		/*
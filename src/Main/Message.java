@@ -0,0 +1,306 @@
+package Main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary request and reply codec. A message is a marker byte, a one byte
+ * opcode, a four byte request ID and then its fields, each a one byte type
+ * followed by the value:
+ *
+ * INT - four bytes, big endian
+ *
+ * TEXT - a four byte length and that many bytes of UTF-8
+ *
+ * BYTES - a four byte length and that many raw bytes
+ *
+ * The marker (0xB7) can never start UTF-8 text, so binary messages and the
+ * legacy text commands can share a connection and are told apart by their
+ * first byte. Fields are read in order straight from the decrypted byte[]; a
+ * message that is short or has a field of the wrong type is marked broken
+ * rather than throwing, so callers read every field they need and then check
+ * IsIntact once.
+ *
+ * A reply carries the request ID of the request it answers.
+ *
+ * @author Cole Christie
+ *
+ */
+public class Message {
+	private byte opcode;
+	private int RequestID;
+	private byte[] data;
+	private int position; // Next byte to read or write
+	private boolean intact;
+
+	// Marks a message as binary (not a valid first byte of UTF-8)
+	static final byte MARKER = (byte) 0xB7;
+
+	// Field types
+	static final byte INT = 1;
+	static final byte TEXT = 2;
+	static final byte BYTES = 3;
+
+	// Requests (client to server)
+	static final byte JOB = 1; // wait, client ID, OS, security level, batch
+	static final byte WORKDONE = 2; // JobID (-1 signs off every held job)
+	static final byte HEARTBEAT = 3;
+	static final byte QUIT = 4;
+	static final byte REKEY = 5; // group, [prime, base,] public key
+
+	// Replies (server to client)
+	static final byte JOBS = 16; // count, then JobID and job for each
+	static final byte STATUS = 17; // text
+	static final byte ERROR = 18; // text
+	static final byte REKEYED = 19; // public key, confirmation
+
+	// Bytes ahead of the first field
+	private static final int HEADERSIZE = 6;
+
+	/**
+	 * CONSTRUCTOR for a message to send
+	 *
+	 * @param passedOpcode
+	 * @param passedRequestID
+	 */
+	public Message(byte passedOpcode, int passedRequestID) {
+		opcode = passedOpcode;
+		RequestID = passedRequestID;
+		data = new byte[64];
+		data[0] = MARKER;
+		data[1] = opcode;
+		position = 2;
+		PutInt(RequestID);
+		intact = true;
+	}
+
+	/**
+	 * CONSTRUCTOR for a received message
+	 */
+	private Message(byte[] passedData) {
+		data = passedData;
+		opcode = data[1];
+		position = 2;
+		RequestID = GetInt();
+		intact = true;
+	}
+
+	/**
+	 * Returns true if a decrypted message is binary rather than legacy text
+	 *
+	 * @param plain
+	 * @return
+	 */
+	public static boolean IsBinary(byte[] plain) {
+		return (plain != null) && (plain.length >= HEADERSIZE) && (plain[0] == MARKER);
+	}
+
+	/**
+	 * Wraps a decrypted message for reading, returns null if it is not binary
+	 *
+	 * @param plain
+	 * @return
+	 */
+	public static Message Decode(byte[] plain) {
+		if (!IsBinary(plain)) {
+			return null;
+		}
+		return new Message(plain);
+	}
+
+	/**
+	 * Returns the messages opcode
+	 *
+	 * @return
+	 */
+	public byte GetOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * Returns the ID of the request (or of the request a reply answers)
+	 *
+	 * @return
+	 */
+	public int GetRequestID() {
+		return RequestID;
+	}
+
+	/**
+	 * Returns false if any field read so far was missing or of the wrong type
+	 *
+	 * @return
+	 */
+	public boolean IsIntact() {
+		return intact;
+	}
+
+	/**
+	 * Returns true if there are more fields to read
+	 *
+	 * @return
+	 */
+	public boolean HasNext() {
+		return position < data.length;
+	}
+
+	/**
+	 * Reads the next field as an INT (0 if it is not one)
+	 *
+	 * @return
+	 */
+	public int NextInt() {
+		if ((position + 5 > data.length) || (data[position] != INT)) {
+			intact = false;
+			return 0;
+		}
+		position++;
+		return GetInt();
+	}
+
+	/**
+	 * Reads the next field as TEXT (empty if it is not)
+	 *
+	 * @return
+	 */
+	public String NextText() {
+		int length = NextLength(TEXT);
+		if (length < 0) {
+			return "";
+		}
+		String text = new String(data, position, length, StandardCharsets.UTF_8);
+		position += length;
+		return text;
+	}
+
+	/**
+	 * Reads the next field as BYTES (empty if it is not)
+	 *
+	 * @return
+	 */
+	public byte[] NextBytes() {
+		int length = NextLength(BYTES);
+		if (length < 0) {
+			return new byte[0];
+		}
+		byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+		position += length;
+		return bytes;
+	}
+
+	/**
+	 * Adds an INT field
+	 *
+	 * @param value
+	 * @return
+	 */
+	public Message Add(int value) {
+		Grow(5);
+		data[position++] = INT;
+		PutInt(value);
+		return this;
+	}
+
+	/**
+	 * Adds a TEXT field
+	 *
+	 * @param value
+	 * @return
+	 */
+	public Message Add(String value) {
+		return Add(TEXT, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Adds a BYTES field
+	 *
+	 * @param value
+	 * @return
+	 */
+	public Message Add(byte[] value) {
+		return Add(BYTES, value);
+	}
+
+	/**
+	 * Adds a length prefixed field of the passed type
+	 *
+	 * @param type
+	 * @param value
+	 * @return
+	 */
+	private Message Add(byte type, byte[] value) {
+		Grow(5 + value.length);
+		data[position++] = type;
+		PutInt(value.length);
+		System.arraycopy(value, 0, data, position, value.length);
+		position += value.length;
+		return this;
+	}
+
+	/**
+	 * Returns the message ready to be encrypted
+	 *
+	 * @return
+	 */
+	public byte[] ToBytes() {
+		return Arrays.copyOf(data, position);
+	}
+
+	/**
+	 * Reads the type and length of a length prefixed field, returns -1 (and
+	 * marks the message broken) if it is missing, of another type or longer
+	 * than what is left
+	 *
+	 * @param type
+	 * @return
+	 */
+	private int NextLength(byte type) {
+		if ((position + 5 > data.length) || (data[position] != type)) {
+			intact = false;
+			return -1;
+		}
+		position++;
+		int length = GetInt();
+		if ((length < 0) || (length > (data.length - position))) {
+			intact = false;
+			position = data.length;
+			return -1;
+		}
+		return length;
+	}
+
+	/**
+	 * Reads four bytes as a big endian int
+	 *
+	 * @return
+	 */
+	private int GetInt() {
+		int value = ((data[position] & 0xff) << 24) | ((data[position + 1] & 0xff) << 16)
+				| ((data[position + 2] & 0xff) << 8) | (data[position + 3] & 0xff);
+		position += 4;
+		return value;
+	}
+
+	/**
+	 * Writes an int as four big endian bytes
+	 *
+	 * @param value
+	 */
+	private void PutInt(int value) {
+		data[position++] = (byte) (value >>> 24);
+		data[position++] = (byte) (value >>> 16);
+		data[position++] = (byte) (value >>> 8);
+		data[position++] = (byte) value;
+	}
+
+	/**
+	 * Makes room for more bytes
+	 *
+	 * @param needed
+	 */
+	private void Grow(int needed) {
+		if (position + needed > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, position + needed));
+		}
+	}
+}
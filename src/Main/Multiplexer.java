@@ -0,0 +1,184 @@
+package Main;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Lets several binary requests (see Message) be in flight at once on one
+ * connection. Each request is sent with a fresh request ID and the reply is
+ * matched to it by that ID, whatever order the replies come back in, so a job
+ * request can be waiting on the server while heartbeats and sign offs go back
+ * and forth on the same connection.
+ *
+ * There is no reader thread. Whoever is waiting on a reply and finds nobody
+ * else reading reads for everyone: replies for other requests are set aside
+ * for their callers (who are woken to collect them) and it stops at its own.
+ * One of the callers then takes over reading if any are still waiting. The
+ * connection is left alone while nothing is in flight, so the legacy text
+ * exchanges (rekey, compression) can still be run on it then.
+ *
+ * @author Cole Christie
+ *
+ */
+public class Multiplexer {
+	private Logging mylog;
+	private Networking network;
+	private Crypto crypt;
+	private int LastRequestID;
+	private HashSet<Integer> outstanding; // Sent and not yet answered
+	private HashMap<Integer, Message> arrived; // Answered and not yet collected
+	private boolean reading; // Somebody is reading for everyone
+	private boolean closed;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedLog
+	 * @param passedNetwork
+	 * @param passedCrypt
+	 */
+	public Multiplexer(Logging passedLog, Networking passedNetwork, Crypto passedCrypt) {
+		mylog = passedLog;
+		network = passedNetwork;
+		crypt = passedCrypt;
+		LastRequestID = 0;
+		outstanding = new HashSet<Integer>();
+		arrived = new HashMap<Integer, Message>();
+		reading = false;
+		closed = false;
+	}
+
+	/**
+	 * Starts a request with the passed opcode (the caller adds its fields)
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public synchronized Message Request(byte opcode) {
+		return new Message(opcode, ++LastRequestID);
+	}
+
+	/**
+	 * Sends a request without waiting for its reply, returns its request ID to
+	 * pass to Await
+	 *
+	 * @param request
+	 * @return
+	 */
+	public int Send(Message request) {
+		int RequestID = Queue(request);
+		network.Flush();
+		return RequestID;
+	}
+
+	/**
+	 * Queues a request to go out with the next one sent (see Send), returns
+	 * its request ID to pass to Await
+	 *
+	 * @param request
+	 * @return
+	 */
+	public int Queue(Message request) {
+		int RequestID = request.GetRequestID();
+		synchronized (this) {
+			outstanding.add(RequestID);
+		}
+		network.QueueSealed(crypt, request.ToBytes());
+		return RequestID;
+	}
+
+	/**
+	 * Sends a request that expects no reply (QUIT)
+	 *
+	 * @param request
+	 */
+	public void Post(Message request) {
+		network.SendSealed(crypt, request.ToBytes());
+	}
+
+	/**
+	 * Sends a request and waits for its reply, returns null if the connection
+	 * went away
+	 *
+	 * @param request
+	 * @return
+	 */
+	public Message Call(Message request) {
+		return Await(Send(request));
+	}
+
+	/**
+	 * Returns true if no request is waiting on a reply
+	 *
+	 * @return
+	 */
+	public synchronized boolean IsIdle() {
+		return outstanding.isEmpty() && arrived.isEmpty();
+	}
+
+	/**
+	 * Waits for the reply to a request sent earlier, returns null if the
+	 * connection went away first
+	 *
+	 * @param RequestID
+	 * @return
+	 */
+	public Message Await(int RequestID) {
+		synchronized (this) {
+			while (true) {
+				Message reply = arrived.remove(RequestID);
+				if (reply != null) {
+					return reply;
+				}
+				if (closed || (!outstanding.contains(RequestID))) {
+					outstanding.remove(RequestID);
+					return null;
+				}
+				if (!reading) {
+					reading = true;
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					mylog.out("ERROR", "Interrupted while waiting for a reply");
+					outstanding.remove(RequestID);
+					return null;
+				}
+			}
+		}
+
+		// Read for everyone until this request is answered
+		while (true) {
+			byte[] fetched = network.ReceiveByte();
+			Message reply = (fetched == null) ? null : Message.Decode(crypt.decryptByte(fetched));
+			synchronized (this) {
+				if (fetched == null) {
+					// Nobody is getting an answer now
+					closed = true;
+					reading = false;
+					outstanding.clear();
+					notifyAll();
+					return null;
+				}
+				if (reply == null) {
+					mylog.out("ERROR", "Received a reply that is not a binary message, dropping it");
+					continue;
+				}
+				int answered = reply.GetRequestID();
+				if (!outstanding.remove(answered)) {
+					mylog.out("WARN", "Received a reply to request [" + answered + "] that nobody is waiting on");
+					continue;
+				}
+				if (answered == RequestID) {
+					// Hand reading over to whoever is still waiting
+					reading = false;
+					notifyAll();
+					return reply;
+				}
+				arrived.put(answered, reply);
+				notifyAll();
+			}
+		}
+	}
+}
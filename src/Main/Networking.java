@@ -1,17 +1,54 @@
 package Main;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.net.UnknownHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides networking support to securely bind to a port to listen or connect
  * to a remote port for communication
  * 
+ * Every message travels as one frame: a four byte length, a one byte frame
+ * type and then exactly that many bytes of payload. Reads block until a whole
+ * frame has arrived (or the idle limit passes), so each message is delivered
+ * as soon as it lands and always intact, however TCP splits or joins it.
+ * 
+ * Frames to send are packed (header and payload together) into a direct
+ * buffer and written with one gathering write of the socket channel, so
+ * sending allocates nothing and a frame costs one system call. Queue adds a
+ * frame without writing it and Flush writes everything queued at once, so
+ * several replies can share that one call; Send does both. A payload too big
+ * for the buffer is written straight from the callers array, in the same
+ * gathering write as the header ahead of it. The buffer is taken from the
+ * BufferPool by the first frame queued and handed back by the Flush that
+ * writes it, so an idle connection holds none. Sends are serialised by a
+ * ReentrantLock rather than a monitor, so a virtual thread blocked in a write
+ * does not pin its carrier.
+ * 
+ * Reads are not buffered: a frame is read with one read for its header and
+ * one for its payload, and the only allocation per frame received is the
+ * payload handed to the caller. The payload array is grown as its bytes
+ * arrive rather than sized from the header up front, so a peer announcing a
+ * large frame holds no more memory than it has actually sent. A server caps
+ * frames at HANDSHAKEFRAME (see SetFrameLimit) until the peer has shown it
+ * holds the key.
+ * 
  * @author Cole Christie
  * 
  */
@@ -20,9 +57,26 @@ public class Networking {
 	private ServerSocket serverSocket;
 	private Socket ClientSocket;
 	private DataInputStream receive;
-	private DataOutputStream send;
+	private WritableByteChannel send;
+	private ByteBuffer outbox; // Frames queued and not yet written (pooled)
+	private ByteBuffer[] gather; // The outbox and an oversized payload
+	private ReentrantLock sending;
+	private byte[] header;
 	private int IdleLimit;
+	private int FrameLimit;
 
+	// Frame types
+	public static final byte FRAMEDATA = 0;
+
+	// Bytes ahead of every payload (length and type)
+	static final int HEADERSIZE = 5;
+	// Largest frame accepted (anything bigger is treated as a broken stream)
+	static final int MAXFRAME = 64 * 1024 * 1024;
+	// Largest frame accepted from a peer that has not yet shown it holds the
+	// key (the handshake is far smaller)
+	static final int HANDSHAKEFRAME = 4 * 1024;
+	// Most of a payload allocated ahead of its bytes arriving
+	private static int READSTEP = 64 * 1024;
 	// If verbose byte level network logging should be displayed
 	private static boolean VERBOSE = false;
 
@@ -53,8 +107,9 @@ public class Networking {
 		}
 		mylog = passedLog;
 		try {
-			ClientSocket = new Socket(target, port);
-		} catch (UnknownHostException e) {
+			// Opened as a channel so frames can be sent with gathering writes
+			ClientSocket = SocketChannel.open(new InetSocketAddress(target, port)).socket();
+		} catch (UnresolvedAddressException e) {
 			mylog.out("FATAL", "Unknown host [" + target + "]");
 		} catch (IOException e) {
 			mylog.out("FATAL", "Unable to connect to target server and/or port");
@@ -71,6 +126,15 @@ public class Networking {
 		return ClientSocket;
 	}
 
+	/**
+	 * Passes the servers listening channel outside of the Networking class
+	 * 
+	 * @return
+	 */
+	public ServerSocketChannel PassBackServer() {
+		return serverSocket.getChannel();
+	}
+
 	/**
 	 * Binds to a port to listen for new connections
 	 */
@@ -82,7 +146,9 @@ public class Networking {
 			mylog.out("WARN", "Passed port number is out of bounds or in privledged space, defaulting to 8080.");
 		}
 		try {
-			serverSocket = new ServerSocket(socket);
+			// Bound through a channel so the NIO engine can accept from it too
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.bind(new InetSocketAddress(socket));
 		} catch (IOException e) {
 			mylog.out("FATAL", "Could not listen on port. Port probably in use.");
 			System.exit(0);
@@ -116,13 +182,42 @@ public class Networking {
 		return newClient;
 	}
 
+	/**
+	 * Changes how long a read waits for a frame before giving up
+	 * 
+	 * @param millis
+	 */
+	public void SetIdleLimit(int millis) {
+		IdleLimit = millis;
+		try {
+			if (ClientSocket != null) {
+				ClientSocket.setSoTimeout(IdleLimit);
+			}
+		} catch (SocketException e) {
+			mylog.out("WARN", "Failed to set the idle limit on the socket");
+		}
+	}
+
 	/**
 	 * Connects IO to socket
 	 * 
 	 * @param passedSocket
 	 */
 	public void BringUp(Socket passedSocket) {
+		// Reads give up once the connection has been idle this long, and
+		// small frames go out without waiting to be coalesced
+		try {
+			passedSocket.setSoTimeout(IdleLimit);
+			passedSocket.setTcpNoDelay(true);
+		} catch (SocketException e) {
+			mylog.out("WARN", "Failed to set the idle limit on the socket");
+		} catch (NullPointerException e) {
+			mylog.out("ERROR", "No socket to set the idle limit on");
+		}
+
 		// Bind input/output to the socket
+		header = new byte[HEADERSIZE];
+		FrameLimit = MAXFRAME;
 		try {
 			receive = new DataInputStream(passedSocket.getInputStream());
 		} catch (NullPointerException e1) {
@@ -131,10 +226,30 @@ public class Networking {
 			mylog.out("ERROR", "Failed to setup RECEIVE input stream");
 		}
 		try {
-			send = new DataOutputStream(passedSocket.getOutputStream());
+			// Every socket made here has a channel, a plain one is written to
+			// through its stream instead
+			send = passedSocket.getChannel();
+			if (send == null) {
+				send = Channels.newChannel(passedSocket.getOutputStream());
+			}
 		} catch (IOException e) {
 			mylog.out("ERROR", "Failed to setup SEND output stream");
+		} catch (NullPointerException e) {
+			mylog.out("ERROR", "Failed to setup SEND output stream");
 		}
+		gather = new ByteBuffer[2];
+		sending = new ReentrantLock();
+	}
+
+	/**
+	 * Sets the largest frame ReceiveByte accepts (MAXFRAME after BringUp).
+	 * A server lowers it to HANDSHAKEFRAME until the client has shown it holds
+	 * the key.
+	 *
+	 * @param limit
+	 */
+	public void SetFrameLimit(int limit) {
+		FrameLimit = Math.min(limit, MAXFRAME);
 	}
 
 	/**
@@ -151,6 +266,16 @@ public class Networking {
 			send.close();
 		} catch (IOException e) {
 			mylog.out("ERROR", "Failed to close SEND");
+		} catch (NullPointerException e) {
+			mylog.out("ERROR", "Failed to close SEND, no output stream");
+		}
+		if (sending != null) {
+			sending.lock();
+			try {
+				Release();
+			} finally {
+				sending.unlock();
+			}
 		}
 	}
 
@@ -160,16 +285,7 @@ public class Networking {
 	 * @param data
 	 */
 	public void Send(String data) {
-		try {
-			send.writeUTF(data);
-		} catch (IOException e1) {
-			mylog.out("ERROR", "Failed to SEND data STRING");
-		}
-		try {
-			send.flush();
-		} catch (IOException e) {
-			mylog.out("ERROR", "Failed to flush SEND buffer");
-		}
+		Send(data.getBytes(StandardCharsets.UTF_8));
 	}
 
 	/**
@@ -178,130 +294,243 @@ public class Networking {
 	 * @param data
 	 */
 	public void Send(byte[] data) {
+		SendFrame(FRAMEDATA, data);
+	}
+
+	/**
+	 * Sends one frame (length, type and payload in a single write)
+	 * 
+	 * @param type
+	 * @param data
+	 */
+	public void SendFrame(byte type, byte[] data) {
+		sending.lock();
 		try {
-			send.write(data);
-			if (VERBOSE) {
-				mylog.out("INFO", "Wrote [" + data.length + "] bytes.");
-			}
-		} catch (IOException e1) {
-			mylog.out("ERROR", "Failed to SEND data byte[]");
+			QueueFrame(type, data);
+			Flush();
+		} finally {
+			sending.unlock();
 		}
+	}
+
+	/**
+	 * Queues data to be sent by the next Flush DATA TYPE: byte[]
+	 * 
+	 * @param data
+	 */
+	public void Queue(byte[] data) {
+		QueueFrame(FRAMEDATA, data);
+	}
+
+	/**
+	 * Seals a message and sends it in one step, so messages sealed by several
+	 * threads leave in the order their nonces were counted (see CipherEngine)
+	 * 
+	 * @param crypt
+	 * @param data
+	 */
+	public void SendSealed(Crypto crypt, byte[] data) {
+		sending.lock();
 		try {
-			send.flush();
-		} catch (IOException e) {
-			mylog.out("ERROR", "Failed to flush SEND buffer");
+			QueueSealed(crypt, data);
+			Flush();
+		} finally {
+			sending.unlock();
 		}
 	}
 
 	/**
-	 * Receives data over socket DATA TYPE: string UTF safe
+	 * Seals a message and queues it in one step to be sent by the next Flush
+	 * (see SendSealed)
 	 * 
+	 * @param crypt
 	 * @param data
 	 */
-	public String Receive() {
-		String fetched = null;
+	public void QueueSealed(Crypto crypt, byte[] data) {
+		sending.lock();
 		try {
-			fetched = receive.readUTF();
-		} catch (IOException e1) {
-			mylog.out("ERROR", "Failed to RECEIVE data STRING");
-			fetched = null;
+			byte[] sealed = crypt.encrypt(data);
+			if (sealed != null) {
+				QueueFrame(FRAMEDATA, sealed);
+			}
+		} finally {
+			sending.unlock();
 		}
-		return fetched;
 	}
 
 	/**
-	 * Receives data over socket DATA TYPE: byte[]
+	 * Queues one frame to be sent by the next Flush. Frames already queued are
+	 * written first if there is no room left for it.
 	 * 
+	 * @param type
 	 * @param data
 	 */
-	public byte[] ReceiveByte() {
-		// Prep
-		int read = 0;
-		byte[] fetched = null;
-		int sleepFOR = 25; // a very small fraction of a second
-		int sleeptFOR = 0; // sleep counter
-
-		// Wait (block) for data
+	public void QueueFrame(byte type, byte[] data) {
+		if (send == null) {
+			mylog.out("ERROR", "Failed to SEND data byte[], no output stream");
+			return;
+		}
+		sending.lock();
 		try {
-			while (receive.available() == 0) {
-				try {
-					Thread.sleep(sleepFOR);
-				} catch (InterruptedException e) {
-					mylog.out("WARN", "Failed to sleep while waiting for data over the network.");
-				}
-				sleeptFOR += sleepFOR;
-				if (sleeptFOR >= IdleLimit) {
-					mylog.out("WARN", "Conection has timed out from inactvitiy. Limit of [" + IdleLimit + "ms].");
-					break;
+			if (outbox == null) {
+				outbox = BufferPool.Take();
+			}
+			if (outbox.remaining() < (HEADERSIZE + data.length)) {
+				Write(null);
+				if ((HEADERSIZE + data.length) > outbox.capacity()) {
+					// Too big to copy, it goes out behind its header as is
+					outbox.putInt(data.length);
+					outbox.put(type);
+					Write(ByteBuffer.wrap(data));
+					return;
 				}
 			}
-		} catch (IOException e2) {
-			mylog.out("WARN", "Failed to determine if data would/was arriving on the network so we could wait for it.");
+			outbox.putInt(data.length);
+			outbox.put(type);
+			outbox.put(data);
+		} finally {
+			sending.unlock();
 		}
+	}
 
-		// Data has arrived
+	/**
+	 * Writes every queued frame in one go and hands the outbox back
+	 */
+	public void Flush() {
+		if (sending == null) {
+			return;
+		}
+		sending.lock();
 		try {
-			fetched = new byte[receive.available()];
-			try {
-				read = receive.read(fetched);
-				if (VERBOSE) {
-					mylog.out("INFO", "Read [" + read + "] bytes.");
-				}
-			} catch (IOException e1) {
-				mylog.out("ERROR", "Failed to RECEIVE data STRING");
-				fetched = null;
+			if ((outbox != null) && (outbox.position() > 0)) {
+				Write(null);
 			}
-		} catch (IOException e) {
-			mylog.out("ERROR", "Failed to determine size of inbound data in bytes");
+			Release();
 		} finally {
-			if (read <= 0) {
-				fetched = null;
-				mylog.out("WARN", "Failed to read anything from the input stream.");
-			}
+			sending.unlock();
 		}
-		return fetched;
 	}
 
 	/**
-	 * Receives data over socket DATA TYPE: byte[]
-	 * 
-	 * @param data
+	 * Hands the outbox (if taken) back to the pool, called holding sending
 	 */
-	public byte[] ReceiveByteACK() {
-		// Prep
-		int read = 0;
-		byte[] fetched = null;
+	private void Release() {
+		if (outbox != null) {
+			BufferPool.Give(outbox);
+			outbox = null;
+		}
+	}
 
-		// Wait (block) for data
+	/**
+	 * Writes the outbox and then the passed payload (if any) in as few calls
+	 * as the channel allows, leaving the outbox empty
+	 * 
+	 * @param payload
+	 */
+	private void Write(ByteBuffer payload) {
+		outbox.flip();
+		int written = outbox.remaining();
 		try {
-			while (receive.available() == 0) {
-				try {
-					Thread.sleep(1);
-				} catch (InterruptedException e) {
-					mylog.out("ERROR", "Failed to sleep while waiting for data over the network.");
+			if (send instanceof GatheringByteChannel) {
+				gather[0] = outbox;
+				gather[1] = payload;
+				int count = (payload == null) ? 1 : 2;
+				while (gather[count - 1].hasRemaining()) {
+					((GatheringByteChannel) send).write(gather, 0, count);
+				}
+			} else {
+				while (outbox.hasRemaining()) {
+					send.write(outbox);
+				}
+				while ((payload != null) && payload.hasRemaining()) {
+					send.write(payload);
 				}
 			}
-		} catch (IOException e2) {
-			mylog.out("ERROR", "Failed to determine if data would/was arriving on the network so we could wait for it.");
+			if (payload != null) {
+				written += payload.capacity();
+			}
+			if (VERBOSE) {
+				mylog.out("INFO", "Wrote [" + written + "] bytes.");
+			}
+		} catch (IOException e1) {
+			mylog.out("ERROR", "Failed to SEND data byte[]");
+		} catch (NullPointerException e) {
+			mylog.out("ERROR", "Failed to SEND data byte[], no output stream");
+		} finally {
+			outbox.clear();
+			gather[1] = null;
+		}
+	}
+
+	/**
+	 * Receives data over socket DATA TYPE: string UTF safe
+	 * 
+	 * @param data
+	 */
+	public String Receive() {
+		byte[] fetched = ReceiveByte();
+		if (fetched == null) {
+			mylog.out("ERROR", "Failed to RECEIVE data STRING");
+			return null;
 		}
+		return new String(fetched, StandardCharsets.UTF_8);
+	}
 
-		// Data has arrived
+	/**
+	 * Receives data over socket DATA TYPE: byte[]. Blocks until a whole frame
+	 * has arrived, returns null if the connection closed, broke or sat idle
+	 * past the limit.
+	 * 
+	 * @param data
+	 */
+	public byte[] ReceiveByte() {
 		try {
-			fetched = new byte[32];
-			try {
-				read = receive.read(fetched, 0, 32);
-				if (VERBOSE) {
-					mylog.out("INFO", "Read [" + read + "] bytes.");
+			receive.readFully(header);
+			int length = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8)
+					| (header[3] & 0xff);
+			byte type = header[4];
+			if ((length < 0) || (length > FrameLimit)) {
+				mylog.out("ERROR", "Received a frame of [" + length + "] bytes, the stream is broken");
+				return null;
+			}
+			if (type != FRAMEDATA) {
+				mylog.out("WARN", "Received a frame of unknown type [" + type + "]");
+			}
+			// Grow the payload as it arrives rather than trusting the header
+			byte[] fetched = new byte[Math.min(length, READSTEP)];
+			int filled = 0;
+			while (filled < length) {
+				if (filled == fetched.length) {
+					fetched = Arrays.copyOf(fetched, (int) Math.min(length, fetched.length * 2L));
+				}
+				int read = receive.read(fetched, filled, fetched.length - filled);
+				if (read < 0) {
+					throw new EOFException();
 				}
-			} catch (IOException e1) {
-				mylog.out("ERROR", "Failed to RECEIVE data STRING");
-				fetched = null;
+				filled += read;
 			}
-		} finally {
-			if (read <= 0) {
-				mylog.out("ERROR", "Failed to read anything from the input stream.");
+			if (VERBOSE) {
+				mylog.out("INFO", "Read [" + length + "] bytes.");
 			}
+			return fetched;
+		} catch (SocketTimeoutException e) {
+			mylog.out("WARN", "Conection has timed out from inactvitiy. Limit of [" + IdleLimit + "ms].");
+		} catch (EOFException e) {
+			mylog.out("WARN", "Connection closed by the other side.");
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to RECEIVE data byte[] [" + e + "]");
+		} catch (NullPointerException e) {
+			mylog.out("ERROR", "Failed to RECEIVE data byte[], no input stream");
 		}
-		return fetched;
+		return null;
+	}
+
+	/**
+	 * Receives an ACK over socket DATA TYPE: byte[]. ACKs are ordinary frames.
+	 * 
+	 * @param data
+	 */
+	public byte[] ReceiveByteACK() {
+		return ReceiveByte();
 	}
 }
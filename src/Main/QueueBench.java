@@ -0,0 +1,148 @@
+package Main;
+
+import java.util.ArrayList;
+
+/**
+ * Job assignment benchmark. Fills the unassigned queue to a few depths and
+ * times how long each assignment takes as the queue grows. Run it with:
+ *
+ * java -Drounds=3 -Dassigns=2000 -cp Truss*.jar Main.QueueBench
+ *
+ * The front half of every queue is Windows jobs and the back half Linux jobs
+ * of mixed security levels, and only Linux clients ask for work, so each
+ * assignment has a backlog it can not take in front of it (the case that hurt
+ * most). "scan" is the original path (one ArrayList searched from the front
+ * with toLowerCase().contains on every job, the issued list searched for the
+ * client and the job removed by shifting the rest of the array), "buckets" is
+ * JobManagement.Assign over JobBuckets. Every assignment is checked to be a
+ * Linux job the client may run. A queue is never drained by more than a
+ * quarter, so its depth holds for the whole round.
+ *
+ * @author Cole Christie
+ *
+ */
+public class QueueBench {
+	// Queue depths compared
+	private static int[] DEPTHS = { 1000, 10000, 100000, 300000 };
+	// Highest security level of a queued job (clients ask at level 2)
+	private static int LEVELS = 3;
+
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int rounds = Integer.parseInt(System.getProperty("rounds", "3"));
+		int assigns = Integer.parseInt(System.getProperty("assigns", "2000"));
+
+		System.out.println("Best of [" + rounds + "] rounds");
+		System.out.println(String.format("%-8s %8s %8s %12s %12s", "mode", "depth", "assigns", "us/assign",
+				"k assigns/s"));
+		for (int depth : DEPTHS) {
+			int made = Math.min(assigns, depth / 4);
+			for (String mode : new String[] { "scan", "buckets" }) {
+				Run(mode, depth, made); // Warm up
+				long best = Long.MAX_VALUE;
+				for (int round = 0; round < rounds; round++) {
+					best = Math.min(best, Run(mode, depth, made));
+				}
+				System.out.println(String.format("%-8s %8d %8d %12.2f %12.1f", mode, depth, made,
+						best / 1000.0 / made, made / (best / 1000000000.0) / 1000));
+			}
+		}
+	}
+
+	/**
+	 * Fills a queue to depth and makes the assignments, returns the wall time
+	 * of the assignments in nanoseconds
+	 *
+	 * @param mode
+	 * @param depth
+	 * @param assigns
+	 * @return
+	 */
+	private static long Run(String mode, int depth, int assigns) {
+		ArrayList<Jobs> jobs = new ArrayList<Jobs>(depth);
+		for (int scan = 0; scan < depth; scan++) {
+			String OS = (scan < depth / 2) ? "windows" : "linux";
+			jobs.add(new Jobs("job " + scan, OS, 1 + (scan % LEVELS)));
+		}
+
+		if (mode.equals("scan")) {
+			ArrayList<Jobs> issued = new ArrayList<Jobs>();
+			long started = System.nanoTime();
+			for (int scan = 0; scan < assigns; scan++) {
+				Check(ScanAssign(jobs, issued, "client" + scan, "Linux", 2), depth);
+			}
+			return System.nanoTime() - started;
+		}
+
+		JobManagement JobQueue = new JobManagement();
+		JobQueue.AddBatch(jobs);
+		long started = System.nanoTime();
+		for (int scan = 0; scan < assigns; scan++) {
+			Check(JobQueue.Assign("client" + scan, "Linux", 2), depth);
+		}
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * Fails the run if an assignment is missing, not a Linux job or above the
+	 * clients level
+	 *
+	 * @param work
+	 * @param depth
+	 */
+	private static void Check(String work, int depth) {
+		if (work.isEmpty()) {
+			throw new IllegalStateException("No job was assigned");
+		}
+		int number = Integer.parseInt(work.substring(4));
+		if ((number < depth / 2) || (1 + (number % LEVELS) > 2)) {
+			throw new IllegalStateException("Assigned [" + work + "] which the client may not run");
+		}
+	}
+
+	/**
+	 * The original assignment: the first job for the clients OS (or any OS)
+	 * at or below its level, searched for from the front of the list
+	 *
+	 * @param jobqueue
+	 * @param jobsent
+	 * @param clientsName
+	 * @param OS
+	 * @param SecLev
+	 * @return
+	 */
+	private static String ScanAssign(ArrayList<Jobs> jobqueue, ArrayList<Jobs> jobsent, String clientsName,
+			String OS, int SecLev) {
+		OS = OS.toLowerCase().contains("windows") ? "windows" : "linux";
+		int fetch = -1;
+		for (int scan = 0; scan < jobqueue.size(); scan++) {
+			Jobs looking = jobqueue.get(scan);
+			if (((looking.GetOSspecific().toLowerCase().contains(OS.toLowerCase()))
+					|| (looking.GetOSspecific().toLowerCase().contains("any")))
+					&& (looking.GetSecurityLevel() <= SecLev)) {
+				fetch = scan;
+				break;
+			}
+		}
+		if (fetch == -1) {
+			return "";
+		}
+
+		// Safety check (the client must not already hold a job)
+		for (Jobs looking : jobsent) {
+			if (looking.GetIussed() == clientsName) {
+				return "";
+			}
+		}
+
+		Jobs jobUnit = jobqueue.remove(fetch);
+		jobUnit.SetIssued(clientsName);
+		jobUnit.SetTimeIssued();
+		jobsent.add(jobUnit);
+		return jobUnit.GetWork();
+	}
+}
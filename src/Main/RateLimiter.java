@@ -0,0 +1,46 @@
+package Main;
+
+/**
+ * Token bucket rate limiter. Tokens refill continuously at the set rate up to
+ * one seconds worth, so a client can burst briefly but not sustain more than
+ * the rate. Not thread safe, each connection has its own.
+ *
+ * @author Cole Christie
+ *
+ */
+public class RateLimiter {
+	private double NanosPerToken;
+	private double capacity;
+	private double tokens;
+	private long last;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param PerSecond
+	 *            (must be above 0)
+	 */
+	public RateLimiter(int PerSecond) {
+		NanosPerToken = 1000000000.0 / PerSecond;
+		capacity = PerSecond;
+		tokens = capacity;
+		last = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token if one is available and returns 0, otherwise returns how
+	 * many nanoseconds until one will be (nothing is taken)
+	 *
+	 * @return
+	 */
+	public long Take() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + ((now - last) / NanosPerToken));
+		last = now;
+		if (tokens >= 1) {
+			tokens--;
+			return 0;
+		}
+		return Math.max(1, (long) ((1 - tokens) * NanosPerToken));
+	}
+}
@@ -0,0 +1,202 @@
+package Main;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Rekey latency benchmark. Runs the Diffie Hellman work of a rekey (picking a
+ * group, both key pairs, both agreements and both switches to the new key)
+ * for both ends in this process, so the network is left out and only the
+ * cost a rekey adds on top of its round trips is measured. Run it with:
+ *
+ * java -Drekeys=50 -cp Truss*.jar Main.RekeyBench
+ *
+ * "search" is how a client used to start a rekey (searching for a fresh 1024
+ * bit prime and a random base every time), "fixed" and "pool" are the
+ * dhparams settings and "x25519" is the elliptic curve agreement (see ECDH).
+ * The time it takes the background thread to generate one
+ * pooled group is reported as well, as that is what keeps the pool full.
+ *
+ * A second table runs whole rekeys against a drop off over a loopback
+ * connection: "legacy" is the original ACK paced exchange and "single" the
+ * single round trip (see Rekeyer), both with the fixed group, and "x25519"
+ * is the single round trip with X25519.
+ *
+ * @author Cole Christie
+ *
+ */
+public class RekeyBench {
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws GeneralSecurityException, IOException, InterruptedException {
+		Logging mylog = new Logging(System.getProperty("loglevel", "ERROR"));
+		int rekeys = Integer.parseInt(System.getProperty("rekeys", "50"));
+
+		// Groups for the pool run are made up front, as the background thread
+		// would have
+		long started = System.nanoTime();
+		DHParameterSpec[] pooled = new DHParameterSpec[Math.min(rekeys, 4)];
+		for (int scan = 0; scan < pooled.length; scan++) {
+			pooled[scan] = DHParameters.Generate(2048);
+		}
+		double generating = (System.nanoTime() - started) / 1000000.0 / pooled.length;
+
+		System.out.println("[" + rekeys + "] rekeys per source, DH work of both ends, network excluded");
+		System.out.println(String.format("%-7s %9s %9s %9s %9s", "source", "mean ms", "p50 ms", "p90 ms", "max ms"));
+		for (String source : new String[] { "search", "fixed", "pool", "x25519" }) {
+			Rekey(mylog, source, pooled[0]); // Warm up
+			double[] took = new double[rekeys];
+			for (int scan = 0; scan < rekeys; scan++) {
+				long began = System.nanoTime();
+				Rekey(mylog, source, pooled[scan % pooled.length]);
+				took[scan] = (System.nanoTime() - began) / 1000000.0;
+			}
+			double total = 0;
+			for (double each : took) {
+				total += each;
+			}
+			Arrays.sort(took);
+			System.out.println(String.format("%-7s %9.1f %9.1f %9.1f %9.1f", source, total / rekeys,
+					took[rekeys / 2], took[(rekeys * 9) / 10], took[rekeys - 1]));
+		}
+		System.out.println(String.format("Generating one pooled 2048 bit group took %.0f ms (background)",
+				generating));
+
+		System.out.println();
+		System.out.println("[" + rekeys + "] rekeys per exchange, against a drop off over loopback");
+		System.out.println(String.format("%-7s %9s %9s %9s %9s", "rekey", "mean ms", "p50 ms", "p90 ms", "max ms"));
+		for (String exchange : new String[] { "legacy", "single", "x25519" }) {
+			double[] took = Exchange(mylog, exchange, rekeys);
+			double total = 0;
+			for (double each : took) {
+				total += each;
+			}
+			Arrays.sort(took);
+			System.out.println(String.format("%-7s %9.1f %9.1f %9.1f %9.1f", exchange, total / rekeys,
+					took[rekeys / 2], took[(rekeys * 9) / 10], took[rekeys - 1]));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Connects to a drop off running in this process and times each of the
+	 * passed number of rekeys with it (after one to warm up)
+	 *
+	 * @param mylog
+	 * @param exchange
+	 * @param rekeys
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static double[] Exchange(Logging mylog, String exchange, int rekeys)
+			throws IOException, InterruptedException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Socket client = SocketChannel.open(listener.getLocalAddress()).socket();
+		Socket accepted = listener.accept().socket();
+		listener.close();
+
+		Auth subject = new Auth(mylog);
+		subject.SetPSK("RekeyBench");
+		Thread dropoff = new Thread(new ServerThread(subject, mylog, accepted, 1, null, false, 0, 0, null));
+		dropoff.setDaemon(true);
+		dropoff.start();
+
+		// Handshake as the client would
+		Networking network = new Networking(mylog);
+		network.BringUp(client);
+		Crypto crypt = new Crypto(mylog, "RekeyBench", "Drop Off");
+		network.Send(crypt.encrypt("RekeyBench"));
+		if (!crypt.decrypt(network.ReceiveByte()).equals("RekeyBench<S>")) {
+			throw new IllegalStateException("The drop off did not answer the handshake");
+		}
+
+		Rekeyer rekeyer = new Rekeyer(mylog, new DHParameters(mylog, "fixed"),
+				exchange.equals("x25519") ? "x25519" : "dh");
+		double[] took = new double[rekeys];
+		for (int scan = -1; scan < rekeys; scan++) {
+			long began = System.nanoTime();
+			if (exchange.equals("legacy")) {
+				rekeyer.Legacy(network, crypt, "Drop Off");
+			} else if (!rekeyer.SingleTrip(network, crypt, "Drop Off")) {
+				throw new IllegalStateException("The drop off did not take the single round trip rekey");
+			}
+			if (scan >= 0) {
+				took[scan] = (System.nanoTime() - began) / 1000000.0;
+			}
+		}
+
+		// Check the new key works both ways before leaving
+		network.Send(crypt.encrypt(""));
+		if (!crypt.decrypt(network.ReceiveByte()).isEmpty()) {
+			throw new IllegalStateException("The two ends did not agree on a key");
+		}
+		network.Send(crypt.encrypt(new Message(Message.QUIT, 0).ToBytes()));
+		dropoff.join();
+		network.BringDown();
+		client.close();
+		return took;
+	}
+
+	/**
+	 * Runs one rekeys DH work for the client and the server
+	 *
+	 * @param mylog
+	 * @param source
+	 * @param pooled
+	 */
+	private static void Rekey(Logging mylog, String source, DHParameterSpec pooled) {
+		if (source.equals("x25519")) {
+			ECDH client = new ECDH(mylog);
+			ECDH server = new ECDH(mylog);
+			server.Agree(client.GetPublicKeyBF(), "Client");
+			client.Agree(server.GetPublicKeyBF(), "Server");
+			if (!Arrays.equals(client.GetSharedSecretBytes(), server.GetSharedSecretBytes())) {
+				throw new IllegalStateException("The two ends did not agree on a secret");
+			}
+			byte[] clientKey = client.GetPublicKeyBF();
+			byte[] serverKey = server.GetPublicKeyBF();
+			Crypto toServer = new Crypto(mylog, "RekeyBench", "Bench");
+			toServer.ReKey(toServer.DeriveRekey(client.GetSharedSecretBytes(), clientKey, serverKey)[0], "Server");
+			Crypto toClient = new Crypto(mylog, "RekeyBench", "Bench");
+			toClient.ReKey(toClient.DeriveRekey(server.GetSharedSecretBytes(), clientKey, serverKey)[0], "Client");
+			return;
+		}
+
+		DH client;
+		if (source.equals("search")) {
+			client = new DH(mylog);
+		} else if (source.equals("fixed")) {
+			client = new DH(mylog, DHParameters.Fixed());
+		} else {
+			client = new DH(mylog, pooled);
+		}
+
+		// The server builds its side from the prime and base sent to it
+		DH server = new DH(mylog, client.GetPrime(16), 16, client.GetBase(16), 16);
+		client.DHPhase1();
+		server.DHPhase1();
+		server.DHPhase2(server.CraftPublicKey(client.GetPublicKeyBF()), "Client");
+		client.DHPhase2(client.CraftPublicKey(server.GetPublicKeyBF()), "Server");
+		if (!client.GetSharedSecret(16).equals(server.GetSharedSecret(16))) {
+			throw new IllegalStateException("The two ends did not agree on a secret");
+		}
+		new Crypto(mylog, "RekeyBench", "Bench").ReKey(client.GetSharedSecret(10), "Server");
+		new Crypto(mylog, "RekeyBench", "Bench").ReKey(server.GetSharedSecret(10), "Client");
+	}
+}
@@ -0,0 +1,241 @@
+package Main;
+
+import java.security.MessageDigest;
+import java.util.HashSet;
+
+/**
+ * Runs the client side of a rekey with the server or the drop off.
+ *
+ * The rekey is a single round trip: a REKEY message (see Message) carries the
+ * key agreement group and the clients public key, and the REKEYED reply
+ * carries the other ends public key and a confirmation that it derived the
+ * same new key (see Crypto.DeriveRekey). Both are sent under the current key
+ * and both ends switch to the new key straight after the reply. Groups are
+ * numbered as IKEv2 numbers them: X25519 (31, see ECDH) or the fixed RFC 3526
+ * Diffie Hellman group (14), otherwise (0) a Diffie Hellman prime and base
+ * follow.
+ *
+ * X25519 is offered first when it is enabled. An end that refuses it is
+ * asked again with Diffie Hellman, and is not offered X25519 again.
+ *
+ * An end that does not know the single round trip answers with something
+ * else, in which case the original ACK paced exchange is run instead.
+ *
+ * Nothing else may be in flight on the connection during a rekey.
+ *
+ * @author Cole Christie
+ *
+ */
+public class Rekeyer {
+	private Logging mylog;
+	private DHParameters groups;
+	private boolean curves; // Offer X25519 first
+	private HashSet<String> NoCurves; // Ends that refused X25519
+
+	// Group numbers sent in a REKEY message
+	static final int EXPLICITGROUP = 0;
+	static final int MODP2048GROUP = 14;
+	static final int X25519GROUP = 31;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedLog
+	 * @param passedGroups
+	 *            (where the Diffie Hellman group each rekey starts with comes
+	 *            from)
+	 * @param agreement
+	 *            (x25519 or dh)
+	 */
+	public Rekeyer(Logging passedLog, DHParameters passedGroups, String agreement) {
+		mylog = passedLog;
+		groups = passedGroups;
+		NoCurves = new HashSet<String>();
+		curves = "x25519".equalsIgnoreCase(agreement);
+		if ((!curves) && (!"dh".equalsIgnoreCase(agreement))) {
+			mylog.out("WARN", "Unknown key agreement [" + agreement + "], using X25519");
+			curves = true;
+		}
+		if (curves && (!ECDH.IsAvailable())) {
+			mylog.out("WARN", "X25519 is not available in this JVM, rekeying with Diffie Hellman");
+			curves = false;
+		}
+	}
+
+	/**
+	 * Rekeys the connection, in a single round trip if the other end knows it
+	 *
+	 * @param network
+	 * @param crypt
+	 * @param ReKeyedWith
+	 */
+	public void Rekey(Networking network, Crypto crypt, String ReKeyedWith) {
+		if (!SingleTrip(network, crypt, ReKeyedWith)) {
+			Legacy(network, crypt, ReKeyedWith);
+		}
+	}
+
+	/**
+	 * Runs the single round trip rekey. Returns false if the other end does
+	 * not know it (and the ACK paced rekey should be run instead); a rekey
+	 * that fails part way keeps the current key and returns true.
+	 *
+	 * @param network
+	 * @param crypt
+	 * @param ReKeyedWith
+	 * @return
+	 */
+	boolean SingleTrip(Networking network, Crypto crypt, String ReKeyedWith) {
+		boolean offered = curves && (!NoCurves.contains(ReKeyedWith));
+		KeyExchange mine;
+		Message request = new Message(Message.REKEY, 0);
+		if (offered) {
+			mine = new ECDH(mylog);
+			request.Add(X25519GROUP);
+		} else {
+			DH myDH = new DH(mylog, groups.Take());
+			myDH.DHPhase1();
+			if (myDH.GetPrime(16).equals(DHParameters.Fixed().getP().toString(16))) {
+				request.Add(MODP2048GROUP);
+			} else {
+				request.Add(EXPLICITGROUP).Add(myDH.GetPrime(16)).Add(myDH.GetBase(16));
+			}
+			mine = myDH;
+		}
+		byte[] myKey = mine.GetPublicKeyBF();
+		network.Send(crypt.encrypt(request.Add(myKey).ToBytes()));
+
+		byte[] fetched = network.ReceiveByte();
+		Message reply = (fetched == null) ? null : Message.Decode(crypt.decryptByte(fetched));
+		if ((reply == null) || ((reply.GetOpcode() != Message.REKEYED) && (reply.GetOpcode() != Message.ERROR))) {
+			mylog.out("INFO", ReKeyedWith + " does not know the single round trip rekey");
+			return false;
+		} else if ((reply.GetOpcode() == Message.ERROR) && offered) {
+			mylog.out("INFO", ReKeyedWith + " refused X25519 (" + reply.NextText() + "), rekeying with Diffie Hellman");
+			NoCurves.add(ReKeyedWith);
+			return SingleTrip(network, crypt, ReKeyedWith);
+		} else if (reply.GetOpcode() == Message.ERROR) {
+			mylog.out("ERROR", ReKeyedWith + " refused to rekey (" + reply.NextText() + ")");
+			return true;
+		}
+		byte[] theirKey = reply.NextBytes();
+		byte[] confirmation = reply.NextBytes();
+		if (!reply.IsIntact()) {
+			mylog.out("ERROR", ReKeyedWith + " sent a broken rekey reply, keeping the current key");
+			return true;
+		}
+
+		// Agree on the secret and check the other end derived the same key
+		if (!mine.Agree(theirKey, ReKeyedWith)) {
+			mylog.out("ERROR", "Rekey with " + ReKeyedWith + " failed, keeping the current key");
+			return true;
+		}
+		byte[][] derived = crypt.DeriveRekey(mine.GetSharedSecretBytes(), myKey, theirKey);
+		if ((derived == null) || (!MessageDigest.isEqual(derived[1], confirmation))) {
+			mylog.out("ERROR", ReKeyedWith + " did not confirm the new key, keeping the current key");
+			return true;
+		}
+		crypt.ReKey(derived[0], ReKeyedWith);
+		return true;
+	}
+
+	/**
+	 * Runs the original ACK paced rekey, every value sent on its own and each
+	 * message answered by an ACK (see SessionProtocol.Rekey)
+	 *
+	 * @param network
+	 * @param crypt
+	 * @param ReKeyedWith
+	 */
+	void Legacy(Networking network, Crypto crypt, String ReKeyedWith) {
+		// Prep
+		byte[] fetched = null;
+		String ServerResponse = null;
+
+		// Create a DH instance with a ready made PRIME and BASE
+		DH myDH = new DH(mylog, groups.Take());
+
+		// Share data with the server
+		network.Send(crypt.encrypt("<REKEY>"));
+		RecieveACK(network, crypt); // Wait for ACK
+		network.Send(crypt.encrypt("<PRIME>"));
+		RecieveACK(network, crypt); // Wait for ACK
+		network.Send(crypt.encrypt(myDH.GetPrime(16)));
+		RecieveACK(network, crypt); // Wait for ACK
+		network.Send(crypt.encrypt("<BASE>"));
+		RecieveACK(network, crypt); // Wait for ACK
+		network.Send(crypt.encrypt(myDH.GetBase(16)));
+		RecieveACK(network, crypt); // Wait for ACK
+
+		// Validate server agrees with what has been sent
+		fetched = network.ReceiveByte();
+		ServerResponse = crypt.decrypt(fetched); // Opened in the order sent
+		SendACK(network, crypt); // Send ACK
+		if (ServerResponse.compareToIgnoreCase("<REKEY-STARTING>") != 0) {
+			mylog.out("ERROR", ReKeyedWith + " has failed to acknowledge re-keying!");
+		}
+
+		// Phase 1 of DH
+		myDH.DHPhase1();
+
+		// Send my public DH key to SERVER
+		network.Send(crypt.encrypt("<PUBLICKEY>"));
+		RecieveACK(network, crypt); // Wait for ACK
+		network.Send(crypt.encrypt(myDH.GetPublicKeyBF()));
+		RecieveACK(network, crypt); // Wait for ACK
+
+		// Validate server agrees with what has been sent
+		fetched = network.ReceiveByte();
+		ServerResponse = crypt.decrypt(fetched); // Opened in the order sent
+		SendACK(network, crypt); // Send ACK
+		if (ServerResponse.compareToIgnoreCase("<PubKey-GOOD>") != 0) {
+			mylog.out("ERROR", ReKeyedWith + " has failed to acknowledge client public key!");
+		}
+
+		// Receive server public DH key
+		byte[] serverPublicKey = null;
+		fetched = network.ReceiveByte();
+		ServerResponse = crypt.decrypt(fetched); // Opened in the order sent
+		SendACK(network, crypt); // Send ACK(); //Send ACK
+		if (ServerResponse.compareToIgnoreCase("<PUBLICKEY>") != 0) {
+			mylog.out("ERROR", ReKeyedWith + " has failed to send its public key!");
+		} else {
+			fetched = network.ReceiveByte();
+			serverPublicKey = crypt.decryptByte(fetched); // Opened in the order sent
+			SendACK(network, crypt); // Send ACK(); //Send ACK
+			network.Send(crypt.encrypt("<PubKey-GOOD>"));
+			RecieveACK(network, crypt); // Wait for ACK
+		}
+
+		// Use server DH public key to generate shared secret
+		if (!myDH.DHPhase2(myDH.CraftPublicKey(serverPublicKey), ReKeyedWith)) {
+			mylog.out("ERROR", "Rekey with " + ReKeyedWith + " failed, keeping the current key");
+			return;
+		}
+
+		// Final verification
+		// System.out.println("Shared Secret (Hex): " +
+		// myDH.GetSharedSecret(10));
+		crypt.ReKey(myDH.GetSharedSecret(10), ReKeyedWith);
+	}
+
+	/**
+	 * Provides message synchronization
+	 */
+	private void SendACK(Networking network, Crypto crypt) {
+		network.Send(crypt.encrypt("<ACK>"));
+		if (crypt.decrypt(network.ReceiveByteACK()).compareToIgnoreCase("<ACK>") != 0) {
+			mylog.out("ERROR", "Partner failed to ACK");
+		}
+	}
+
+	/**
+	 * Provides message synchronization
+	 */
+	private void RecieveACK(Networking network, Crypto crypt) {
+		if (crypt.decrypt(network.ReceiveByteACK()).compareToIgnoreCase("<ACK>") != 0) {
+			mylog.out("ERROR", "Partner failed to ACK");
+		}
+		network.Send(crypt.encrypt("<ACK>"));
+	}
+}
@@ -0,0 +1,276 @@
+package Main;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact storage for the lines of a job result. Every line is appended as
+ * UTF-8 to one growing byte array and only the offset where each line ends is
+ * kept, so a line costs its encoded size plus four bytes instead of a String
+ * and its backing array. Nothing is allocated until the first line arrives.
+ *
+ * Once a result is complete it can be sealed, which deflates the bytes if that
+ * makes them meaningfully smaller. A sealed buffer can still be counted and
+ * iterated (each iteration inflates a temporary copy) but no longer appended
+ * to.
+ *
+ * @author Cole Christie
+ *
+ */
+public class ResultBuffer implements Iterable<String> {
+	private byte[] data; // UTF-8 lines back to back (deflated once sealed, if smaller)
+	private int[] ends; // Offset just past each line
+	private int used;
+	private int count;
+	private int RawLength; // Length of data before it was deflated, 0 if it was not
+	private boolean sealed;
+
+	// Smallest result worth deflating
+	private static int MINCOMPRESS = 4096;
+
+	/**
+	 * Default constructor.
+	 */
+	public ResultBuffer() {
+		data = null;
+		ends = null;
+		used = 0;
+		count = 0;
+		RawLength = 0;
+		sealed = false;
+	}
+
+	/**
+	 * Appends a line
+	 *
+	 * @param line
+	 */
+	public void Add(String line) {
+		byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+		Append(encoded, 0, encoded.length);
+	}
+
+	/**
+	 * Appends UTF-8 lines separated by newlines (as they arrive in an upload
+	 * chunk) without decoding them. Returns the number of lines added.
+	 *
+	 * @param chunk
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public int AddLines(byte[] chunk, int offset, int length) {
+		int added = 0;
+		int start = offset;
+		int end = offset + length;
+		for (int scan = offset; scan < end; scan++) {
+			if (chunk[scan] == '\n') {
+				Append(chunk, start, scan - start);
+				start = scan + 1;
+				added++;
+			}
+		}
+		Append(chunk, start, end - start);
+		return added + 1;
+	}
+
+	/**
+	 * Appends one line already encoded as UTF-8
+	 *
+	 * @param encoded
+	 * @param offset
+	 * @param length
+	 */
+	private void Append(byte[] encoded, int offset, int length) {
+		if (sealed) {
+			throw new IllegalStateException("Result buffer is sealed");
+		}
+		if (data == null) {
+			data = new byte[Math.max(64, length)];
+			ends = new int[8];
+		}
+		if (used + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, used + length));
+		}
+		if (count == ends.length) {
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		System.arraycopy(encoded, offset, data, used, length);
+		used += length;
+		ends[count] = used;
+		count++;
+	}
+
+	/**
+	 * Returns the number of lines held
+	 *
+	 * @return
+	 */
+	public int Size() {
+		return count;
+	}
+
+	/**
+	 * Trims the buffer to size and, if asked, deflates it when that saves at
+	 * least an eighth of the space. No more lines can be added afterwards.
+	 *
+	 * @param compress
+	 */
+	public void Seal(boolean compress) {
+		if (sealed) {
+			return;
+		}
+		sealed = true;
+		if (data == null) {
+			return;
+		}
+		ends = Arrays.copyOf(ends, count);
+		if (compress && (used >= MINCOMPRESS)) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(data, 0, used);
+			deflater.finish();
+			ByteArrayOutputStream packed = new ByteArrayOutputStream(used / 2);
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished()) {
+				packed.write(chunk, 0, deflater.deflate(chunk));
+			}
+			deflater.end();
+			if (packed.size() < (used - (used / 8))) {
+				RawLength = used;
+				data = packed.toByteArray();
+				used = data.length;
+				return;
+			}
+		}
+		data = Arrays.copyOf(data, used);
+	}
+
+	/**
+	 * Returns roughly how many bytes of heap this buffer holds
+	 *
+	 * @return
+	 */
+	public long Footprint() {
+		long bytes = 40;
+		if (data != null) {
+			bytes += 16 + data.length + 16 + (4L * ends.length);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Iterates the lines in the order they were added
+	 */
+	public Iterator<String> iterator() {
+		final byte[] raw = Raw();
+		return new Iterator<String>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < count;
+			}
+
+			public String next() {
+				if (next >= count) {
+					throw new NoSuchElementException();
+				}
+				int start = (next == 0) ? 0 : ends[next - 1];
+				String line = new String(raw, start, ends[next] - start, StandardCharsets.UTF_8);
+				next++;
+				return line;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns the serialized size used by WriteTo
+	 *
+	 * @return
+	 */
+	public int SerializedSize() {
+		return 12 + (4 * count) + ((data == null) ? 0 : used);
+	}
+
+	/**
+	 * Writes the buffer as [count][raw length][length][line ends][bytes],
+	 * keeping any compression
+	 *
+	 * @param out
+	 */
+	public void WriteTo(ByteBuffer out) {
+		out.putInt(count);
+		out.putInt(RawLength);
+		out.putInt((data == null) ? 0 : used);
+		for (int scan = 0; scan < count; scan++) {
+			out.putInt(ends[scan]);
+		}
+		if (data != null) {
+			out.put(data, 0, used);
+		}
+	}
+
+	/**
+	 * Reads back a sealed buffer written by WriteTo
+	 *
+	 * @param in
+	 * @return
+	 */
+	public static ResultBuffer ReadFrom(ByteBuffer in) {
+		ResultBuffer buffer = new ResultBuffer();
+		buffer.sealed = true;
+		buffer.count = in.getInt();
+		buffer.RawLength = in.getInt();
+		buffer.used = in.getInt();
+		if (buffer.count == 0) {
+			return buffer;
+		}
+		buffer.ends = new int[buffer.count];
+		for (int scan = 0; scan < buffer.count; scan++) {
+			buffer.ends[scan] = in.getInt();
+		}
+		buffer.data = new byte[buffer.used];
+		in.get(buffer.data);
+		return buffer;
+	}
+
+	/**
+	 * Returns the uncompressed bytes (inflating a copy if the buffer was
+	 * deflated)
+	 *
+	 * @return
+	 */
+	private byte[] Raw() {
+		if (RawLength == 0) {
+			return data;
+		}
+		Inflater inflater = new Inflater();
+		inflater.setInput(data, 0, used);
+		byte[] raw = new byte[RawLength];
+		try {
+			int filled = 0;
+			while (filled < RawLength) {
+				int got = inflater.inflate(raw, filled, RawLength - filled);
+				if ((got == 0) && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				filled += got;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Result buffer is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+		return raw;
+	}
+}
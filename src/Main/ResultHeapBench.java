@@ -0,0 +1,153 @@
+package Main;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Result storage heap benchmark. Stores a million lines of job output, split
+ * over jobs the way a drop off holds them, and reports the heap they take.
+ * Run it with:
+ *
+ * java -Dlines=1000000 -Dperjob=100 -cp Truss*.jar Main.ResultHeapBench
+ *
+ * "list" is the original storage (an ArrayList of Strings per job), "buffer"
+ * is ResultBuffer while lines are still arriving, "sealed" is ResultBuffer
+ * once sealed and "deflated" is ResultBuffer sealed with compression (the
+ * compressresults setting). The heap is measured after a full collection
+ * with the results still held, and every result is read back and checked
+ * afterwards. The output is a mix of typical job output (ping, listings and
+ * build logs) with the numbers in it varying from line to line.
+ *
+ * @author Cole Christie
+ *
+ */
+public class ResultHeapBench {
+	/**
+	 * Runs the comparison and prints a table
+	 *
+	 * @param args
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int lines = Integer.parseInt(System.getProperty("lines", "1000000"));
+		int perjob = Integer.parseInt(System.getProperty("perjob", "100"));
+		int jobs = lines / perjob;
+
+		long raw = 0;
+		for (int scan = 0; scan < lines; scan++) {
+			raw += Line(scan).getBytes(StandardCharsets.UTF_8).length;
+		}
+		System.out.println("[" + (jobs * perjob) + "] lines in [" + jobs + "] jobs, ["
+				+ String.format("%.1f", (double) raw / lines) + "] bytes of UTF-8 per line");
+		System.out.println(String.format("%-9s %12s %12s %10s", "mode", "heap MB", "B/line", "vs raw"));
+		for (String mode : new String[] { "list", "buffer", "sealed", "deflated" }) {
+			long before = Used();
+			Object[] held = Store(mode, jobs, perjob);
+			long heap = Used() - before;
+			Check(held, perjob);
+			System.out.println(String.format("%-9s %12.1f %12.1f %10.2f", mode, heap / (1024.0 * 1024),
+					(double) heap / lines, (double) heap / raw));
+		}
+	}
+
+	/**
+	 * Stores the lines of every job the way the mode does, returns what holds
+	 * them
+	 *
+	 * @param mode
+	 * @param jobs
+	 * @param perjob
+	 * @return
+	 */
+	private static Object[] Store(String mode, int jobs, int perjob) {
+		Object[] held = new Object[jobs];
+		int number = 0;
+		for (int job = 0; job < jobs; job++) {
+			if (mode.equals("list")) {
+				ArrayList<String> list = new ArrayList<String>();
+				for (int line = 0; line < perjob; line++) {
+					list.add(Line(number++));
+				}
+				held[job] = list;
+			} else {
+				// Lines arrive in newline separated chunks, as with a bulk upload
+				StringBuilder chunk = new StringBuilder();
+				for (int line = 0; line < perjob; line++) {
+					if (line > 0) {
+						chunk.append('\n');
+					}
+					chunk.append(Line(number++));
+				}
+				byte[] encoded = chunk.toString().getBytes(StandardCharsets.UTF_8);
+				ResultBuffer buffer = new ResultBuffer();
+				buffer.AddLines(encoded, 0, encoded.length);
+				if (!mode.equals("buffer")) {
+					buffer.Seal(mode.equals("deflated"));
+				}
+				held[job] = buffer;
+			}
+		}
+		return held;
+	}
+
+	/**
+	 * Fails the run unless every job reads back the lines it was given
+	 *
+	 * @param held
+	 * @param perjob
+	 */
+	@SuppressWarnings("unchecked")
+	private static void Check(Object[] held, int perjob) {
+		int number = 0;
+		for (Object job : held) {
+			Iterable<String> lines = (job instanceof ResultBuffer) ? (ResultBuffer) job : (ArrayList<String>) job;
+			int count = 0;
+			for (String line : lines) {
+				if (!line.equals(Line(number++))) {
+					throw new IllegalStateException("Line [" + (number - 1) + "] did not read back");
+				}
+				count++;
+			}
+			if (count != perjob) {
+				throw new IllegalStateException("A job read back [" + count + "] lines");
+			}
+		}
+	}
+
+	/**
+	 * Returns line number of the generated output
+	 *
+	 * @param number
+	 * @return
+	 */
+	private static String Line(int number) {
+		switch (number % 4) {
+		case 0:
+			return "64 bytes from 10.0." + (number % 250) + ".1: icmp_seq=" + number + " ttl=64 time="
+					+ (number % 97) / 10.0 + " ms";
+		case 1:
+			return "-rw-r--r-- 1 truss truss " + (number * 7 % 100000) + " Mar 14 09:" + (10 + number % 50)
+					+ " result-" + number + ".log";
+		case 2:
+			return "[INFO] Compiling " + (number % 40) + " source files to /build/module" + (number % 12)
+					+ "/target/classes";
+		default:
+			return "ok";
+		}
+	}
+
+	/**
+	 * Returns the heap in use after a full collection
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private static long Used() throws InterruptedException {
+		for (int scan = 0; scan < 4; scan++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
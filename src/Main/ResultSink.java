@@ -0,0 +1,272 @@
+package Main;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves completed job results out of memory and into files. Results are taken
+ * off the completed queue one job at a time and streamed through a large
+ * buffer, so intake from drop off connections never waits on the disk. A new
+ * file is started whenever the current one grows past the rotation size.
+ *
+ * The sink runs in one of three modes: manual (results are only written when
+ * Save is called, each call starting a new file), continuous (a background
+ * thread writes each result as soon as it is sealed) or batch (a background
+ * thread writes whatever has arrived every few seconds).
+ *
+ * Results are written either in the original text layout (Job:, Error: and
+ * Output: lines with a separator between jobs) or as one JSON object per line.
+ *
+ * @author Cole Christie
+ *
+ */
+public class ResultSink extends Thread {
+	private Logging mylog;
+	private JobManagement JobQueue;
+	private String BaseName;
+	private boolean jsonl;
+	private long RotateChars;
+	private int BatchSeconds; // 0 for continuous
+	private ReentrantLock lock;
+	private Writer out;
+	private String OutName;
+	private long OutChars;
+	private int OutJobs;
+	private int FileCounter;
+
+	// How much output is buffered before it is written to the file
+	private static int BUFFERSIZE = 1024 * 1024;
+	private static String SEPARATOR = "##################################################";
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedLog
+	 * @param passedJobQueue
+	 * @param passedBaseName
+	 *            (files are named BaseName-N.txt or BaseName-N.jsonl)
+	 * @param Format
+	 *            (text or jsonl)
+	 * @param RotateMB
+	 *            (start a new file after this many MB, 0 never rotates)
+	 * @param passedBatchSeconds
+	 *            (used by the background thread, 0 writes continuously)
+	 */
+	public ResultSink(Logging passedLog, JobManagement passedJobQueue, String passedBaseName, String Format,
+			int RotateMB, int passedBatchSeconds) {
+		mylog = passedLog;
+		JobQueue = passedJobQueue;
+		BaseName = passedBaseName;
+		jsonl = "jsonl".equalsIgnoreCase(Format);
+		RotateChars = (RotateMB > 0) ? (RotateMB * 1024L * 1024L) : Long.MAX_VALUE;
+		BatchSeconds = Math.max(0, passedBatchSeconds);
+		lock = new ReentrantLock();
+		out = null;
+		FileCounter = 1;
+		setName("ResultSink");
+		setDaemon(true);
+	}
+
+	/**
+	 * Writes every result waiting in the completed queue and closes the file,
+	 * so the next save starts a new one. Returns the number of results written
+	 * and lists the files they went to.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	public int Save(ArrayList<String> files) throws IOException {
+		lock.lock();
+		try {
+			int written = Drain(files);
+			Close();
+			return written;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Background writer for the continuous and batch modes
+	 */
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				if (BatchSeconds > 0) {
+					sleep(BatchSeconds * 1000L);
+				} else {
+					// Wait for the next result, then take whatever else came
+					// with it
+					Jobs first = JobQueue.NextCompleted(1000);
+					if (first == null) {
+						continue;
+					}
+					lock.lock();
+					try {
+						Write(first, null);
+					} finally {
+						lock.unlock();
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				mylog.out("ERROR", "Failed to write job results to [" + OutName + "] [" + e + "]");
+				continue;
+			}
+
+			lock.lock();
+			try {
+				int written = Drain(null);
+				if ((written > 0) && (BatchSeconds > 0)) {
+					mylog.out("INFO", "Saved [" + written + "] job results to [" + OutName + "]");
+				}
+			} catch (IOException e) {
+				mylog.out("ERROR", "Failed to write job results to [" + OutName + "] [" + e + "]");
+			} finally {
+				lock.unlock();
+			}
+		}
+		lock.lock();
+		try {
+			Close();
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to close the job results file [" + OutName + "] [" + e + "]");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes everything waiting in the completed queue and flushes it to the
+	 * file. Must be called with the lock held.
+	 *
+	 * @param files
+	 *            (names of the files written to are added to this, if passed)
+	 * @return
+	 * @throws IOException
+	 */
+	private int Drain(ArrayList<String> files) throws IOException {
+		int written = 0;
+		Jobs looking;
+		while ((looking = JobQueue.NextCompleted()) != null) {
+			Write(looking, files);
+			written++;
+		}
+		if (out != null) {
+			out.flush();
+		}
+		return written;
+	}
+
+	/**
+	 * Writes one job, rotating to a new file first if the current one is full
+	 *
+	 * @param looking
+	 * @param files
+	 * @throws IOException
+	 */
+	private void Write(Jobs looking, ArrayList<String> files) throws IOException {
+		if ((out != null) && (OutChars >= RotateChars)) {
+			Close();
+		}
+		if (out == null) {
+			OutName = BaseName + "-" + FileCounter + (jsonl ? ".jsonl" : ".txt");
+			FileCounter++;
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(OutName), StandardCharsets.UTF_8),
+					BUFFERSIZE);
+			OutChars = 0;
+			OutJobs = 0;
+		}
+		if ((files != null) && (!files.contains(OutName))) {
+			files.add(OutName);
+		}
+
+		StringBuilder record = new StringBuilder(256);
+		if (jsonl) {
+			record.append("{\"JobID\":").append(looking.GetJobID()).append(",\"Job\":");
+			Quote(record, looking.GetWork());
+			record.append(",\"Error\":[");
+			QuoteAll(record, looking.GetErrorList());
+			record.append("],\"Output\":[");
+			QuoteAll(record, looking.GetOutputList());
+			record.append("]}\n");
+		} else {
+			// If there is more than one job in the file, provide separators
+			if (OutJobs > 0) {
+				record.append(SEPARATOR).append('\n');
+			}
+			record.append("Job:").append(looking.GetWork()).append('\n');
+			for (String line : looking.GetErrorList()) {
+				record.append("Error:").append(line).append('\n');
+			}
+			for (String line : looking.GetOutputList()) {
+				record.append("Output:").append(line).append('\n');
+			}
+		}
+		out.write(record.toString());
+		OutChars += record.length();
+		OutJobs++;
+	}
+
+	/**
+	 * Finishes and closes the current file (if one is open)
+	 *
+	 * @throws IOException
+	 */
+	private void Close() throws IOException {
+		if (out == null) {
+			return;
+		}
+		if (!jsonl) {
+			out.write("\n");
+		}
+		out.close();
+		out = null;
+	}
+
+	/**
+	 * Appends a list of strings as JSON strings separated by commas
+	 */
+	private static void QuoteAll(StringBuilder record, ResultBuffer lines) {
+		boolean first = true;
+		for (String line : lines) {
+			if (!first) {
+				record.append(',');
+			}
+			Quote(record, line);
+			first = false;
+		}
+	}
+
+	/**
+	 * Appends a string as a quoted and escaped JSON string
+	 */
+	private static void Quote(StringBuilder record, String value) {
+		record.append('"');
+		for (int scan = 0; scan < value.length(); scan++) {
+			char c = value.charAt(scan);
+			if ((c == '"') || (c == '\\')) {
+				record.append('\\').append(c);
+			} else if (c == '\n') {
+				record.append("\\n");
+			} else if (c == '\r') {
+				record.append("\\r");
+			} else if (c == '\t') {
+				record.append("\\t");
+			} else if (c < 0x20) {
+				record.append(String.format("\\u%04x", (int) c));
+			} else {
+				record.append(c);
+			}
+		}
+		record.append('"');
+	}
+}
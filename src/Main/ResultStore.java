@@ -0,0 +1,453 @@
+package Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Two tier store for fully received job results. Results are kept in memory
+ * up to a byte budget; past that the oldest results (and any single result
+ * too large to be worth holding) are written to memory mapped segment files
+ * and dropped from the heap. Listing, counting and draining work the same over
+ * both tiers: a spilled result keeps its JobID, job and line counts in memory
+ * and is only read back from its segment when it is drained.
+ *
+ * Segments are fixed size files mapped once when created. Once every result
+ * in a segment has been drained it is emptied: the active segment is simply
+ * rewound, up to SPARESEGMENTS others are kept mapped to be reused as the next
+ * segments, and the rest are unmapped and deleted so their disk space comes
+ * back straight away (rather than whenever the mapping is collected). The
+ * spill directory and anything left in it are deleted when the drop off shuts
+ * down.
+ *
+ * @author Cole Christie
+ *
+ */
+public class ResultStore {
+	private Logging mylog;
+	private ArrayDeque<Entry> results; // Oldest first
+	private ArrayDeque<Entry> resident; // Those still in memory, oldest first
+	private ReentrantLock lock;
+	private Condition notEmpty;
+	private long MemoryBudget; // Zero never spills
+	private long MemoryUsed;
+	private File SpillDirectory;
+	private Segment active;
+	private ArrayDeque<Segment> spare; // Emptied segments kept for reuse
+	private int SegmentCounter;
+	private int spilled;
+
+	// Size of each segment file (a larger result gets a segment of its own)
+	private static int SEGMENTSIZE = 64 * 1024 * 1024;
+	// Results larger than this share of the budget are spilled straight away
+	private static int LARGESHARE = 8;
+	// Emptied segments kept mapped for reuse
+	private static int SPARESEGMENTS = 2;
+	// Unmaps a buffer straight away (null where the JDK does not allow it, so
+	// emptied segments wait for the collector to unmap them)
+	private static Object UNSAFE;
+	private static Method CLEANER;
+
+	static {
+		try {
+			Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+			Field instance = unsafe.getDeclaredField("theUnsafe");
+			instance.setAccessible(true);
+			UNSAFE = instance.get(null);
+			CLEANER = unsafe.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			UNSAFE = null;
+			CLEANER = null;
+		}
+	}
+
+	/**
+	 * Default constructor. Holds everything in memory until EnableSpill is
+	 * called.
+	 */
+	public ResultStore() {
+		mylog = null;
+		results = new ArrayDeque<Entry>();
+		resident = new ArrayDeque<Entry>();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		MemoryBudget = 0;
+		MemoryUsed = 0;
+		SpillDirectory = null;
+		active = null;
+		spare = new ArrayDeque<Segment>();
+		SegmentCounter = 0;
+		spilled = 0;
+	}
+
+	/**
+	 * Sets the memory budget (in MB, 0 never spills)
+	 *
+	 * @param passedLog
+	 * @param MemoryMB
+	 */
+	public void EnableSpill(Logging passedLog, int MemoryMB) {
+		lock.lock();
+		try {
+			mylog = passedLog;
+			MemoryBudget = Math.max(0, MemoryMB) * 1024L * 1024L;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a sealed result, spilling older results to disk if the memory
+	 * budget is exceeded
+	 *
+	 * @param jobUnit
+	 */
+	public void Add(Jobs jobUnit) {
+		Entry entry = new Entry(jobUnit);
+		lock.lock();
+		try {
+			results.addLast(entry);
+			MemoryUsed += entry.bytes;
+			if ((MemoryBudget == 0) || (entry.bytes <= (MemoryBudget / LARGESHARE)) || (!Spill(entry))) {
+				resident.addLast(entry);
+			}
+			while ((MemoryBudget > 0) && (MemoryUsed > MemoryBudget) && (!resident.isEmpty())) {
+				if (!Spill(resident.peekFirst())) {
+					break;
+				}
+				resident.pollFirst();
+			}
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest result (read back from disk if it was
+	 * spilled), or null if there is none
+	 *
+	 * @return
+	 */
+	public Jobs Poll() {
+		lock.lock();
+		try {
+			return Take();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest result, waiting up to WaitMillis for one
+	 * to arrive. Returns null if none did.
+	 *
+	 * @param WaitMillis
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Jobs Poll(long WaitMillis) throws InterruptedException {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(WaitMillis);
+		lock.lock();
+		try {
+			while (results.isEmpty()) {
+				if (remaining <= 0) {
+					return null;
+				}
+				remaining = notEmpty.awaitNanos(remaining);
+			}
+			return Take();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of results held (in memory and on disk)
+	 *
+	 * @return
+	 */
+	public int Size() {
+		lock.lock();
+		try {
+			return results.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of results currently held on disk
+	 *
+	 * @return
+	 */
+	public int SpilledCount() {
+		lock.lock();
+		try {
+			return spilled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the summary of every result held (oldest first)
+	 *
+	 * @return
+	 */
+	public ArrayList<Entry> Listing() {
+		lock.lock();
+		try {
+			return new ArrayList<Entry>(results);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest result. Must be called with the lock held.
+	 *
+	 * @return
+	 */
+	private Jobs Take() {
+		Entry entry = results.pollFirst();
+		if (entry == null) {
+			return null;
+		}
+		if (entry.job != null) {
+			// The oldest result in memory is always the head of resident
+			resident.pollFirst();
+			MemoryUsed -= entry.bytes;
+			return entry.job;
+		}
+
+		// Read it back and release its space in the segment
+		Jobs jobUnit = Read(entry);
+		spilled--;
+		Segment segment = entry.segment;
+		segment.live--;
+		if (segment.live == 0) {
+			if (segment == active) {
+				segment.map.clear();
+			} else {
+				Retire(segment);
+			}
+		}
+		return jobUnit;
+	}
+
+	/**
+	 * Moves a result held in memory into a segment. Returns false (leaving it
+	 * in memory) if it could not be written. Must be called with the lock held.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	private boolean Spill(Entry entry) {
+		byte[] encoded = Encode(entry.job);
+		try {
+			if ((active == null) || (active.map.remaining() < encoded.length)) {
+				Segment full = active;
+				active = NewSegment(Math.max(SEGMENTSIZE, encoded.length));
+				if ((full != null) && (full.live == 0)) {
+					Retire(full);
+				}
+			}
+		} catch (IOException e) {
+			// Keep results in memory rather than lose them
+			mylog.out("ERROR", "Unable to create a result segment, keeping results in memory [" + e + "]");
+			MemoryBudget = 0;
+			return false;
+		}
+		entry.segment = active;
+		entry.offset = active.map.position();
+		entry.length = encoded.length;
+		active.map.put(encoded);
+		active.live++;
+		entry.job = null;
+		MemoryUsed -= entry.bytes;
+		spilled++;
+		return true;
+	}
+
+	/**
+	 * Keeps an emptied segment for reuse if it is the usual size and there is
+	 * room for it, otherwise unmaps and deletes it. Must be called with the
+	 * lock held.
+	 *
+	 * @param segment
+	 */
+	private void Retire(Segment segment) {
+		if ((segment.map.capacity() == SEGMENTSIZE) && (spare.size() < SPARESEGMENTS)) {
+			segment.map.clear();
+			spare.addLast(segment);
+			return;
+		}
+		if (CLEANER != null) {
+			try {
+				CLEANER.invoke(UNSAFE, segment.map);
+			} catch (ReflectiveOperationException e) {
+				mylog.out("WARN", "Unable to unmap result segment [" + segment.file + "] [" + e + "]");
+			}
+		}
+		segment.map = null;
+		if (!segment.file.delete()) {
+			mylog.out("WARN", "Unable to delete result segment [" + segment.file + "]");
+		}
+	}
+
+	/**
+	 * Returns a spare segment if one fits, otherwise creates and maps a new
+	 * segment file
+	 *
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	private Segment NewSegment(int size) throws IOException {
+		if ((size == SEGMENTSIZE) && (!spare.isEmpty())) {
+			return spare.pollFirst();
+		}
+		if (SpillDirectory == null) {
+			SpillDirectory = Files.createTempDirectory("TrussResults").toFile();
+			final File directory = SpillDirectory;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					File[] files = directory.listFiles();
+					if (files != null) {
+						for (File file : files) {
+							file.delete();
+						}
+					}
+					directory.delete();
+				}
+			});
+		}
+		SegmentCounter++;
+		File file = new File(SpillDirectory, "results-" + SegmentCounter + ".seg");
+		try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+			MappedByteBuffer map = raw.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			mylog.out("INFO", "Spilling job results to [" + file + "]");
+			return new Segment(file, map);
+		}
+	}
+
+	/**
+	 * Encodes a result as [work length][work][errors][output], the line
+	 * buffers in their own compact (possibly compressed) form
+	 *
+	 * @param jobUnit
+	 * @return
+	 */
+	private static byte[] Encode(Jobs jobUnit) {
+		byte[] work = jobUnit.GetWork().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer out = ByteBuffer.allocate(4 + work.length + jobUnit.GetErrorList().SerializedSize()
+				+ jobUnit.GetOutputList().SerializedSize());
+		out.putInt(work.length);
+		out.put(work);
+		jobUnit.GetErrorList().WriteTo(out);
+		jobUnit.GetOutputList().WriteTo(out);
+		return out.array();
+	}
+
+	/**
+	 * Reads a spilled result back out of its segment
+	 *
+	 * @param entry
+	 * @return
+	 */
+	private static Jobs Read(Entry entry) {
+		ByteBuffer in = entry.segment.map.duplicate();
+		in.limit(entry.offset + entry.length);
+		in.position(entry.offset);
+		byte[] work = new byte[in.getInt()];
+		in.get(work);
+		Jobs jobUnit = new Jobs(new String(work, StandardCharsets.UTF_8));
+		jobUnit.SetJobID(entry.JobID);
+		ResultBuffer errors = ResultBuffer.ReadFrom(in);
+		jobUnit.SetResults(errors, ResultBuffer.ReadFrom(in));
+		return jobUnit;
+	}
+
+	/**
+	 * Rough heap footprint of a result (object and array overheads included)
+	 *
+	 * @param jobUnit
+	 * @return
+	 */
+	static long Footprint(Jobs jobUnit) {
+		return 128 + (2L * jobUnit.GetWork().length()) + jobUnit.GetErrorList().Footprint()
+				+ jobUnit.GetOutputList().Footprint();
+	}
+
+	/**
+	 * Summary of one held result. The job itself is null once spilled.
+	 */
+	static class Entry {
+		private Jobs job;
+		private int JobID;
+		private String work;
+		private int ErrorCount;
+		private int OutputCount;
+		private long bytes;
+		private Segment segment;
+		private int offset;
+		private int length;
+
+		Entry(Jobs jobUnit) {
+			job = jobUnit;
+			JobID = jobUnit.GetJobID();
+			work = jobUnit.GetWork();
+			ErrorCount = jobUnit.GetErrorListSize();
+			OutputCount = jobUnit.GetOutputListSize();
+			bytes = Footprint(jobUnit);
+		}
+
+		int GetJobID() {
+			return JobID;
+		}
+
+		String GetWork() {
+			return work;
+		}
+
+		int GetErrorCount() {
+			return ErrorCount;
+		}
+
+		int GetOutputCount() {
+			return OutputCount;
+		}
+
+		boolean IsSpilled() {
+			return job == null;
+		}
+	}
+
+	/**
+	 * A mapped segment file and how many results in it are still held
+	 */
+	private static class Segment {
+		private File file;
+		private MappedByteBuffer map;
+		private int live;
+
+		Segment(File passedFile, MappedByteBuffer passedMap) {
+			file = passedFile;
+			map = passedMap;
+			live = 0;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection scale test. Opens a large number of idle client connections to a
+ * server or drop off on this machine, completes the encryption handshake on
+ * each and then holds them open, reporting how the server copes. Run it with:
+ *
+ * java -Dsport=port -Dkey=pre_shared_key -Dclients=50000 -Dhold=60
+ * -Dpid=server_pid -cp Truss*.jar Main.ScaleTest
+ *
+ * A single address only has about 28k ephemeral ports, so the connections are
+ * spread over several loopback addresses (127.0.0.1, 127.0.0.2, ...). Both
+ * processes need a file descriptor limit above the client count. If the
+ * servers process ID is given its thread count and resident memory are
+ * sampled (Linux only).
+ *
+ * @author Cole Christie
+ *
+ */
+public class ScaleTest {
+	// How many connections one loopback address is asked to carry
+	private static int PERADDRESS = 20000;
+	// Threads opening connections
+	private static int OPENERS = 16;
+
+	/**
+	 * Opens the connections, holds them and reports
+	 *
+	 * @param args
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final Logging mylog = new Logging(System.getProperty("loglevel", "ERROR"));
+		final int port = Integer.parseInt(System.getProperty("sport", "8080"));
+		final String key = System.getProperty("key", "");
+		final int clients = Integer.parseInt(System.getProperty("clients", "50000"));
+		int hold = Integer.parseInt(System.getProperty("hold", "60"));
+		final String pid = System.getProperty("pid", "");
+
+		final Networking[] connections = new Networking[clients];
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger failed = new AtomicInteger(0);
+		System.out.println("Opening [" + clients + "] connections to port [" + port + "]");
+		System.out.println("Server before: " + Sample(pid));
+		long started = System.nanoTime();
+
+		// Open and handshake in parallel
+		Thread[] openers = new Thread[OPENERS];
+		for (int scan = 0; scan < OPENERS; scan++) {
+			openers[scan] = new Thread() {
+				public void run() {
+					Crypto crypt = new Crypto(mylog, key, "Server");
+					int mine;
+					while ((mine = next.getAndIncrement()) < clients) {
+						String target = "127.0.0." + (1 + (mine / PERADDRESS));
+						Networking network = new Networking(mylog, port, target);
+						if (network.PassBackClient() == null) {
+							failed.incrementAndGet();
+							continue;
+						}
+						network.BringUp(network.PassBackClient());
+						network.Send(crypt.encrypt("scale" + mine));
+						String reply = crypt.decrypt(network.ReceiveByte());
+						if (!("scale" + mine + "<S>").equals(reply)) {
+							failed.incrementAndGet();
+							network.BringDown();
+							continue;
+						}
+						connections[mine] = network;
+					}
+				}
+			};
+			openers[scan].start();
+		}
+		for (Thread opener : openers) {
+			opener.join();
+		}
+		long elapsed = (System.nanoTime() - started) / 1000000;
+		System.out.println("Opened [" + (clients - failed.get()) + "] connections (" + failed.get() + " failed) in ["
+				+ elapsed + "] ms");
+
+		// Hold them idle and watch the server
+		for (int second = 0; second < hold; second += 10) {
+			System.out.println("Holding: " + Sample(pid));
+			Thread.sleep(Math.min(10, hold - second) * 1000L);
+		}
+		System.out.println("Server after: " + Sample(pid));
+
+		for (Networking network : connections) {
+			if (network != null) {
+				network.BringDown();
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Returns the thread count and resident memory of a process
+	 *
+	 * @param pid
+	 * @return
+	 */
+	private static String Sample(String pid) {
+		if (pid.isEmpty()) {
+			return "(pass -Dpid to sample the server)";
+		}
+		try {
+			String threads = "?";
+			String resident = "?";
+			for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath(),
+					StandardCharsets.UTF_8)) {
+				if (line.startsWith("Threads:")) {
+					threads = line.substring(8).trim();
+				} else if (line.startsWith("VmRSS:")) {
+					resident = line.substring(6).trim();
+				}
+			}
+			return "threads [" + threads + "] resident [" + resident + "]";
+		} catch (IOException e) {
+			return "unable to read /proc/" + pid + " [" + e + "]";
+		}
+	}
+}
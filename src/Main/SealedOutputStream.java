@@ -0,0 +1,126 @@
+package Main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Cuts a stream of bytes into records to be sealed as it is written, so output
+ * of any size can be sent with one record of memory. Each record of RECORDSIZE
+ * is handed to Deliver as soon as it fills, to be sealed on its own by Crypto
+ * (and so authenticated). Closing the stream sends what is left as the last
+ * record.
+ *
+ * The plain text of a record is its kind (one byte, see SessionProtocol), its
+ * flags (one byte, LAST marks the final record of the stream), its sequence
+ * number (eight bytes, counting from zero) and then its data. All of it is
+ * sealed, so the receiver (see StreamedResult) can tell a record that is
+ * missing, repeated, out of order or cut off before the last one.
+ *
+ * Deliver seals each record and sends it, in one step, so several streams can
+ * share a connection and still send their records in the order they were
+ * sealed (see CipherEngine).
+ *
+ * @author Cole Christie
+ *
+ */
+public abstract class SealedOutputStream extends OutputStream {
+	private byte kind;
+	private byte[] record; // Header and the data written since the last record
+	private int filled;
+	private long sequence;
+	private boolean closed;
+
+	// Record flags
+	static final byte LAST = 1;
+
+	// Bytes ahead of the data in a record (kind, flags and sequence number)
+	static final int HEADERSIZE = 10;
+
+	// Most data a record carries
+	static int RECORDSIZE = 64 * 1024;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedKind
+	 */
+	public SealedOutputStream(byte passedKind) {
+		kind = passedKind;
+		record = new byte[HEADERSIZE + RECORDSIZE];
+		filled = HEADERSIZE;
+		sequence = 0;
+		closed = false;
+	}
+
+	/**
+	 * Seals and sends a record, returns false if it could not be
+	 *
+	 * @param record
+	 * @return
+	 */
+	protected abstract boolean Deliver(byte[] record);
+
+	/**
+	 * Returns the number of records sent so far
+	 *
+	 * @return
+	 */
+	public long GetRecords() {
+		return sequence;
+	}
+
+	public void write(int value) throws IOException {
+		if (filled == record.length) {
+			Seal(false);
+		}
+		record[filled++] = (byte) value;
+	}
+
+	public void write(byte[] data, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (filled == record.length) {
+				Seal(false);
+			}
+			int taken = Math.min(length, record.length - filled);
+			System.arraycopy(data, offset, record, filled, taken);
+			filled += taken;
+			offset += taken;
+			length -= taken;
+		}
+	}
+
+	/**
+	 * Sends what is left as the last record (which may be empty)
+	 */
+	public void close() throws IOException {
+		if (!closed) {
+			Seal(true);
+			closed = true;
+		}
+	}
+
+	/**
+	 * Finishes the record built so far and hands it to Deliver
+	 *
+	 * @param last
+	 * @throws IOException
+	 */
+	private void Seal(boolean last) throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		record[0] = kind;
+		record[1] = last ? LAST : 0;
+		for (int scan = 0; scan < 8; scan++) {
+			record[9 - scan] = (byte) (sequence >>> (8 * scan));
+		}
+		byte[] plain = (filled == record.length) ? record : Arrays.copyOf(record, filled);
+		if (!Deliver(plain)) {
+			closed = true;
+			throw new IOException("Record [" + sequence + "] could not be delivered");
+		}
+		sequence++;
+		filled = HEADERSIZE;
+	}
+}
@@ -4,8 +4,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.shiro.session.Session;
 
@@ -21,11 +24,9 @@ public class Server extends Thread {
 	private Networking network;
 	private Auth subject;
 	private int PortUsed;
-	private Object JobLock;
 	private JobManagement MasterJobQueue;
 	private Session ServerSession;
-	private int DropOffUID;
-	private int DropOffSaveCounter;
+	private ResultSink Results;
 
 	/**
 	 * CONSTRCUTOR
@@ -37,10 +38,97 @@ public class Server extends Thread {
 		subject = passedSubject;
 		ServerSession = session;
 		// Setup master thread communication
-		JobLock = new Object();
 		MasterJobQueue = new JobManagement();
-		DropOffUID = (1 + (int) (Math.random() * 65536));
-		DropOffSaveCounter = 1;
+
+		// Results only pass through drop offs
+		if ("dropoff".equals(ServerSession.getAttribute("USE"))) {
+			String Flush = (String) ServerSession.getAttribute("ResultFlush");
+			int BatchSeconds = 0;
+			boolean Background = false;
+			if ("continuous".equalsIgnoreCase(Flush)) {
+				Background = true;
+			} else if ((Flush != null) && (!"manual".equalsIgnoreCase(Flush))) {
+				try {
+					BatchSeconds = Integer.parseInt(Flush);
+					Background = (BatchSeconds > 0);
+				} catch (NumberFormatException e) {
+					mylog.out("WARN", "Result flush mode is not manual, continuous or a number, using manual");
+				}
+			}
+			int RotateMB = 64;
+			try {
+				RotateMB = Integer.parseInt((String) ServerSession.getAttribute("ResultRotateMB"));
+			} catch (NumberFormatException e) {
+				mylog.out("WARN", "Result rotation size is not a number, using 64 MB");
+			}
+			int MemoryMB = 256;
+			try {
+				MemoryMB = Integer.parseInt((String) ServerSession.getAttribute("ResultMemoryMB"));
+			} catch (NumberFormatException e) {
+				mylog.out("WARN", "Result memory size is not a number, using 256 MB");
+			}
+			if (MemoryMB > 0) {
+				MasterJobQueue.EnableResultSpill(mylog, MemoryMB);
+				mylog.out("INFO", "Completed job results past [" + MemoryMB + "] MB are spilled to disk");
+			}
+			if ("true".equalsIgnoreCase((String) ServerSession.getAttribute("ResultCompress"))) {
+				MasterJobQueue.SetResultCompression(true);
+				mylog.out("INFO", "Completed job results are compressed in memory");
+			}
+			int DropOffUID = (1 + (int) (Math.random() * 65536));
+			Results = new ResultSink(mylog, MasterJobQueue, "SavedResults-" + DropOffUID,
+					(String) ServerSession.getAttribute("ResultFormat"), RotateMB, BatchSeconds);
+			if (Background) {
+				Results.start();
+				mylog.out("INFO", "Job results are written "
+						+ ((BatchSeconds > 0) ? "every [" + BatchSeconds + "] seconds" : "as they arrive"));
+			}
+		}
+
+		// Leases only apply to the job server (drop offs never assign work)
+		if ("server".equals(ServerSession.getAttribute("USE"))) {
+			int LeaseSeconds = 0;
+			try {
+				LeaseSeconds = Integer.parseInt((String) ServerSession.getAttribute("LeaseSeconds"));
+			} catch (NumberFormatException e) {
+				mylog.out("WARN", "Lease time is not a number, job leases are disabled");
+			}
+			if (LeaseSeconds > 0) {
+				MasterJobQueue.EnableLeases(mylog, LeaseSeconds);
+				mylog.out("INFO", "Assigned jobs are leased for [" + LeaseSeconds + "] seconds");
+			}
+
+			// Idle clients may wait on the server for work instead of polling
+			int LongPollSeconds = 0;
+			try {
+				LongPollSeconds = Integer.parseInt((String) ServerSession.getAttribute("LongPollSeconds"));
+			} catch (NumberFormatException e) {
+				mylog.out("WARN", "Long poll time is not a number, job requests are answered straight away");
+			}
+			if (LongPollSeconds > 0) {
+				MasterJobQueue.EnableLongPoll(LongPollSeconds);
+				mylog.out("INFO", "Job requests may wait up to [" + LongPollSeconds + "] seconds for work");
+			}
+
+			// Rebuild the queue from the journal before any client is served
+			String JournalDir = (String) ServerSession.getAttribute("JournalDir");
+			if ((JournalDir != null) && (!JournalDir.isEmpty())) {
+				int CheckpointSeconds = 300;
+				try {
+					CheckpointSeconds = Integer.parseInt((String) ServerSession.getAttribute("CheckpointSeconds"));
+				} catch (NumberFormatException e) {
+					mylog.out("WARN", "Checkpoint time is not a number, using 300 seconds");
+				}
+				try {
+					long started = System.nanoTime();
+					int recovered = MasterJobQueue.EnableJournal(mylog, JournalDir, CheckpointSeconds);
+					mylog.out("INFO", "Journaling the job queue in [" + JournalDir + "], recovered [" + recovered
+							+ "] jobs in [" + ((System.nanoTime() - started) / 1000000) + "] ms");
+				} catch (IOException e) {
+					mylog.out("FATAL", "Unable to open the job journal [" + e + "], the queue will not survive a restart");
+				}
+			}
+		}
 	}
 
 	/**
@@ -90,22 +178,22 @@ public class Server extends Thread {
 		while ((UserInput != null) && (UserInput.compareToIgnoreCase("quit") != 0)) {
 			if (UserInput.compareToIgnoreCase("sw") == 0) {
 				// Load a sample set of jobs to WINDOWS clients
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("SW");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("SW");
 			} else if (UserInput.compareToIgnoreCase("sl") == 0) {
 				// Load a sample set of jobs to LINUX/UNIX clients
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("SL");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("SL");
 			} else if (UserInput.compareToIgnoreCase("sa") == 0) {
 				// Load a sample set of jobs to any client
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("SA");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("SA");
 			} else if (UserInput.compareToIgnoreCase("cuq") == 0) {
 				// Clears out the unassigned queue
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("CUQ");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("CUQ");
 			} else if (UserInput.compareToIgnoreCase("caq") == 0) {
 				// Clears out the assigned queue
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("CAQ");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("CAQ");
 			} else if (UserInput.compareToIgnoreCase("list") == 0) {
 				// Clears out the assigned queue
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("LIST");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("LIST");
 			} else if (UserInput.compareToIgnoreCase("load") == 0) {
 				// Load a set of jobs from a text file located on this system
 				// (in this CWD)
@@ -146,7 +234,7 @@ public class Server extends Thread {
 					if (UserInput.length() > 0) {
 						try {
 							if ((Integer.parseInt(UserInput) >= 0) && (Integer.parseInt(UserInput) < ListSize)) {
-								new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("LOAD",
+								new ServerThread(mylog, MasterJobQueue).JobLoader("LOAD",
 										FitleredResults.get(Integer.parseInt(UserInput)).getName());
 							} else {
 								mylog.out("WARN", "Number is out of bounds");
@@ -187,15 +275,13 @@ public class Server extends Thread {
 		while ((UserInput != null) && (UserInput.compareToIgnoreCase("quit") != 0)) {
 			if (UserInput.compareToIgnoreCase("sw") == 0) {
 				// Load a sample set of jobs to WINDOWS clients
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("SW");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("SW");
 			} else if (UserInput.compareToIgnoreCase("list") == 0) {
 				// Displays the list of jobs currently being held in the buffer
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("LISTDO");
+				new ServerThread(mylog, MasterJobQueue).JobLoader("LISTDO");
 			} else if (UserInput.compareToIgnoreCase("save") == 0) {
 				// Flush the buffer to a file
-				String filename = "SavedResults-" + DropOffUID + "-" + DropOffSaveCounter + ".txt";
-				DropOffSaveCounter++;
-				new ServerThread(mylog, JobLock, MasterJobQueue).JobLoader("SAVE", filename);
+				new ServerThread(mylog, MasterJobQueue).JobSaver(Results);
 			} else if (UserInput.compareToIgnoreCase("help") == 0) {
 				// Display the UI boilerplate
 				DisplayMenu("DropOff");
@@ -222,13 +308,94 @@ public class Server extends Thread {
 			ServerMode = false;
 		}
 
+		// How fast each client may make requests
+		int RateLimit = 0;
+		try {
+			RateLimit = Integer.parseInt((String) ServerSession.getAttribute("RateLimit"));
+		} catch (NumberFormatException e) {
+			mylog.out("WARN", "Rate limit is not a number, clients are not rate limited");
+		}
+		if (RateLimit > 0) {
+			mylog.out("INFO", "Each client may make up to [" + RateLimit + "] requests per second");
+		}
+
+		// How hard to compress messages for clients that ask for it
+		int Compress = 0;
+		try {
+			Compress = Integer.parseInt((String) ServerSession.getAttribute("Compress"));
+		} catch (NumberFormatException e) {
+			mylog.out("WARN", "Compression level is not a number, messages are not compressed");
+		}
+
+		// The NIO engine serves every client from a few event loops
+		EventLoop[] loops = null;
+		if ("nio".equalsIgnoreCase((String) ServerSession.getAttribute("Engine"))) {
+			int LoopCount = 0;
+			try {
+				LoopCount = Integer.parseInt((String) ServerSession.getAttribute("EventLoops"));
+			} catch (NumberFormatException e) {
+				mylog.out("WARN", "Event loop count is not a number, using one per core");
+			}
+			if (LoopCount <= 0) {
+				LoopCount = Runtime.getRuntime().availableProcessors();
+			}
+			try {
+				loops = new EventLoop[LoopCount];
+				for (int scan = 0; scan < LoopCount; scan++) {
+					loops[scan] = new EventLoop(subject, mylog, MasterJobQueue, ServerMode, RateLimit, Compress,
+							scan + 1);
+					loops[scan].start();
+				}
+				mylog.out("INFO", "Serving clients from [" + LoopCount + "] NIO event loops");
+			} catch (IOException e) {
+				mylog.out("ERROR", "Unable to start the NIO engine [" + e + "], using a thread per client");
+				loops = null;
+			}
+		}
+
+		// The virtual thread engine keeps a thread per client, but those
+		// threads cost next to nothing while they wait on the network
+		ExecutorService VirtualThreads = null;
+		if ("virtual".equalsIgnoreCase((String) ServerSession.getAttribute("Engine"))) {
+			VirtualThreads = VirtualThreadExecutor();
+		}
+
 		// Listen for new connections indefinitely
 		while (1 > 0) {
 			// Block until a new connection is made
 			Socket socket = network.ListenForNewConnection();
 			UIDcounter++;
-			new ServerThread(subject, mylog, socket, UIDcounter, JobLock, MasterJobQueue, ServerMode).start();
+			if (loops != null) {
+				loops[UIDcounter % loops.length].Register(socket.getChannel(), UIDcounter);
+			} else if (VirtualThreads != null) {
+				VirtualThreads.execute(new ServerThread(subject, mylog, socket, UIDcounter, MasterJobQueue, ServerMode,
+						RateLimit, Compress, VirtualThreads));
+			} else {
+				new ServerThread(subject, mylog, socket, UIDcounter, MasterJobQueue, ServerMode, RateLimit,
+						Compress, null).start();
+			}
+		}
+	}
+
+	/**
+	 * Returns an executor that runs each task on a new virtual thread, or null
+	 * if this Java runtime does not have them (they arrived in Java 21, the
+	 * build still targets 17 so it is looked up at runtime)
+	 * 
+	 * @return
+	 */
+	private ExecutorService VirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService) factory.invoke(null);
+			mylog.out("INFO", "Serving each client from its own virtual thread");
+			return executor;
+		} catch (NoSuchMethodException e) {
+			mylog.out("WARN", "Virtual threads need Java 21 or later, using a thread per client");
+		} catch (ReflectiveOperationException e) {
+			mylog.out("WARN", "Virtual threads are not available [" + e.getCause() + "], using a thread per client");
 		}
+		return null;
 	}
 
 	/**
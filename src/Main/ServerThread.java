@@ -3,6 +3,12 @@ package Main;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides threads for the server so multiple clients can be handled by a
@@ -17,32 +23,42 @@ public class ServerThread extends Thread {
 	private Networking network;
 	private Auth subject;
 	private int UID;
-	private Crypto crypt;
-	private Object JobLock;
 	private JobManagement JobQueue;
 	private boolean ServerMode;
+	private int RateLimit;
+	private int Compress;
+	private ExecutorService helpers; // Runs the park watcher, null for a thread
+	private ReentrantLock guard; // Held while the session makes replies
+	private ReentrantLock writing; // Held while the replies are written
 
 	/**
 	 * CONSTRUCTOR for Server Worker Thread
+	 * 
+	 * @param passedHelpers
+	 *            (runs the park watcher, null to start a thread for it)
 	 */
-	public ServerThread(Auth passedSubject, Logging passedLog, Socket passedSocket, int passedUID, Object passedLock,
-			JobManagement passedJobQueue, boolean PassedMode) {
+	public ServerThread(Auth passedSubject, Logging passedLog, Socket passedSocket, int passedUID,
+			JobManagement passedJobQueue, boolean PassedMode, int passedRateLimit, int passedCompress,
+			ExecutorService passedHelpers) {
 		subject = passedSubject;
 		mylog = passedLog;
 		socket = passedSocket;
 		UID = passedUID;
-		JobLock = passedLock;
 		JobQueue = passedJobQueue;
 		ServerMode = PassedMode;
+		RateLimit = passedRateLimit;
+		Compress = passedCompress;
+		helpers = passedHelpers;
 		network = new Networking(mylog);
+		guard = new ReentrantLock();
+		writing = new ReentrantLock();
 	}
 
 	/**
 	 * CONSTRUCTOR for Server Management Thread
 	 */
-	public ServerThread(Logging passedLog, Object passedLock, JobManagement passedJobQueue) {
+	public ServerThread(Logging passedLog, JobManagement passedJobQueue) {
 		mylog = passedLog;
-		JobLock = passedLock;
 		JobQueue = passedJobQueue;
 	}
 
@@ -54,62 +70,67 @@ public class ServerThread extends Thread {
 	 * @return
 	 */
 	public void JobLoader(String type) {
-		synchronized (JobLock) {
-			if (type.compareToIgnoreCase("sw") == 0) {
-				JobQueue.SampleWindows();
-				mylog.out("INFO", "Loaded 10 sample jobs (Windows).");
-			} else if (type.compareToIgnoreCase("sl") == 0) {
-				JobQueue.SampleLinux();
-				mylog.out("INFO", "Loaded 10 sample jobs (Linux/UNIX).");
-			} else if (type.compareToIgnoreCase("sa") == 0) {
-				JobQueue.Sample();
-				mylog.out("INFO", "Loaded 10 sample jobs (Any OS).");
-			} else if (type.compareToIgnoreCase("cuq") == 0) {
-				JobQueue.ClearUnsentQueue();
-				mylog.out("INFO", "Unassigned job queue reset.");
-			} else if (type.compareToIgnoreCase("caq") == 0) {
-				JobQueue.ClearSentQueue();
-				mylog.out("INFO", "Assigned job queue reset.");
-			} else if (type.compareToIgnoreCase("list") == 0) {
-				JobQueue.DetailedList("unassigned");
-				JobQueue.DetailedList("assigned");
-				mylog.out("INFO", "[" + JobQueue.UnassignedCount() + "] unassigned jobs are in the queue");
-				mylog.out("INFO", "[" + JobQueue.AssignedCount() + "] jobs are in progress");
-			} else if (type.compareToIgnoreCase("listdo") == 0) {
-				JobQueue.DetailedList("complete");
-				mylog.out("INFO", "[" + JobQueue.CompletedCount() + "] completed jobs are in the queue");
-			}
+		if (type.compareToIgnoreCase("sw") == 0) {
+			JobQueue.SampleWindows();
+			mylog.out("INFO", "Loaded 10 sample jobs (Windows).");
+		} else if (type.compareToIgnoreCase("sl") == 0) {
+			JobQueue.SampleLinux();
+			mylog.out("INFO", "Loaded 10 sample jobs (Linux/UNIX).");
+		} else if (type.compareToIgnoreCase("sa") == 0) {
+			JobQueue.Sample();
+			mylog.out("INFO", "Loaded 10 sample jobs (Any OS).");
+		} else if (type.compareToIgnoreCase("cuq") == 0) {
+			JobQueue.ClearUnsentQueue();
+			mylog.out("INFO", "Unassigned job queue reset.");
+		} else if (type.compareToIgnoreCase("caq") == 0) {
+			JobQueue.ClearSentQueue();
+			mylog.out("INFO", "Assigned job queue reset.");
+		} else if (type.compareToIgnoreCase("list") == 0) {
+			JobQueue.DetailedList("unassigned");
+			JobQueue.DetailedList("assigned");
+			mylog.out("INFO", "[" + JobQueue.UnassignedCount() + "] unassigned jobs are in the queue");
+			mylog.out("INFO", "[" + JobQueue.AssignedCount() + "] jobs are in progress");
+		} else if (type.compareToIgnoreCase("listdo") == 0) {
+			JobQueue.DetailedList("complete");
+			mylog.out("INFO", "[" + JobQueue.CompletedCount() + "] completed jobs are in the queue");
 		}
 	}
 
 	/**
-	 * Runs the Job loading framework to load from, or save to, a file (based upon type)
+	 * Runs the Job loading framework to load from a file
 	 * 
 	 * @param type
 	 * @return
 	 */
 	public void JobLoader(String type, String filename) {
 		int QtyJobsLoaded = 0;
-		synchronized (JobLock) {
-			if (type.compareToIgnoreCase("load") == 0) {
-				try {
-					QtyJobsLoaded = JobQueue.Load(filename);
-				} catch (IOException e) {
-					mylog.out("ERROR", "Failed to load jobs from file [" + filename + "]");
-				}
-				mylog.out("INFO", "Loaded [" + QtyJobsLoaded + "] jobs");
-			} else if (type.compareToIgnoreCase("save") == 0) {
-				try {
-					QtyJobsLoaded = JobQueue.Save(filename);
-				} catch (IOException e) {
-					mylog.out("ERROR", "Failed to save jobs to the file [" + filename + "]");
-				}
-				if (QtyJobsLoaded == 0) {
-					mylog.out("INFO", "No jobs were saved to file (queue is empty, or error occured)");
-				} else {
-					mylog.out("INFO", "Saved [" + QtyJobsLoaded + "] jobs results to the file");	
-				}
+		if (type.compareToIgnoreCase("load") == 0) {
+			try {
+				QtyJobsLoaded = JobQueue.Load(filename);
+			} catch (IOException e) {
+				mylog.out("ERROR", "Failed to load jobs from file [" + filename + "] [" + e + "]");
 			}
+			mylog.out("INFO", "Loaded [" + QtyJobsLoaded + "] jobs");
+		}
+	}
+
+	/**
+	 * Flushes the completed job results to files through the result sink
+	 * 
+	 * @param sink
+	 */
+	public void JobSaver(ResultSink sink) {
+		int QtyJobsSaved = 0;
+		ArrayList<String> files = new ArrayList<String>();
+		try {
+			QtyJobsSaved = sink.Save(files);
+		} catch (IOException e) {
+			mylog.out("ERROR", "Failed to save jobs to the file " + files + " [" + e + "]");
+		}
+		if (QtyJobsSaved == 0) {
+			mylog.out("INFO", "No jobs were saved to file (queue is empty, or error occured)");
+		} else {
+			mylog.out("INFO", "Saved [" + QtyJobsSaved + "] jobs results to " + files);
 		}
 	}
 
@@ -121,11 +142,7 @@ public class ServerThread extends Thread {
 	 * @return
 	 */
 	public String AssignJob(String clientID, String OS, int ClientSecurityLevel) {
-		String job = "";
-		synchronized (JobLock) {
-			job = JobQueue.Assign(clientID, OS, ClientSecurityLevel);
-		}
-		return job;
+		return JobQueue.Assign(clientID, OS, ClientSecurityLevel);
 	}
 
 	/**
@@ -142,322 +159,85 @@ public class ServerThread extends Thread {
 		String ClientIP = theirAddress.toString();
 		ClientIP = ClientIP.replace("/", "");
 
-		// Bind I/O to the socket
+		// Bind I/O to the socket, taking only small frames until the client
+		// has shown it holds the key
 		network.BringUp(socket);
+		network.SetFrameLimit(Networking.HANDSHAKEFRAME);
+		boolean trusted = false;
+
+		// The conversation itself (handshake onwards) is run by the protocol
+		SessionProtocol session = new SessionProtocol(subject, mylog, JobQueue, ServerMode, ClientIP, RateLimit,
+				Compress);
+		ArrayList<byte[]> replies = new ArrayList<byte[]>();
+		final Semaphore woken = new Semaphore(0);
+		final AtomicBoolean rung = new AtomicBoolean(false);
+		session.SetWakeUp(new Runnable() {
+			public void run() {
+				rung.set(true);
+				woken.release();
+			}
+		});
+		boolean watching = false;
 
-		// Prep
-		String fromClient = null;
-		boolean NoSend = false;
-
-		// Activate crypto
-		crypt = new Crypto(mylog, subject.GetPSK(), "Client");
-		byte[] fetched = network.ReceiveByte();
-		String dec = crypt.decrypt(fetched);
-		String craftReturn = dec + "<S>";
-		mylog.out("INFO", "Validating encryption with handshake.");
-		byte[] returnData = crypt.encrypt(craftReturn);
-		network.Send(returnData);
-
-		// Prepare client meta data containers
-		String ClientName = ClientIP;
-		boolean ClientMetaSet = false;
-		String ClientOS = "";
-		int ClientSecurityLevel = 0;
-
-		// Main Loop
-		while (!socket.isClosed()) {
+		// Main Loop (blocks until the client sends something)
+		while ((!socket.isClosed()) && (!session.IsFinished())) {
 			// Collect data sent over the network
-			fetched = network.ReceiveByte();
+			byte[] fetched = network.ReceiveByte();
 			if (fetched == null) {
 				mylog.out("WARN", "Client disconnected abruptly");
 				break;
 			}
 
-			// Decrypt sent data
-			fromClient = crypt.decrypt(fetched);
-			if (fromClient == null) {
-				mylog.out("WARN", "Client disconnected abruptly");
-				break;
+			// Hold back a client making requests faster than it is allowed
+			long wait;
+			while ((wait = session.Admit()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					mylog.out("ERROR", "Failed to have the thread sleep.");
+				}
 			}
 
-			// If this is a SERVER
-			if (ServerMode) {
-				// Preliminary scanning and data input manipulation
-				if (fromClient.toLowerCase().contains("job")) {
-					String[] CHOP = fromClient.split(":");
-					// Add the random number passed to us to the servers UID of
-					// this client session to create a reasonable UUID
-					if (CHOP.length == 4) {
-						// Extract meta data
-						if (!ClientMetaSet) {
-							// Only set this once
-							ClientName = ClientName + CHOP[1];
-							ClientOS = CHOP[2];
-							ClientSecurityLevel = Integer.parseInt(CHOP[3]);
-							ClientMetaSet = true;
-						}
-
-						// Assign a job to the client
-						mylog.out("INFO", "Client [" + ClientName + "] with security level [" + ClientSecurityLevel
-								+ "] requested a job for [" + ClientOS + "]");
-						synchronized (JobLock) {
-							NoSend = true; // Do not send a secondary response
-							String work = JobQueue.Assign(ClientName, ClientOS, ClientSecurityLevel);
-							returnData = crypt.encrypt(work);
-							network.Send(returnData);
-							if (work.length() > 0) {
-								mylog.out("INFO", "JobOut:[" + work + "]");
-								mylog.out("INFO", "[" + JobQueue.UnassignedCount()
-										+ "] unassigned jobs are left in the queue");
-								mylog.out("INFO", "[" + JobQueue.AssignedCount() + "] jobs are in progress");
-							} else {
-								mylog.out("WARN", "There are no jobs for [" + ClientOS + "] with Security Level ["
-										+ ClientSecurityLevel + "]");
-							}
-						}
-					} else {
-						// The client failed to send all of the meta data we
-						// need, so abort the job request
-						fromClient = "";
-						mylog.out("INFO", "Job request failed. Missing meta data in request.");
-					}
-				} else if (fromClient.toLowerCase().contains("workdone")) {
-					if (ClientMetaSet) {
-						synchronized (JobLock) {
-							NoSend = true; // Do not send a secondary response
-							String work = JobQueue.Signoff(ClientName);
-							if (work.equalsIgnoreCase("Failed")) {
-								// The job was not able to be acknowledged
-								mylog.out("WARN", "Client [" + ClientName
-										+ "] job complete was NOT acknowledged (no job was assigned previously).");
-							} else {
-								mylog.out("INFO", "Client [" + ClientName + "] job was acknowledged.");
-							}
-							work = "Job Complete Acknowledged";
-							returnData = crypt.encrypt(work);
-							network.Send(returnData);
-						}
-					} else {
-						mylog.out("ERROR",
-								"Client is requesting to acknowledge job completion before being assigned a job");
-					}
+			// Answer it (the replies go out together). A parked job request
+			// is answered by the watcher, so this thread goes straight back to
+			// reading the clients next request.
+			guard.lock();
+			try {
+				session.Handle(fetched, replies);
+				if ((!trusted) && session.IsTrusted()) {
+					network.SetFrameLimit(Networking.MAXFRAME);
+					trusted = true;
 				}
-			} else {
-				// If this is a Drop Off point
-				if (fromClient.toLowerCase().contains("workdone")) {
-					synchronized (JobLock) {
-						NoSend = true; // Do not send a secondary response
-
-						// =================================================================
-						// Ack the client for the next piece
-						network.Send(crypt.encrypt("NEXT"));
-						// Now read the job next
-						// Collect data sent over the network
-						fetched = network.ReceiveByte();
-						if (fetched == null) {
-							mylog.out("WARN", "Client disconnected abruptly");
-							break;
-						}
-						// Decrypt sent data
-						fromClient = crypt.decrypt(fetched);
-						if (fromClient == null) {
-							mylog.out("WARN", "Client disconnected abruptly");
-							break;
-						}
-						// Setup a job container for that job
-						mylog.out("INFO", "Job Complete:" + fromClient);
-						int ThisJobsID = JobQueue.SetupResultStorage(fromClient);
-
-						// =================================================================
-						// Ack the client for the next piece
-						network.Send(crypt.encrypt("NEXT"));
-						// Now check for how many ERROR lines we will need
-						// to store
-						fetched = network.ReceiveByte();
-						if (fetched == null) {
-							mylog.out("WARN", "Client disconnected abruptly");
-							break;
-						}
-						// Decrypt sent data
-						fromClient = crypt.decrypt(fetched);
-						if (fromClient == null) {
-							mylog.out("WARN", "Client disconnected abruptly");
-							break;
-						}
-						int ErrorLineCount = 0;
-						try {
-							ErrorLineCount = Integer.parseInt(fromClient);
-						} catch (NumberFormatException e) {
-							mylog.out("ERROR", "String passed when number expected");
-						}
-						mylog.out("INFO", "Error Lines:" + ErrorLineCount);
-						while (ErrorLineCount > 0) {
-							// Ack the client for the next piece
-							network.Send(crypt.encrypt("NEXT"));
-							// Receive the line from the client and store it
-							fetched = network.ReceiveByte();
-							if (fetched == null) {
-								mylog.out("WARN", "Client disconnected abruptly");
-								break;
-							}
-							// Decrypt sent data
-							fromClient = crypt.decrypt(fetched);
-							if (fromClient == null) {
-								mylog.out("WARN", "Client disconnected abruptly");
-								break;
-							}
-							JobQueue.StoreResutls(ThisJobsID, fromClient, "ERROR");
-							ErrorLineCount--;
-						}
-
-						// =================================================================
-						// Ack the client for the next piece
-						network.Send(crypt.encrypt("NEXT"));
-						// Now check for how many OUTPUT lines we will need
-						// to store
-						fetched = network.ReceiveByte();
-						if (fetched == null) {
-							mylog.out("WARN", "Client disconnected abruptly");
-							break;
-						}
-						// Decrypt sent data
-						fromClient = crypt.decrypt(fetched);
-						if (fromClient == null) {
-							mylog.out("WARN", "Client disconnected abruptly");
-							break;
-						}
-						int OutputLineCount = 0;
-						try {
-							OutputLineCount = Integer.parseInt(fromClient);
-						} catch (NumberFormatException e) {
-							mylog.out("ERROR", "String passed when number expected");
-						}
-						mylog.out("INFO", "Output Lines:" + OutputLineCount);
-						while (OutputLineCount > 0) {
-							// Ack the client for the next piece
-							network.Send(crypt.encrypt("NEXT"));
-							// Receive the line from the client and store it
-							fetched = network.ReceiveByte();
-							if (fetched == null) {
-								mylog.out("WARN", "Client disconnected abruptly");
-								break;
-							}
-							// Decrypt sent data
-							fromClient = crypt.decrypt(fetched);
-							if (fromClient == null) {
-								mylog.out("WARN", "Client disconnected abruptly");
-								break;
-							}
-							JobQueue.StoreResutls(ThisJobsID, fromClient, "OUTPUT");
-							OutputLineCount--;
+				if (session.IsParked()) {
+					if (!watching) {
+						ParkWatcher watcher = new ParkWatcher(session, woken, rung);
+						if (helpers != null) {
+							helpers.execute(watcher);
+						} else {
+							Thread thread = new Thread(watcher);
+							thread.setDaemon(true);
+							thread.start();
 						}
-						mylog.out("INFO", "Job receipt complete");
-						// Send acknowledgement to the client that the job
-						// has been received
-						network.Send(crypt.encrypt("Acknowledged"));
+						watching = true;
 					}
+					// Have the watcher pick up the new deadline
+					woken.release();
 				}
+				HoldWriting(replies);
+			} finally {
+				guard.unlock();
 			}
-
-			// Common actions below (Server AND Drop Off point)
-			if (NoSend) {
-				// We do not send anything this time as the transmission to the
-				// client was already handled above
-				NoSend = false;
-			} else if (fromClient.compareToIgnoreCase("quit") == 0) {
-				mylog.out("INFO", "Client disconnected gracefully");
-				break;
-			} else if (fromClient.compareToIgnoreCase("<REKEY>") == 0) {
-				SendACK(); // Send ACK
-				String prime = null;
-				String base = null;
-
-				// Grab 1st value (should be handshake for PRIME)
-				fromClient = fromNetwork();
-				SendACK(); // Send ACK
-				if (fromClient.compareToIgnoreCase("<PRIME>") == 0) {
-					prime = fromNetwork();
-					SendACK(); // Send ACK
-				} else {
-					mylog.out("ERROR", "Failed proper DH handshake over the network (failed to receive PRIME).");
-				}
-
-				// Grab 2nd value (should be handshake for BASE)
-				fromClient = fromNetwork();
-				SendACK(); // Send ACK
-				if (fromClient.compareToIgnoreCase("<BASE>") == 0) {
-					base = fromNetwork();
-					SendACK(); // Send ACK
-				} else {
-					mylog.out("ERROR", "Failed proper DH handshake over the network (failed to receive BASE).");
-				}
-
-				// Use received values to start DH
-				DH myDH = new DH(mylog, prime, 16, base, 16);
-
-				// Send rekeying ack
-				returnData = crypt.encrypt("<REKEY-STARTING>");
-				network.Send(returnData);
-				RecieveACK(); // Wait for ACK
-
-				// Perform phase1
-				myDH.DHPhase1();
-
-				// Receive client public key
-				byte[] clientPubKey = null;
-				fromClient = fromNetwork();
-				SendACK(); // Send ACK
-				if (fromClient.compareToIgnoreCase("<PUBLICKEY>") == 0) {
-					clientPubKey = fromNetworkByte();
-					SendACK(); // Send ACK
-					returnData = crypt.encrypt("<PubKey-GOOD>");
-					network.Send(returnData);
-					RecieveACK(); // Wait for ACK
-				} else {
-					mylog.out("ERROR", "Failed to receieve client public key.");
-				}
-
-				// Send server public key to client
-				network.Send(crypt.encrypt("<PUBLICKEY>"));
-				RecieveACK(); // Wait for ACK
-				network.Send(crypt.encrypt(myDH.GetPublicKeyBF()));
-				RecieveACK(); // Wait for ACK
-				fromClient = fromNetwork();
-				SendACK(); // Send ACK
-				if (fromClient.compareToIgnoreCase("<PubKey-GOOD>") != 0) {
-					mylog.out("ERROR", "Client has failed to acknowledge server public key!");
-				}
-
-				// Use server DH public key to generate shared secret
-				myDH.DHPhase2(myDH.CraftPublicKey(clientPubKey), "Client");
-
-				// Final verification
-				// System.out.println("Shared Secret (Hex): " +
-				// myDH.GetSharedSecret(10));
-				crypt.ReKey(myDH.GetSharedSecret(10), "Client");
-
-			} else if (fromClient.length() == 0) {
-				// Send back empty data
-				craftReturn = "";
-				returnData = crypt.encrypt(craftReturn);
-				network.Send(returnData);
-			} else {
-				// Anything else, respond with error text
-				mylog.out("INFO", "Not a supported request [" + fromClient + "]");
-				craftReturn = "Not a supported request [" + fromClient + "]";
-				returnData = crypt.encrypt(craftReturn);
-				network.Send(returnData);
-			}
-			try {
-				// Have the thread sleep for 1 second to lower CPU load
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				mylog.out("ERROR", "Failed to have the thread sleep.");
-				e.printStackTrace();
-			}
+			Flush(replies);
 		}
 
 		// Tear down bound I/O
+		guard.lock();
+		try {
+			session.Abandon();
+		} finally {
+			guard.unlock();
+		}
+		woken.release();
 		network.BringDown();
 
 		// Close this socket
@@ -469,64 +249,89 @@ public class ServerThread extends Thread {
 	}
 
 	/**
-	 * Reads a string from the network
-	 * 
-	 * @return
+	 * Takes the writing lock if there are replies to write, called holding
+	 * the guard. Taking it before the guard is released keeps the replies of
+	 * the connection thread and the watcher in the order they were sealed.
+	 *
+	 * @param replies
 	 */
-	private String fromNetwork() {
-		String decryptedValue = null;
-
-		byte[] initialValue = network.ReceiveByte();
-		if (initialValue == null) {
-			mylog.out("WARN", "Client disconnected abruptly");
-		}
-		decryptedValue = crypt.decrypt(initialValue);
-		if (decryptedValue == null) {
-			mylog.out("WARN", "Client disconnected abruptly");
-		} else if (decryptedValue.compareToIgnoreCase("quit") == 0) {
-			mylog.out("WARN", "Client disconnected abruptly");
+	private void HoldWriting(ArrayList<byte[]> replies) {
+		if (!replies.isEmpty()) {
+			writing.lock();
 		}
-
-		return decryptedValue;
 	}
 
 	/**
-	 * Read bytes from the network
-	 * 
-	 * @return
+	 * Writes the replies held by HoldWriting out to the client and releases the
+	 * writing lock, without holding the guard so the session stays free while
+	 * a slow client drains them
+	 *
+	 * @param replies
 	 */
-	private byte[] fromNetworkByte() {
-		byte[] decryptedValue = null;
-
-		byte[] initialValue = network.ReceiveByte();
-		if (initialValue == null) {
-			mylog.out("WARN", "Client disconnected abruptly");
+	private void Flush(ArrayList<byte[]> replies) {
+		if (replies.isEmpty()) {
+			return;
 		}
-		decryptedValue = crypt.decryptByte(initialValue);
-		if (decryptedValue == null) {
-			mylog.out("WARN", "Client disconnected abruptly");
+		try {
+			for (byte[] reply : replies) {
+				network.Queue(reply);
+			}
+			network.Flush();
+		} finally {
+			replies.clear();
+			writing.unlock();
 		}
-
-		return decryptedValue;
 	}
 
 	/**
-	 * Provides message synchronization
+	 * Answers the connections parked job request once it is woken or its
+	 * wait runs out, while the connection thread carries on reading. Started
+	 * the first time a request is parked and runs until the session ends.
 	 */
-	private void SendACK() {
-		network.Send(crypt.encrypt("<ACK>"));
-		if (crypt.decrypt(network.ReceiveByteACK()).compareToIgnoreCase("<ACK>") != 0) {
-			mylog.out("ERROR", "Partner failed to ACK");
+	private class ParkWatcher implements Runnable {
+		private SessionProtocol session;
+		private Semaphore woken;
+		private AtomicBoolean rung;
+		private ArrayList<byte[]> replies;
+
+		ParkWatcher(SessionProtocol passedSession, Semaphore passedWoken, AtomicBoolean passedRung) {
+			session = passedSession;
+			woken = passedWoken;
+			rung = passedRung;
+			replies = new ArrayList<byte[]>();
 		}
-	}
 
-	/**
-	 * Provides message synchronization
-	 */
-	private void RecieveACK() {
-		if (crypt.decrypt(network.ReceiveByteACK()).compareToIgnoreCase("<ACK>") != 0) {
-			mylog.out("ERROR", "Partner failed to ACK");
+		public void run() {
+			while (!session.IsFinished()) {
+				long wait = Long.MAX_VALUE;
+				guard.lock();
+				try {
+					if (session.IsParked()) {
+						wait = Math.max(0, session.ParkedUntil() - System.nanoTime());
+					}
+				} finally {
+					guard.unlock();
+				}
+				try {
+					woken.tryAcquire(wait, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					mylog.out("ERROR", "Failed to wait for a job to be queued.");
+					return;
+				}
+				guard.lock();
+				try {
+					// Only look again once woken or out of time, so a request
+					// keeps its place in line
+					if ((session.IsParked()) && (!session.IsFinished())
+							&& (rung.getAndSet(false) || ((session.ParkedUntil() - System.nanoTime()) <= 0))) {
+						session.Resume(replies);
+						HoldWriting(replies);
+					}
+				} finally {
+					guard.unlock();
+				}
+				Flush(replies);
+			}
 		}
-		network.Send(crypt.encrypt("<ACK>"));
 	}
 }
@@ -0,0 +1,1093 @@
+package Main;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * The server and drop off side of the conversation with one client, written as
+ * a state machine so it does not care how messages arrive. Each encrypted
+ * message received is passed to Handle, which answers with the encrypted
+ * messages to send back (if any). Both the thread per connection engine and
+ * the NIO engine drive their connections through this class, so the two speak
+ * exactly the same protocol.
+ *
+ * The exchanges are: the opening handshake, job requests, heartbeats and job
+ * sign off (server), result uploads (drop off), compression and the
+ * Diffie-Hellman rekey (both). The rekey is a single round trip (a binary
+ * REKEY request, see Rekeyer); the original ACK paced rekey ("<REKEY>") is
+ * still run for clients that ask for it.
+ *
+ * Requests to the server come in two forms. Binary requests (see Message)
+ * carry an opcode, typed fields and a request ID that the reply repeats, and
+ * are routed by opcode. The legacy text commands ("job:...", "workdone",
+ * "heartbeat", ...) are still understood, routed by their first word. A
+ * client asks "<BINARY>" to learn if the server takes binary requests.
+ *
+ * A job request may also ask to wait ("jobwait:seconds:..."). If there is
+ * nothing for the client the request is parked (see JobWaiters) and answered
+ * as soon as a job it can run is queued, or empty once the wait (capped by the
+ * servers longpoll setting) runs out. The engine running the connection is
+ * woken through the Runnable passed to SetWakeUp and then calls Resume.
+ *
+ * A parked request does not hold up the connection. Binary requests carry
+ * their own request ID, so heartbeats, sign offs and the like sent while one
+ * is parked are answered straight away and the job request is answered
+ * (with its own request ID) whenever it is done waiting. A client can keep
+ * several requests in flight this way. Anything else sent while a request is
+ * parked (a legacy command, another job request) first has the parked
+ * request answered, as a legacy client is not waiting on it any more.
+ *
+ * A client may ask for compression ("<COMPRESS>") once the handshake is done.
+ * If it is offered the reply is "<COMPRESS>" and every message after it, both
+ * ways, goes through the compressing side of Crypto. Otherwise the reply is
+ * "<PLAIN>" and nothing changes.
+ *
+ * Results can be uploaded two ways. The original upload ("workdone") sends
+ * each line on its own and waits for a NEXT before the next one. The bulk
+ * upload ("bulkdone") is answered with a credit of chunks the client may send
+ * without waiting. The client then sends the job, its error and output lines
+ * packed into large chunks and finally a commit carrying the line counts. The
+ * drop off stores each chunk as it arrives, tops up the credit as it goes and
+ * acknowledges the commit, or drops the results if the counts do not match
+ * what arrived (the client then leaves the job to be handed out again). The
+ * streamed upload ("streamdone") works the same
+ * way, except that the error and output are sent while the job runs, as the
+ * raw bytes it wrote, in sealed records with sequence numbers (see
+ * SealedOutputStream and StreamedResult), and the commit carries the jobs
+ * exit value.
+ *
+ * @author Cole Christie
+ *
+ */
+public class SessionProtocol {
+	private Logging mylog;
+	private Crypto crypt;
+	private JobManagement JobQueue;
+	private boolean ServerMode;
+	private int state;
+	private boolean finished;
+	private boolean trusted; // The handshake opened under the key
+	private RateLimiter limiter; // Null when unlimited
+	private int Compress; // Deflate level offered, 0 declines
+
+	// Client meta data (set by the first job request)
+	private String ClientName;
+	private boolean ClientMetaSet;
+	private String ClientOS;
+	private int ClientSecurityLevel;
+
+	// Result upload in progress (drop off)
+	private int UploadJobID;
+	private int LinesLeft;
+	private int ErrorLines;
+	private int OutputLines;
+	private int ChunksSinceCredit;
+	private StreamedResult StreamedErrors; // Null unless the upload is streamed
+	private StreamedResult StreamedOutput;
+
+	// Job request being answered (and possibly parked)
+	private Runnable WakeUp; // Null if the engine can not park requests
+	private JobWaiter waiter;
+	private int RequestBatch;
+	private boolean parked;
+	private long ParkedUntil;
+	private int ParkedRequestID;
+	private boolean ParkedBinary;
+
+	// Request being answered
+	private int RequestID;
+	private boolean BinaryRequest;
+
+	// Rekey in progress
+	private int RekeyStep;
+	private String prime;
+	private DH myDH;
+	private byte[] ClientPubKey;
+
+	// States
+	private static final int HANDSHAKE = 0;
+	private static final int READY = 1;
+	private static final int UPLOADJOB = 2;
+	private static final int UPLOADERRORCOUNT = 3;
+	private static final int UPLOADERROR = 4;
+	private static final int UPLOADOUTPUTCOUNT = 5;
+	private static final int UPLOADOUTPUT = 6;
+	private static final int REKEY = 7;
+	private static final int UPLOADBULK = 8;
+
+	// Bulk upload chunk kinds (the first byte of each chunk)
+	static final byte BULKJOB = 'J';
+	static final byte BULKERROR = 'E';
+	static final byte BULKOUTPUT = 'O';
+	static final byte BULKCOMMIT = 'C';
+	// Chunks a bulk upload may have in flight (credit is topped up by half
+	// this each time half of it has been used)
+	private static int BULKWINDOW = 16;
+
+	// The most jobs a client may ask for in a single request
+	private static int MAXBATCH = 1000;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedSubject
+	 * @param passedLog
+	 * @param passedJobQueue
+	 * @param PassedMode
+	 *            (true for a server, false for a drop off)
+	 * @param ClientIP
+	 * @param RateLimit
+	 *            (requests per second the client may make, 0 is unlimited)
+	 * @param CompressLevel
+	 *            (deflate level used if the client asks for compression, 0
+	 *            declines)
+	 */
+	public SessionProtocol(Auth passedSubject, Logging passedLog, JobManagement passedJobQueue, boolean PassedMode,
+			String ClientIP, int RateLimit, int CompressLevel) {
+		mylog = passedLog;
+		JobQueue = passedJobQueue;
+		ServerMode = PassedMode;
+		crypt = new Crypto(mylog, passedSubject.GetPSK(), "Client");
+		state = HANDSHAKE;
+		finished = false;
+		ClientName = ClientIP;
+		ClientMetaSet = false;
+		ClientOS = "";
+		ClientSecurityLevel = 0;
+		limiter = (RateLimit > 0) ? new RateLimiter(RateLimit) : null;
+		Compress = CompressLevel;
+		parked = false;
+	}
+
+	/**
+	 * Lets job requests be parked, the passed Runnable is run (on another
+	 * thread) when a parked request should be resumed
+	 *
+	 * @param passedWakeUp
+	 */
+	public void SetWakeUp(Runnable passedWakeUp) {
+		WakeUp = passedWakeUp;
+	}
+
+	/**
+	 * Returns true while a job request is parked
+	 *
+	 * @return
+	 */
+	public boolean IsParked() {
+		return parked;
+	}
+
+	/**
+	 * Returns the System.nanoTime() a parked job request gives up at
+	 *
+	 * @return
+	 */
+	public long ParkedUntil() {
+		return ParkedUntil;
+	}
+
+	/**
+	 * Looks for work for a parked job request again (it was woken or its wait
+	 * ran out), adding the answer to replies if it is done waiting
+	 *
+	 * @param replies
+	 */
+	public void Resume(ArrayList<byte[]> replies) {
+		if (!parked) {
+			return;
+		}
+		parked = false;
+		// Answer the parked request, not whatever was handled since
+		RequestID = ParkedRequestID;
+		BinaryRequest = ParkedBinary;
+		if (waiter.Claim()) {
+			// Not woken, so it is giving up
+			JobQueue.Unpark(waiter);
+		}
+		ArrayList<Jobs> work = AssignWork();
+		if (work.isEmpty() && ((ParkedUntil - System.nanoTime()) > 0)) {
+			// Another client took the job first, wait for the next one
+			work = Park();
+			if (parked) {
+				return;
+			}
+		}
+		SendWork(work, replies);
+	}
+
+	/**
+	 * Forgets any parked job request, called when the connection closes
+	 */
+	public void Abandon() {
+		if (parked && waiter.Claim()) {
+			JobQueue.Unpark(waiter);
+		}
+		finished = true;
+	}
+
+	/**
+	 * Returns true once the client has sent a handshake that opened under the
+	 * key, until then its frames are held to Networking.HANDSHAKEFRAME
+	 *
+	 * @return
+	 */
+	public boolean IsTrusted() {
+		return trusted;
+	}
+
+	/**
+	 * Returns true once the client has said goodbye
+	 *
+	 * @return
+	 */
+	public boolean IsFinished() {
+		return finished;
+	}
+
+	/**
+	 * Called before each message is handled. Returns 0 if it may be handled
+	 * now, or how many nanoseconds to hold it back for. Only the message that
+	 * starts a request is charged against the rate limit, the rest of an
+	 * upload or rekey is not.
+	 *
+	 * @return
+	 */
+	public long Admit() {
+		if ((limiter == null) || (state != READY)) {
+			return 0;
+		}
+		return limiter.Take();
+	}
+
+	/**
+	 * Handles one message from the client, adding the encrypted replies to
+	 * send (in order) to replies
+	 *
+	 * @param fetched
+	 * @param replies
+	 */
+	public void Handle(byte[] fetched, ArrayList<byte[]> replies) {
+		if (state == HANDSHAKE) {
+			String dec = crypt.decrypt(fetched);
+			trusted = (dec != null);
+			mylog.out("INFO", "Validating encryption with handshake.");
+			replies.add(crypt.encrypt(dec + "<S>"));
+			state = READY;
+			return;
+		}
+		if (state == REKEY) {
+			Rekey(fetched, replies);
+			return;
+		}
+		if (state == UPLOADBULK) {
+			BulkUpload(fetched, replies);
+			return;
+		}
+
+		// Everything else is a binary request or text
+		if (fetched == null) {
+			mylog.out("WARN", "Client disconnected abruptly");
+			finished = true;
+			return;
+		}
+		byte[] plain = crypt.decryptByte(fetched);
+		Message request = (state == READY) ? Message.Decode(plain) : null;
+		if (parked && ((request == null) || (request.GetOpcode() == Message.JOB)
+				|| (request.GetOpcode() == Message.REKEY))) {
+			// The client did not wait for the answer, so give it now
+			ParkedUntil = System.nanoTime();
+			Resume(replies);
+		}
+		if (request != null) {
+			Route(request, replies);
+			return;
+		}
+		String fromClient = (plain == null) ? "Failed2DECRYPT" : new String(plain, StandardCharsets.UTF_8);
+		if (state != READY) {
+			Upload(fromClient, replies);
+			return;
+		}
+		BinaryRequest = false;
+
+		// Legacy commands are routed by their first word
+		String command = fromClient;
+		if (fromClient.indexOf(':') >= 0) {
+			command = fromClient.substring(0, fromClient.indexOf(':'));
+		}
+
+		// If this is a SERVER
+		boolean NoSend = false;
+		if (ServerMode) {
+			if (command.equalsIgnoreCase("job") || command.equalsIgnoreCase("jobwait")) {
+				if (JobRequest(fromClient, replies)) {
+					NoSend = true;
+				} else {
+					// The client failed to send all of the meta data we need,
+					// so abort the job request
+					fromClient = "";
+					mylog.out("INFO", "Job request failed. Missing meta data in request.");
+				}
+			} else if (command.equalsIgnoreCase("workdone")) {
+				if (ClientMetaSet) {
+					NoSend = true;
+					WorkDone(fromClient, replies);
+				} else {
+					mylog.out("ERROR", "Client is requesting to acknowledge job completion before being assigned a job");
+				}
+			} else if (command.equalsIgnoreCase("heartbeat")) {
+				if (ClientMetaSet) {
+					NoSend = true;
+					Heartbeat(replies);
+				} else {
+					mylog.out("ERROR", "Client is sending a heartbeat before being assigned a job");
+				}
+			}
+		} else if (fromClient.equalsIgnoreCase("workdone")) {
+			// If this is a Drop Off point, ask for the job the results are for
+			replies.add(crypt.encrypt("NEXT"));
+			state = UPLOADJOB;
+			return;
+		} else if ((fromClient.compareToIgnoreCase("bulkdone") == 0)
+				|| (fromClient.compareToIgnoreCase("streamdone") == 0)) {
+			// Let the client start streaming the results
+			UploadJobID = -1;
+			ErrorLines = 0;
+			OutputLines = 0;
+			ChunksSinceCredit = 0;
+			StreamedErrors = null;
+			StreamedOutput = null;
+			if (fromClient.compareToIgnoreCase("streamdone") == 0) {
+				StreamedErrors = new StreamedResult(mylog, "ERROR");
+				StreamedOutput = new StreamedResult(mylog, "OUTPUT");
+			}
+			replies.add(crypt.encrypt("CREDIT:" + BULKWINDOW));
+			state = UPLOADBULK;
+			return;
+		}
+
+		// Common actions below (Server AND Drop Off point)
+		if (NoSend) {
+			// The reply was already handled above
+			return;
+		} else if (fromClient.compareToIgnoreCase("quit") == 0) {
+			mylog.out("INFO", "Client disconnected gracefully");
+			finished = true;
+		} else if (fromClient.compareToIgnoreCase("<BINARY>") == 0) {
+			// Binary requests are always understood
+			replies.add(crypt.encrypt("<BINARY>"));
+		} else if (fromClient.compareToIgnoreCase("<COMPRESS>") == 0) {
+			// Agree to (or decline) compression, the reply itself goes out
+			// the old way
+			if ((Compress > 0) && (!crypt.IsCompressing())) {
+				replies.add(crypt.encrypt("<COMPRESS>"));
+				crypt.EnableCompression(Compress);
+			} else {
+				replies.add(crypt.encrypt("<PLAIN>"));
+			}
+		} else if (fromClient.compareToIgnoreCase("<REKEY>") == 0) {
+			replies.add(crypt.encrypt("<ACK>"));
+			state = REKEY;
+			RekeyStep = 1;
+			return;
+		} else if (fromClient.length() == 0) {
+			// Send back empty data
+			replies.add(crypt.encrypt(""));
+		} else {
+			// Anything else, respond with error text
+			mylog.out("INFO", "Not a supported request [" + fromClient + "]");
+			replies.add(crypt.encrypt("Not a supported request [" + fromClient + "]"));
+		}
+	}
+
+	/**
+	 * Routes a binary request by its opcode
+	 *
+	 * @param request
+	 * @param replies
+	 */
+	private void Route(Message request, ArrayList<byte[]> replies) {
+		RequestID = request.GetRequestID();
+		BinaryRequest = true;
+		byte opcode = request.GetOpcode();
+		if (opcode == Message.QUIT) {
+			mylog.out("INFO", "Client disconnected gracefully");
+			finished = true;
+			return;
+		} else if (opcode == Message.REKEY) {
+			Rekey(request, replies);
+			return;
+		} else if (!ServerMode) {
+			mylog.out("INFO", "Not a supported request [opcode " + opcode + "]");
+			Error("Not a supported request [opcode " + opcode + "]", replies);
+			return;
+		}
+
+		if (opcode == Message.JOB) {
+			int WaitSeconds = request.NextInt();
+			String ClientID = request.NextText();
+			String OS = request.NextText();
+			int SecLev = request.NextInt();
+			int BatchSize = request.NextInt();
+			if (!request.IsIntact()) {
+				mylog.out("INFO", "Job request failed. Missing meta data in request.");
+				Error("Job request is missing meta data", replies);
+				return;
+			}
+			JobRequest(WaitSeconds, ClientID, OS, SecLev, Math.max(1, BatchSize), replies);
+		} else if (opcode == Message.WORKDONE) {
+			int JobID = request.NextInt();
+			if (!request.IsIntact()) {
+				Error("Sign off is missing the JobID", replies);
+			} else if (!ClientMetaSet) {
+				mylog.out("ERROR", "Client is requesting to acknowledge job completion before being assigned a job");
+				Error("No job was assigned", replies);
+			} else {
+				WorkDone(JobID, replies);
+			}
+		} else if (opcode == Message.HEARTBEAT) {
+			if (ClientMetaSet) {
+				Heartbeat(replies);
+			} else {
+				mylog.out("ERROR", "Client is sending a heartbeat before being assigned a job");
+				Error("No job was assigned", replies);
+			}
+		} else {
+			mylog.out("INFO", "Not a supported request [opcode " + opcode + "]");
+			Error("Not a supported request [opcode " + opcode + "]", replies);
+		}
+	}
+
+	/**
+	 * Parses a legacy job request ("job:ID:OS:SecLev[:Batch]", or
+	 * "jobwait:seconds:..." to wait for work) and answers it. Returns false if
+	 * the request was missing meta data.
+	 *
+	 * @param fromClient
+	 * @param replies
+	 * @return
+	 */
+	private boolean JobRequest(String fromClient, ArrayList<byte[]> replies) {
+		String[] CHOP = fromClient.split(":");
+		// "jobwait:seconds:..." is a job request willing to wait that long
+		int WaitSeconds = 0;
+		if ((CHOP.length > 1) && CHOP[0].equalsIgnoreCase("jobwait")) {
+			try {
+				WaitSeconds = Integer.parseInt(CHOP[1]);
+			} catch (NumberFormatException e) {
+				mylog.out("ERROR", "String passed when number expected");
+			}
+			CHOP = Arrays.copyOfRange(CHOP, 1, CHOP.length);
+		}
+		if ((CHOP.length != 4) && (CHOP.length != 5)) {
+			return false;
+		}
+		int SecLev = 0;
+		try {
+			SecLev = Integer.parseInt(CHOP[3]);
+		} catch (NumberFormatException e) {
+			mylog.out("ERROR", "String passed when number expected");
+			return false;
+		}
+
+		// A fifth field asks for a batch of up to that many jobs
+		int BatchSize = 0;
+		if (CHOP.length == 5) {
+			try {
+				BatchSize = Integer.parseInt(CHOP[4]);
+			} catch (NumberFormatException e) {
+				mylog.out("ERROR", "String passed when number expected");
+			}
+		}
+		JobRequest(WaitSeconds, CHOP[1], CHOP[2], SecLev, BatchSize, replies);
+		return true;
+	}
+
+	/**
+	 * Assigns a job (or a batch of them) to the client, parking the request if
+	 * there is nothing for it and it asked to wait
+	 *
+	 * @param WaitSeconds
+	 * @param ClientID
+	 * @param OS
+	 * @param SecLev
+	 * @param BatchSize
+	 *            (0 for a legacy single job answer without its JobID)
+	 * @param replies
+	 */
+	private void JobRequest(int WaitSeconds, String ClientID, String OS, int SecLev, int BatchSize,
+			ArrayList<byte[]> replies) {
+		if (!ClientMetaSet) {
+			// Only set this once. Add the random number passed to us to the
+			// servers UID of this client session to create a reasonable UUID
+			ClientName = ClientName + ClientID;
+			ClientOS = OS;
+			ClientSecurityLevel = SecLev;
+			ClientMetaSet = true;
+		}
+		RequestBatch = Math.min(BatchSize, MAXBATCH);
+		WaitSeconds = Math.min(WaitSeconds, JobQueue.GetLongPollSeconds());
+
+		mylog.out("INFO", "Client [" + ClientName + "] with security level [" + ClientSecurityLevel
+				+ "] requested a job for [" + ClientOS + "]");
+		ArrayList<Jobs> work = AssignWork();
+		if (work.isEmpty() && (WaitSeconds > 0) && (WakeUp != null)) {
+			ParkedUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(WaitSeconds);
+			work = Park();
+			if (parked) {
+				return;
+			}
+		}
+		SendWork(work, replies);
+	}
+
+	/**
+	 * Assigns the client a job, or up to RequestBatch of them
+	 *
+	 * @return
+	 */
+	private ArrayList<Jobs> AssignWork() {
+		return JobQueue.AssignBatch(ClientName, ClientOS, ClientSecurityLevel, Math.max(1, RequestBatch));
+	}
+
+	/**
+	 * Parks the job request, unless a job turns up while doing so. Returns that
+	 * work (the request is left parked if there was none).
+	 *
+	 * @return
+	 */
+	private ArrayList<Jobs> Park() {
+		waiter = new JobWaiter(ClientOS, ClientSecurityLevel, WakeUp);
+		JobQueue.Park(waiter);
+		// A job queued between the last look and parking would not wake us
+		ArrayList<Jobs> work = AssignWork();
+		if (work.isEmpty()) {
+			parked = true;
+			ParkedRequestID = RequestID;
+			ParkedBinary = BinaryRequest;
+		} else if (waiter.Claim()) {
+			JobQueue.Unpark(waiter);
+		}
+		return work;
+	}
+
+	/**
+	 * Answers a job request: a JOBS message for a binary request, otherwise
+	 * one "JobID:job" line per job (or just the job when no batch was asked
+	 * for)
+	 *
+	 * @param work
+	 * @param replies
+	 */
+	private void SendWork(ArrayList<Jobs> work, ArrayList<byte[]> replies) {
+		if (BinaryRequest) {
+			Message reply = new Message(Message.JOBS, RequestID).Add(work.size());
+			for (Jobs jobUnit : work) {
+				reply.Add(jobUnit.GetJobID()).Add(jobUnit.GetWork());
+			}
+			replies.add(crypt.encrypt(reply.ToBytes()));
+		} else if ((RequestBatch > 0) || work.isEmpty()) {
+			StringBuilder batch = new StringBuilder();
+			for (Jobs jobUnit : work) {
+				if (batch.length() > 0) {
+					batch.append('\n');
+				}
+				batch.append(jobUnit.GetJobID()).append(':').append(jobUnit.GetWork());
+			}
+			replies.add(crypt.encrypt(batch.toString()));
+		} else {
+			replies.add(crypt.encrypt(work.get(0).GetWork()));
+		}
+
+		if (!work.isEmpty()) {
+			for (Jobs jobUnit : work) {
+				mylog.out("INFO", "JobOut:[" + jobUnit.GetWork() + "]");
+			}
+			mylog.out("INFO", "[" + JobQueue.UnassignedCount() + "] unassigned jobs are left in the queue");
+			mylog.out("INFO", "[" + JobQueue.AssignedCount() + "] jobs are in progress");
+		} else {
+			mylog.out("WARN", "There are no jobs for [" + ClientOS + "] with Security Level [" + ClientSecurityLevel
+					+ "]");
+		}
+	}
+
+	/**
+	 * Answers a request with a status text (a STATUS message for a binary
+	 * request)
+	 *
+	 * @param text
+	 * @param replies
+	 */
+	private void Reply(String text, ArrayList<byte[]> replies) {
+		if (BinaryRequest) {
+			replies.add(crypt.encrypt(new Message(Message.STATUS, RequestID).Add(text).ToBytes()));
+		} else {
+			replies.add(crypt.encrypt(text));
+		}
+	}
+
+	/**
+	 * Answers a binary request that could not be carried out
+	 *
+	 * @param text
+	 * @param replies
+	 */
+	private void Error(String text, ArrayList<byte[]> replies) {
+		replies.add(crypt.encrypt(new Message(Message.ERROR, RequestID).Add(text).ToBytes()));
+	}
+
+	/**
+	 * Signs off one job ("workdone:JobID") or all of the clients jobs
+	 * ("workdone")
+	 *
+	 * @param fromClient
+	 * @param replies
+	 */
+	private void WorkDone(String fromClient, ArrayList<byte[]> replies) {
+		String[] CHOP = fromClient.split(":");
+		int JobID = -1;
+		if (CHOP.length == 2) {
+			try {
+				JobID = Integer.parseInt(CHOP[1]);
+			} catch (NumberFormatException e) {
+				mylog.out("ERROR", "String passed when number expected");
+				JobID = 0;
+			}
+		}
+		WorkDone(JobID, replies);
+	}
+
+	/**
+	 * Signs off one job, or all of the clients jobs if JobID is -1
+	 *
+	 * @param JobID
+	 * @param replies
+	 */
+	private void WorkDone(int JobID, ArrayList<byte[]> replies) {
+		String work;
+		if (JobID == -1) {
+			work = JobQueue.Signoff(ClientName);
+		} else {
+			work = JobQueue.Signoff(ClientName, JobID);
+		}
+		if (work.equalsIgnoreCase("Failed")) {
+			// The job was not able to be acknowledged
+			mylog.out("WARN", "Client [" + ClientName
+					+ "] job complete was NOT acknowledged (no job was assigned previously).");
+		} else {
+			mylog.out("INFO", "Client [" + ClientName + "] job was acknowledged.");
+		}
+		Reply("Job Complete Acknowledged", replies);
+	}
+
+	/**
+	 * Extends the lease on the clients jobs
+	 *
+	 * @param replies
+	 */
+	private void Heartbeat(ArrayList<byte[]> replies) {
+		String work = JobQueue.Heartbeat(ClientName);
+		if (work.equalsIgnoreCase("Failed")) {
+			// The lease already ran out (or no job was assigned)
+			mylog.out("WARN", "Client [" + ClientName
+					+ "] sent a heartbeat but holds no job (lease expired or never assigned).");
+			work = "No Lease";
+		} else {
+			work = "Lease Extended";
+		}
+		Reply(work, replies);
+	}
+
+	/**
+	 * Takes the next piece of a result upload: the job, the error line count,
+	 * the error lines, the output line count and then the output lines, each
+	 * answered with NEXT until the last which is acknowledged
+	 *
+	 * @param fromClient
+	 * @param replies
+	 */
+	private void Upload(String fromClient, ArrayList<byte[]> replies) {
+		if (state == UPLOADJOB) {
+			// Setup a job container for that job
+			mylog.out("INFO", "Job Complete:" + fromClient);
+			UploadJobID = JobQueue.SetupResultStorage(fromClient);
+			state = UPLOADERRORCOUNT;
+		} else if (state == UPLOADERRORCOUNT) {
+			LinesLeft = LineCount(fromClient);
+			mylog.out("INFO", "Error Lines:" + LinesLeft);
+			state = (LinesLeft > 0) ? UPLOADERROR : UPLOADOUTPUTCOUNT;
+		} else if (state == UPLOADERROR) {
+			JobQueue.StoreResutls(UploadJobID, fromClient, "ERROR");
+			LinesLeft--;
+			if (LinesLeft == 0) {
+				state = UPLOADOUTPUTCOUNT;
+			}
+		} else if (state == UPLOADOUTPUTCOUNT) {
+			LinesLeft = LineCount(fromClient);
+			mylog.out("INFO", "Output Lines:" + LinesLeft);
+			state = UPLOADOUTPUT;
+		} else {
+			JobQueue.StoreResutls(UploadJobID, fromClient, "OUTPUT");
+			LinesLeft--;
+		}
+
+		if ((state == UPLOADOUTPUT) && (LinesLeft <= 0)) {
+			mylog.out("INFO", "Job receipt complete");
+			JobQueue.SealResults(UploadJobID);
+			// Send acknowledgement to the client that the job has been
+			// received
+			replies.add(crypt.encrypt("Acknowledged"));
+			state = READY;
+			return;
+		}
+		// Ack the client for the next piece
+		replies.add(crypt.encrypt("NEXT"));
+	}
+
+	/**
+	 * Takes the next chunk of a bulk upload, storing its lines straight away
+	 *
+	 * @param fetched
+	 * @param replies
+	 */
+	private void BulkUpload(byte[] fetched, ArrayList<byte[]> replies) {
+		byte[] chunk = crypt.decryptByte(fetched);
+		if ((chunk == null) || (chunk.length == 0)) {
+			mylog.out("WARN", "Client disconnected abruptly");
+			finished = true;
+			return;
+		}
+		byte kind = chunk[0];
+		if ((kind == BULKCOMMIT) && (StreamedOutput != null)) {
+			StreamCommit(new String(chunk, 1, chunk.length - 1, StandardCharsets.UTF_8), replies);
+			return;
+		} else if (kind == BULKCOMMIT) {
+			// The commit carries the line counts the client sent
+			String[] CHOP = new String(chunk, 1, chunk.length - 1, StandardCharsets.UTF_8).split(":");
+			mylog.out("INFO", "Error Lines:" + ErrorLines);
+			mylog.out("INFO", "Output Lines:" + OutputLines);
+			if ((CHOP.length != 2) || (LineCount(CHOP[0]) != ErrorLines) || (LineCount(CHOP[1]) != OutputLines)) {
+				// Lines went missing, so the job is left to be run again
+				mylog.out("WARN", "Job results do not match the line counts the client sent ["
+						+ new String(chunk, 1, chunk.length - 1, StandardCharsets.UTF_8) + "], they are not kept");
+				JobQueue.DiscardResults(UploadJobID);
+				replies.add(crypt.encrypt("Results are incomplete"));
+			} else {
+				mylog.out("INFO", "Job receipt complete");
+				JobQueue.SealResults(UploadJobID);
+				replies.add(crypt.encrypt("Acknowledged"));
+			}
+			state = READY;
+			return;
+		}
+
+		if (kind == BULKJOB) {
+			// Setup a job container for that job
+			String work = new String(chunk, 1, chunk.length - 1, StandardCharsets.UTF_8);
+			mylog.out("INFO", "Job Complete:" + work);
+			UploadJobID = JobQueue.SetupResultStorage(work);
+		} else if (UploadJobID < 0) {
+			mylog.out("ERROR", "Client sent job results before the job they are for");
+		} else if ((kind == BULKERROR) && (StreamedErrors != null)) {
+			StreamedErrors.Take(chunk, JobQueue, UploadJobID);
+		} else if ((kind == BULKOUTPUT) && (StreamedOutput != null)) {
+			StreamedOutput.Take(chunk, JobQueue, UploadJobID);
+		} else if (kind == BULKERROR) {
+			ErrorLines += JobQueue.StoreResultChunk(UploadJobID, chunk, 1, chunk.length - 1, "ERROR");
+		} else if (kind == BULKOUTPUT) {
+			OutputLines += JobQueue.StoreResultChunk(UploadJobID, chunk, 1, chunk.length - 1, "OUTPUT");
+		} else {
+			mylog.out("ERROR", "Unknown bulk upload chunk [" + kind + "]");
+		}
+
+		// Top up the clients credit
+		ChunksSinceCredit++;
+		if (ChunksSinceCredit == (BULKWINDOW / 2)) {
+			replies.add(crypt.encrypt("CREDIT:" + ChunksSinceCredit));
+			ChunksSinceCredit = 0;
+		}
+	}
+
+	/**
+	 * Finishes a streamed upload. The commit carries the jobs exit value; as
+	 * with the other uploads, output is only kept if the job exited normally.
+	 * The results are kept and acknowledged only if both streams ended with
+	 * their last record; otherwise they are dropped and the client told, so
+	 * the job is left to be handed out again.
+	 *
+	 * @param ExitValue
+	 * @param replies
+	 */
+	private void StreamCommit(String ExitValue, ArrayList<byte[]> replies) {
+		mylog.out("INFO", "Error Lines:" + StreamedErrors.GetLines());
+		mylog.out("INFO", "Output Lines:" + StreamedOutput.GetLines());
+		if (StreamedErrors.IsComplete() && StreamedOutput.IsComplete()) {
+			if (LineCount(ExitValue) != 0) {
+				mylog.out("INFO", "Job exited with [" + ExitValue + "], its output is not kept");
+				JobQueue.DiscardOutput(UploadJobID);
+			}
+			JobQueue.SealResults(UploadJobID);
+			mylog.out("INFO", "Job receipt complete");
+			replies.add(crypt.encrypt("Acknowledged"));
+		} else {
+			mylog.out("WARN", "Streamed job results are missing records, they are not kept");
+			JobQueue.DiscardResults(UploadJobID);
+			replies.add(crypt.encrypt("Results are incomplete"));
+		}
+		StreamedErrors = null;
+		StreamedOutput = null;
+		state = READY;
+	}
+
+	/**
+	 * Parses a line count sent during an upload
+	 *
+	 * @param fromClient
+	 * @return
+	 */
+	private int LineCount(String fromClient) {
+		try {
+			return Integer.parseInt(fromClient);
+		} catch (NumberFormatException e) {
+			mylog.out("ERROR", "String passed when number expected");
+		}
+		return 0;
+	}
+
+	/**
+	 * Takes the next step of a rekey. Every value the client sends is paced by
+	 * an ACK each way: the client sends the prime and the base, the server
+	 * announces it is starting, the client sends its public key (which the
+	 * server confirms), the server sends its own public key and the client
+	 * confirms it, after which both sides switch to the shared secret. A
+	 * handshake that goes off script ends the session.
+	 *
+	 * @param fetched
+	 * @param replies
+	 */
+	private void Rekey(byte[] fetched, ArrayList<byte[]> replies) {
+		// The client public key is the one value that is not text
+		String fromClient = null;
+		if (RekeyStep == 13) {
+			ClientPubKey = crypt.decryptByte(fetched);
+			if (ClientPubKey == null) {
+				mylog.out("WARN", "Client disconnected abruptly");
+				finished = true;
+				return;
+			}
+		} else {
+			fromClient = crypt.decrypt(fetched);
+			if ((fromClient == null) || (fromClient.compareToIgnoreCase("quit") == 0)) {
+				mylog.out("WARN", "Client disconnected abruptly");
+				finished = true;
+				return;
+			}
+		}
+
+		String unfit = null;
+		switch (RekeyStep) {
+		case 1:
+		case 3:
+		case 5:
+		case 7:
+		case 12:
+			CheckACK(fromClient);
+			break;
+		case 2:
+			if (fromClient.compareToIgnoreCase("<PRIME>") != 0) {
+				mylog.out("ERROR", "Failed proper DH handshake over the network (failed to receive PRIME).");
+				finished = true;
+				return;
+			}
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 4:
+			// The client picks the group here too, so hold it to the same checks
+			try {
+				unfit = DHParameters.UnfitPrime(new BigInteger(fromClient, 16));
+			} catch (NumberFormatException e) {
+				unfit = "its prime is not hex";
+			}
+			if (unfit != null) {
+				mylog.out("ERROR", "Client asked to rekey with a group it can not use, " + unfit);
+				finished = true;
+				return;
+			}
+			prime = fromClient;
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 6:
+			if (fromClient.compareToIgnoreCase("<BASE>") != 0) {
+				mylog.out("ERROR", "Failed proper DH handshake over the network (failed to receive BASE).");
+				finished = true;
+				return;
+			}
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 8:
+			try {
+				unfit = DHParameters.UnfitBase(new BigInteger(prime, 16), new BigInteger(fromClient, 16));
+			} catch (NumberFormatException e) {
+				unfit = "its base is not hex";
+			}
+			if (unfit != null) {
+				mylog.out("ERROR", "Client asked to rekey with a group it can not use, " + unfit);
+				finished = true;
+				return;
+			}
+			// Use received values to start DH
+			myDH = new DH(mylog, prime, 16, fromClient, 16);
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 9:
+			CheckACK(fromClient);
+			// Send rekeying ack
+			replies.add(crypt.encrypt("<REKEY-STARTING>"));
+			break;
+		case 10:
+			CheckACK(fromClient);
+			replies.add(crypt.encrypt("<ACK>"));
+			myDH.DHPhase1();
+			break;
+		case 11:
+			if (fromClient.compareToIgnoreCase("<PUBLICKEY>") != 0) {
+				mylog.out("ERROR", "Failed to receieve client public key.");
+				finished = true;
+				return;
+			}
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 13:
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 14:
+			CheckACK(fromClient);
+			replies.add(crypt.encrypt("<PubKey-GOOD>"));
+			break;
+		case 15:
+			CheckACK(fromClient);
+			replies.add(crypt.encrypt("<ACK>"));
+			// Send server public key to client
+			replies.add(crypt.encrypt("<PUBLICKEY>"));
+			break;
+		case 16:
+			CheckACK(fromClient);
+			replies.add(crypt.encrypt("<ACK>"));
+			replies.add(crypt.encrypt(myDH.GetPublicKeyBF()));
+			break;
+		case 17:
+			CheckACK(fromClient);
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 18:
+			if (fromClient.compareToIgnoreCase("<PubKey-GOOD>") != 0) {
+				mylog.out("ERROR", "Client has failed to acknowledge server public key!");
+			}
+			replies.add(crypt.encrypt("<ACK>"));
+			break;
+		case 19:
+			CheckACK(fromClient);
+			// Use the client DH public key to generate the shared secret
+			if (myDH.DHPhase2(myDH.CraftPublicKey(ClientPubKey), "Client")) {
+				crypt.ReKey(myDH.GetSharedSecret(10), "Client");
+			}
+			myDH = null;
+			prime = null;
+			ClientPubKey = null;
+			state = READY;
+			return;
+		}
+		RekeyStep++;
+	}
+
+	/**
+	 * Answers a single round trip rekey (see Rekeyer) with X25519 or a Diffie
+	 * Hellman group: agrees a secret with the clients public key, replies with the servers public key and the
+	 * confirmation under the current key and then switches to the new one
+	 *
+	 * @param request
+	 * @param replies
+	 */
+	private void Rekey(Message request, ArrayList<byte[]> replies) {
+		int group = request.NextInt();
+		DHParameterSpec parameters = null;
+		if (group == Rekeyer.X25519GROUP) {
+			byte[] ClientKey = request.NextBytes();
+			if (!request.IsIntact()) {
+				mylog.out("ERROR", "Client sent a broken rekey request");
+				Error("Rekey request is broken", replies);
+				return;
+			}
+			Rekey(new ECDH(mylog), ClientKey, replies);
+			return;
+		} else if (group == Rekeyer.MODP2048GROUP) {
+			parameters = DHParameters.Fixed();
+		} else if (group == Rekeyer.EXPLICITGROUP) {
+			String ClientPrime = request.NextText();
+			String ClientBase = request.NextText();
+			try {
+				parameters = new DHParameterSpec(new BigInteger(ClientPrime, 16), new BigInteger(ClientBase, 16));
+			} catch (NumberFormatException e) {
+				mylog.out("ERROR", "String passed when number expected");
+			}
+		}
+		byte[] ClientKey = request.NextBytes();
+		if ((!request.IsIntact()) || (parameters == null)) {
+			mylog.out("ERROR", "Client sent a broken rekey request");
+			Error("Rekey request is broken", replies);
+			return;
+		}
+		String unfit = DHParameters.UnfitPrime(parameters.getP());
+		if (unfit == null) {
+			unfit = DHParameters.UnfitBase(parameters.getP(), parameters.getG());
+		}
+		if (unfit != null) {
+			mylog.out("ERROR", "Client asked to rekey with a group it can not use, " + unfit);
+			Error("Rekey group is not usable", replies);
+			return;
+		}
+
+		DH serverDH = new DH(mylog, parameters);
+		serverDH.DHPhase1();
+		Rekey(serverDH, ClientKey, replies);
+	}
+
+	/**
+	 * Finishes a single round trip rekey with the servers side of the key
+	 * agreement the client picked
+	 *
+	 * @param mine
+	 * @param ClientKey
+	 * @param replies
+	 */
+	private void Rekey(KeyExchange mine, byte[] ClientKey, ArrayList<byte[]> replies) {
+		if (!mine.Agree(ClientKey, "Client")) {
+			Error("Rekey failed", replies);
+			return;
+		}
+		byte[] ServerKey = mine.GetPublicKeyBF();
+		byte[][] derived = crypt.DeriveRekey(mine.GetSharedSecretBytes(), ClientKey, ServerKey);
+		if (derived == null) {
+			Error("Rekey failed", replies);
+			return;
+		}
+		replies.add(crypt.encrypt(new Message(Message.REKEYED, RequestID).Add(ServerKey).Add(derived[1]).ToBytes()));
+		crypt.ReKey(derived[0], "Client");
+	}
+
+	/**
+	 * Logs if an expected ACK was something else
+	 *
+	 * @param fromClient
+	 */
+	private void CheckACK(String fromClient) {
+		if (fromClient.compareToIgnoreCase("<ACK>") != 0) {
+			mylog.out("ERROR", "Partner failed to ACK");
+		}
+	}
+}
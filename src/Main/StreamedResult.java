@@ -0,0 +1,198 @@
+package Main;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Rebuilds the lines of one streamed result (a jobs error or output, see
+ * SealedOutputStream) on the drop off as its records arrive. Each record is
+ * handed over decrypted and its lines are stored straight away; only a line
+ * cut off by the end of a record is held back until the record that finishes
+ * it. Line endings are taken as BufferedReader.readLine takes them ("\n" or
+ * "\r\n", and no empty line after a final newline). A line longer than
+ * MAXLINE bytes is stored in pieces of at most that size (cut between
+ * characters), so output without line breaks is never held whole.
+ *
+ * A record is only taken if it carries the next sequence number and arrives
+ * before the last one, so records that go missing, repeat or come out of
+ * order are caught. IsComplete tells whether the last record has arrived.
+ *
+ * @author Cole Christie
+ *
+ */
+public class StreamedResult {
+	private Logging mylog;
+	private String type; // ERROR or OUTPUT
+	private long expected; // Sequence number of the next record
+	private boolean ended;
+	private ByteArrayOutputStream carry; // Start of a line a record cut off
+	private boolean split; // The line in carry was stored in part already
+	private int lines;
+
+	// Most of a line held back before it is stored in pieces
+	private static int MAXLINE = SealedOutputStream.RECORDSIZE;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param passedLog
+	 * @param passedType
+	 *            (ERROR or OUTPUT)
+	 */
+	public StreamedResult(Logging passedLog, String passedType) {
+		mylog = passedLog;
+		type = passedType;
+		expected = 0;
+		ended = false;
+		carry = new ByteArrayOutputStream();
+		split = false;
+		lines = 0;
+	}
+
+	/**
+	 * Returns true once the last record has been taken
+	 *
+	 * @return
+	 */
+	public boolean IsComplete() {
+		return ended;
+	}
+
+	/**
+	 * Returns the number of lines stored so far
+	 *
+	 * @return
+	 */
+	public int GetLines() {
+		return lines;
+	}
+
+	/**
+	 * Stores the lines of the next record (decrypted) for a job, returns false
+	 * (storing nothing) if it is not the record expected
+	 *
+	 * @param record
+	 * @param JobQueue
+	 * @param JobID
+	 * @return
+	 */
+	public boolean Take(byte[] record, JobManagement JobQueue, int JobID) {
+		if (record.length < SealedOutputStream.HEADERSIZE) {
+			mylog.out("WARN", "Received a truncated " + type + " record");
+			return false;
+		}
+		long sequence = 0;
+		for (int scan = 2; scan < SealedOutputStream.HEADERSIZE; scan++) {
+			sequence = (sequence << 8) | (record[scan] & 0xff);
+		}
+		if (ended || (sequence != expected)) {
+			mylog.out("WARN", "Received " + type + " record [" + sequence + "] when "
+					+ (ended ? "the stream had ended" : "[" + expected + "] was due"));
+			return false;
+		}
+		expected++;
+
+		// Drop the CR of every CRLF so the lines match what readLine gives
+		int end = SealedOutputStream.HEADERSIZE;
+		for (int scan = SealedOutputStream.HEADERSIZE; scan < record.length; scan++) {
+			if ((record[scan] != '\r') || (scan + 1 == record.length) || (record[scan + 1] != '\n')) {
+				record[end++] = record[scan];
+			}
+		}
+
+		// Finish the line the last record cut off
+		int start = SealedOutputStream.HEADERSIZE;
+		if ((carry.size() > 0) || split) {
+			while ((start < end) && (record[start] != '\n')) {
+				start++;
+			}
+			Hold(record, SealedOutputStream.HEADERSIZE, start - SealedOutputStream.HEADERSIZE, JobQueue, JobID);
+			if (start == end) {
+				return Finish(record, JobQueue, JobID);
+			}
+			if (carry.size() > 0) {
+				StoreCarry(JobQueue, JobID);
+			}
+			split = false;
+			start++;
+		}
+
+		// Store every whole line in one go and hold back the rest
+		int newline = end - 1;
+		while ((newline >= start) && (record[newline] != '\n')) {
+			newline--;
+		}
+		if (newline >= start) {
+			lines += JobQueue.StoreResultChunk(JobID, record, start, newline - start, type);
+			start = newline + 1;
+		}
+		Hold(record, start, end - start, JobQueue, JobID);
+		return Finish(record, JobQueue, JobID);
+	}
+
+	/**
+	 * Holds back part of a line, storing the front of it as a line of its own
+	 * whenever MAXLINE bytes are held
+	 *
+	 * @param data
+	 * @param from
+	 * @param length
+	 * @param JobQueue
+	 * @param JobID
+	 */
+	private void Hold(byte[] data, int from, int length, JobManagement JobQueue, int JobID) {
+		while (carry.size() + length >= MAXLINE) {
+			int room = MAXLINE - carry.size();
+			carry.write(data, from, room);
+			from += room;
+			length -= room;
+
+			// Cut before a character the piece would leave unfinished
+			byte[] held = carry.toByteArray();
+			int cut = held.length - 1;
+			while ((cut > 0) && ((held[cut] & 0xc0) == 0x80)) {
+				cut--;
+			}
+			int lead = held[cut] & 0xff;
+			int size = (lead >= 0xf0) ? 4 : (lead >= 0xe0) ? 3 : (lead >= 0xc0) ? 2 : 1;
+			if ((cut == 0) || (held.length - cut >= size)) {
+				cut = held.length;
+			}
+			lines += JobQueue.StoreResultChunk(JobID, held, 0, cut, type);
+			carry.reset();
+			carry.write(held, cut, held.length - cut);
+			split = true;
+		}
+		carry.write(data, from, length);
+	}
+
+	/**
+	 * Stores a line left without a newline if this was the last record
+	 *
+	 * @param record
+	 * @param JobQueue
+	 * @param JobID
+	 * @return
+	 */
+	private boolean Finish(byte[] record, JobManagement JobQueue, int JobID) {
+		if ((record[1] & SealedOutputStream.LAST) != 0) {
+			if (carry.size() > 0) {
+				StoreCarry(JobQueue, JobID);
+			}
+			ended = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the held back line (a lone CR at its end is a line ending too)
+	 *
+	 * @param JobQueue
+	 * @param JobID
+	 */
+	private void StoreCarry(JobManagement JobQueue, int JobID) {
+		byte[] line = carry.toByteArray();
+		int length = ((line.length > 0) && (line[line.length - 1] == '\r')) ? line.length - 1 : line.length;
+		lines += JobQueue.StoreResultChunk(JobID, line, 0, length, type);
+		carry.reset();
+	}
+}